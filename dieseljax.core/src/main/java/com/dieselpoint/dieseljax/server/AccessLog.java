@@ -0,0 +1,469 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.eclipse.jetty.http.pathmap.MappedResource;
+import org.eclipse.jetty.http.pathmap.PathMappings;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Slf4jRequestLogWriter;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dieselpoint.dieseljax.util.Config;
+import com.dieselpoint.dieseljax.util.Histogram;
+
+/**
+ * Request log settings for Server.Builder.accessLog(), for servers where a line
+ * per request is too much. Without them every request gets a line, except for
+ * a fixed list of static file suffixes. With them:
+ *
+ * <pre>
+ * Server.builder().accessLog(new AccessLog().sample("/api/health", 0).sample("/api/items/*", 0.01).rollup(60))
+ * </pre>
+ *
+ * Paths are matched against sample() specs the way servlet mappings are, so
+ * "/api/items/*" and "*.js" work, and the most specific one wins. A matching
+ * request gets a line with the given probability. Requests matching no spec
+ * are all logged, or, in rollup mode, none are. Images, css and js get rate 0
+ * unless given another.
+ * <p>
+ * Sampling never drops the requests worth looking at. One that fails with a
+ * status of errorStatus or more, default 500, or takes slowMillis or longer,
+ * default 1000, is always logged.
+ * <p>
+ * In rollup mode, every N seconds the log gets one line per method and path
+ * template, such as GET /api/items/{id}, with the request count by status
+ * class, the bytes sent and latency quantiles, followed by a line for all
+ * requests. Every request is counted whether or not it was logged. Latencies
+ * go into a Histogram per template, and the line for all requests merges them.
+ * Requests that didn't match a resource are counted under "(unmatched)", and
+ * methods other than the standard ones under "(other)". Past
+ * dieseljax.accesslog.maxTemplates entries, default 1000, new ones are all
+ * counted under a single "(other)".
+ * <p>
+ * Rollup lines go to the same logger as request lines and start with
+ * "rollup", then the start of the interval:
+ *
+ * <pre>
+ * rollup 2026-10-18T21:00:00Z 60s GET /api/items/{id} count=51234 2xx=51200 4xx=30 5xx=4 bytes=81542310 p50=1.204 p90=2.810 p99=9.650 p99.9=31.200 max=120.512 ms
+ * </pre>
+ */
+public class AccessLog {
+
+	static final String START_ATTRIBUTE = "dieseljax.accesslog.start";
+
+	static final String UNMATCHED = "(unmatched)";
+	static final String OTHER = "(other)";
+
+	/**
+	 * Static file paths the default request log leaves out, and that AccessLog
+	 * samples at 0 unless told otherwise.
+	 */
+	static final String[] STATIC_PATHS = { "/images/*", "/img/*", "*.css", "*.jpg", "*.JPG", "*.gif", "*.GIF",
+			"*.ico", "*.ICO", "*.js" };
+
+	// the client chooses the method, so anything else shares one rollup
+	private static final Set<String> METHODS = Set.of("GET", "HEAD", "POST", "PUT", "DELETE", "PATCH", "OPTIONS",
+			"TRACE", "CONNECT");
+
+	private final Map<String, Double> rates = new LinkedHashMap<>();
+	private long slowMillis = 1000;
+	private int errorStatus = 500;
+	private int rollupSeconds;
+
+	private SamplingLog log;
+
+	public AccessLog() {
+		for (String path : STATIC_PATHS) {
+			rates.put(path, 0.0);
+		}
+	}
+
+	/**
+	 * Log this fraction, from 0 to 1, of the requests whose path matches the
+	 * spec.
+	 */
+	public AccessLog sample(String pathSpec, double rate) {
+		rates.put(pathSpec, rate);
+		return this;
+	}
+
+	/**
+	 * Always log requests that take this long or longer. Default 1000. 0 turns
+	 * it off.
+	 */
+	public AccessLog slowMillis(long millis) {
+		this.slowMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Always log requests that get this status or higher. Default 500.
+	 */
+	public AccessLog errorStatus(int status) {
+		this.errorStatus = status;
+		return this;
+	}
+
+	/**
+	 * Write per-template counts, bytes and latencies every so many seconds, and
+	 * log only the requests that match a sample() spec or are errors or slow.
+	 * Default 0, which turns it off.
+	 */
+	public AccessLog rollup(int seconds) {
+		this.rollupSeconds = seconds;
+		return this;
+	}
+
+	/**
+	 * True if rollups need the path template saved on every request.
+	 */
+	boolean needsTemplates() {
+		return rollupSeconds > 0;
+	}
+
+	/**
+	 * Add the filter that times requests, and return the log that wraps the one
+	 * that writes request lines.
+	 */
+	RequestLog install(ServletContextHandler context, RequestLog lines) {
+		context.addFilter(new FilterHolder(new StartFilter()), "/*", EnumSet.of(DispatcherType.REQUEST));
+		log = new SamplingLog(this, lines);
+		return log;
+	}
+
+	/**
+	 * Return counts of requests logged and skipped, for Telemetry.
+	 */
+	public Map<String, Object> getStats() {
+		return log == null ? Collections.emptyMap() : log.getStats();
+	}
+
+	/**
+	 * Saves the start time of each request. The request log runs after the
+	 * response is complete, and Jetty's own timestamp is only in millis.
+	 */
+	private static class StartFilter implements Filter {
+
+		@Override
+		public void init(FilterConfig filterConfig) {
+		}
+
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+				throws IOException, ServletException {
+			request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+			chain.doFilter(request, response);
+		}
+
+		@Override
+		public void destroy() {
+		}
+	}
+
+	/**
+	 * Decides which requests get a line, and keeps the rollups. Extends
+	 * ContainerLifeCycle so the wrapped log and the writer get started and
+	 * stopped with it.
+	 */
+	private static class SamplingLog extends ContainerLifeCycle implements RequestLog {
+
+		private final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+		private final RequestLog lines;
+		private final PathMappings<Double> rates = new PathMappings<>();
+		private final double defaultRate;
+		private final long slowMicros;
+		private final int errorStatus;
+		private final int rollupSeconds;
+		private final int maxTemplates = Config.getInt("dieseljax.accesslog.maxTemplates", 1000);
+
+		private final LongAdder logged = new LongAdder();
+		private final LongAdder alwaysLogged = new LongAdder();
+		private final LongAdder skipped = new LongAdder();
+
+		private RequestLog.Writer rollupWriter;
+		private ScheduledExecutorService scheduler;
+		private volatile Interval current = new Interval();
+		// touched only by the scheduler thread
+		private Interval spare = new Interval();
+		private final Histogram all = new Histogram();
+		private long rollups;
+
+		SamplingLog(AccessLog settings, RequestLog lines) {
+			this.lines = lines;
+			for (Map.Entry<String, Double> entry : settings.rates.entrySet()) {
+				rates.put(entry.getKey(), entry.getValue());
+			}
+			this.defaultRate = settings.rollupSeconds > 0 ? 0 : 1;
+			this.slowMicros = TimeUnit.MILLISECONDS.toMicros(settings.slowMillis);
+			this.errorStatus = settings.errorStatus;
+			this.rollupSeconds = settings.rollupSeconds;
+			addBean(lines);
+			if (rollupSeconds > 0) {
+				rollupWriter = new Slf4jRequestLogWriter();
+				addBean(rollupWriter);
+			}
+		}
+
+		@Override
+		protected void doStart() throws Exception {
+			super.doStart();
+			if (rollupSeconds > 0) {
+				scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r, "access-log-rollup");
+					t.setDaemon(true);
+					return t;
+				});
+				current.start = Instant.now();
+				scheduler.scheduleAtFixedRate(this::rollup, rollupSeconds, rollupSeconds, TimeUnit.SECONDS);
+			}
+		}
+
+		@Override
+		protected void doStop() throws Exception {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler.awaitTermination(1, TimeUnit.SECONDS);
+				scheduler = null;
+				// don't lose the last partial interval
+				rollup();
+			}
+			super.doStop();
+		}
+
+		@Override
+		public void log(Request request, Response response) {
+			int status = response.getCommittedMetaData().getStatus();
+			Object start = request.getAttribute(START_ATTRIBUTE);
+			long micros;
+			if (start instanceof Long) {
+				micros = (System.nanoTime() - (Long) start) / 1000;
+			} else {
+				// rejected before reaching the filter
+				micros = Math.max(0, System.currentTimeMillis() - request.getTimeStamp()) * 1000;
+			}
+
+			if (rollupSeconds > 0) {
+				String template = JfrEvents.pathTemplate(request);
+				long bytes = response.getHttpChannel().getBytesWritten();
+				record(request.getMethod(), template == null ? UNMATCHED : template, status, bytes, micros);
+			}
+
+			if (status >= errorStatus || (slowMicros > 0 && micros >= slowMicros)) {
+				alwaysLogged.increment();
+				lines.log(request, response);
+				return;
+			}
+			MappedResource<Double> match = rates.getMatch(request.getRequestURI());
+			double rate = match == null ? defaultRate : match.getResource();
+			if (rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate)) {
+				logged.increment();
+				lines.log(request, response);
+			} else {
+				skipped.increment();
+			}
+		}
+
+		private void record(String method, String template, int status, long bytes, long micros) {
+			Interval interval;
+			while (true) {
+				interval = current;
+				interval.writers.increment();
+				// a rollup between reading current and counting would miss this
+				// request, so check again
+				if (interval == current) {
+					break;
+				}
+				interval.writers.decrement();
+			}
+			try {
+				String key = (METHODS.contains(method) ? method : OTHER) + " " + template;
+				PathStats stats = interval.paths.get(key);
+				if (stats == null) {
+					if (interval.paths.size() >= maxTemplates) {
+						key = OTHER;
+					}
+					stats = interval.paths.computeIfAbsent(key, k -> new PathStats());
+				}
+				stats.record(status, bytes, micros);
+			} finally {
+				interval.writers.decrement();
+			}
+		}
+
+		private void rollup() {
+			try {
+				Instant now = Instant.now();
+				Interval interval = current;
+				spare.start = now;
+				current = spare;
+				while (interval.writers.sum() > 0) {
+					Thread.yield();
+				}
+				write(interval, now);
+				for (PathStats stats : interval.paths.values()) {
+					stats.reset();
+				}
+				spare = interval;
+			} catch (Throwable t) {
+				// don't let an exception kill the scheduled task
+				logger.error(t.toString(), t);
+			}
+		}
+
+		private void write(Interval interval, Instant end) throws IOException {
+			List<Map.Entry<String, PathStats>> entries = new ArrayList<>();
+			for (Map.Entry<String, PathStats> entry : interval.paths.entrySet()) {
+				if (entry.getValue().count.sum() > 0) {
+					entries.add(entry);
+				}
+			}
+			if (entries.isEmpty()) {
+				return;
+			}
+			entries.sort((a, b) -> Long.compare(b.getValue().count.sum(), a.getValue().count.sum()));
+
+			String prefix = "rollup " + interval.start.truncatedTo(ChronoUnit.SECONDS) + " "
+					+ Math.max(1, Math.round((end.toEpochMilli() - interval.start.toEpochMilli()) / 1000.0)) + "s ";
+			PathStats total = new PathStats(all);
+			all.reset();
+			for (Map.Entry<String, PathStats> entry : entries) {
+				PathStats stats = entry.getValue();
+				rollupWriter.write(stats.format(new StringBuilder(prefix).append(entry.getKey())));
+				total.add(stats);
+			}
+			rollupWriter.write(total.format(new StringBuilder(prefix).append("* *")));
+			synchronized (this) {
+				rollups++;
+			}
+		}
+
+		synchronized Map<String, Object> getStats() {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("logged", logged.sum());
+			stats.put("alwaysLogged", alwaysLogged.sum());
+			stats.put("skipped", skipped.sum());
+			stats.put("rollups", rollups);
+			stats.put("templates", current.paths.size());
+			return stats;
+		}
+	}
+
+	/**
+	 * The stats for one rollup interval, and the number of requests still
+	 * recording into it.
+	 */
+	private static class Interval {
+
+		final Map<String, PathStats> paths = new ConcurrentHashMap<>();
+		final LongAdder writers = new LongAdder();
+		volatile Instant start;
+	}
+
+	/**
+	 * Counts for one method and template. Reset and reused every other
+	 * interval, so templates don't cost a new histogram each time.
+	 */
+	private static class PathStats {
+
+		final LongAdder count = new LongAdder();
+		final LongAdder[] byClass = new LongAdder[6];
+		final LongAdder bytes = new LongAdder();
+		final Histogram micros;
+
+		PathStats() {
+			this(new Histogram());
+		}
+
+		PathStats(Histogram micros) {
+			this.micros = micros;
+			for (int i = 0; i < byClass.length; i++) {
+				byClass[i] = new LongAdder();
+			}
+		}
+
+		void record(int status, long bytes, long micros) {
+			count.increment();
+			byClass[Math.min(Math.max(status / 100, 0), 5)].increment();
+			this.bytes.add(bytes);
+			this.micros.record(micros);
+		}
+
+		void add(PathStats other) {
+			count.add(other.count.sum());
+			for (int i = 0; i < byClass.length; i++) {
+				byClass[i].add(other.byClass[i].sum());
+			}
+			bytes.add(other.bytes.sum());
+			micros.merge(other.micros);
+		}
+
+		void reset() {
+			count.reset();
+			for (LongAdder adder : byClass) {
+				adder.reset();
+			}
+			bytes.reset();
+			micros.reset();
+		}
+
+		String format(StringBuilder sb) {
+			sb.append(" count=").append(count.sum());
+			for (int i = 1; i < byClass.length; i++) {
+				long n = byClass[i].sum();
+				if (n > 0) {
+					sb.append(' ').append(i).append("xx=").append(n);
+				}
+			}
+			sb.append(" bytes=").append(bytes.sum());
+			appendMillis(sb, "p50", micros.getValueAtPercentile(50));
+			appendMillis(sb, "p90", micros.getValueAtPercentile(90));
+			appendMillis(sb, "p99", micros.getValueAtPercentile(99));
+			appendMillis(sb, "p99.9", micros.getValueAtPercentile(99.9));
+			appendMillis(sb, "max", micros.getMax());
+			return sb.append(" ms").toString();
+		}
+
+		private static void appendMillis(StringBuilder sb, String name, long micros) {
+			long frac = micros % 1000;
+			sb.append(' ').append(name).append('=').append(micros / 1000).append('.');
+			if (frac < 100) {
+				sb.append('0');
+			}
+			if (frac < 10) {
+				sb.append('0');
+			}
+			sb.append(frac);
+		}
+	}
+
+}
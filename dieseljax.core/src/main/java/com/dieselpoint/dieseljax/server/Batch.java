@@ -0,0 +1,351 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.glassfish.jersey.process.Inflector;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.model.Resource;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
+
+import com.dieselpoint.dieseljax.util.Config;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonRawValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Runs several API calls in one HTTP request. Enable it with
+ * Server.Builder.batch(path).
+ * <p>
+ * POST a JSON array of sub-requests:
+ *
+ * <pre>
+ * [{"method":"GET","path":"/items/3"},
+ *  {"method":"POST","path":"/items","headers":{"X-Foo":"bar"},"body":{"name":"widget"}}]
+ * </pre>
+ *
+ * Paths are relative to the service context path and may include a query
+ * string. Method defaults to GET. The sub-requests go straight to Jersey's
+ * ApplicationHandler through an InProcessClient, in parallel on a bounded pool
+ * of threads, so they run the same filters, exception mappers and JSON
+ * provider as any other request but skip the network and Jetty. They inherit the batch request's headers,
+ * such as Authorization and cookies, and its security context.
+ * <p>
+ * The response is an array with one result per sub-request, in order:
+ *
+ * <pre>
+ * [{"status":200,"headers":{"Content-Type":"application/json"},"body":{...}},
+ *  {"status":504,"body":{"success":false,"message":"Timed out", ...}}]
+ * </pre>
+ *
+ * A JSON body is embedded as is; any other body is returned as a string in
+ * "text". Failures, including sub-requests that time out or can't be queued,
+ * get a body in the usual Message format. Settings come from Config:
+ * <ul>
+ * <li>dieseljax.batch.maxRequests: most sub-requests in one batch, default
+ * 20. Larger batches are rejected with 413.</li>
+ * <li>dieseljax.batch.timeoutMillis: time allowed for the whole batch,
+ * default 10000, or less if the batch request has a Deadline. Sub-requests
+ * still running then are interrupted and get 504.</li>
+ * <li>dieseljax.batch.threads: threads that run sub-requests, default 8</li>
+ * <li>dieseljax.batch.queueSize: sub-requests that can wait for a thread,
+ * default 256. Sub-requests that don't fit get 503.</li>
+ * </ul>
+ */
+public class Batch extends AbstractLifeCycle {
+
+	// headers of the batch request that describe its own body, not the
+	// sub-requests'
+	private static final Set<String> NOT_INHERITED = new HashSet<>(
+			Arrays.asList("content-type", "content-length", "content-encoding", "transfer-encoding", "accept",
+					"accept-encoding", "expect", "host", "connection"));
+
+	private final int maxRequests = Config.getInt("dieseljax.batch.maxRequests", 20);
+	private final int timeoutMillis = Config.getInt("dieseljax.batch.timeoutMillis", 10000);
+	private final int threads = Config.getInt("dieseljax.batch.threads", 8);
+	private final int queueSize = Config.getInt("dieseljax.batch.queueSize", 256);
+
+	private ObjectMapper objectMapper;
+	private volatile ApplicationHandler handler;
+	private InProcessClient client;
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * One sub-request, as the client sends it.
+	 */
+	public static class SubRequest {
+		public String method = "GET";
+		public String path;
+		public Map<String, String> headers;
+		public JsonNode body;
+	}
+
+	/**
+	 * The outcome of one sub-request.
+	 */
+	@JsonInclude(Include.NON_NULL)
+	public static class Result {
+		public int status;
+		public Map<String, String> headers;
+		@JsonRawValue
+		public String body;
+		public String text;
+	}
+
+	/**
+	 * Serve batches at the given path, relative to the service context path.
+	 */
+	public void register(ResourceConfig app, String path) {
+		Resource.Builder rb = Resource.builder(path);
+		rb.addMethod("POST").consumes(MediaType.APPLICATION_JSON_TYPE).produces(MediaType.APPLICATION_JSON_TYPE)
+				.handledBy(new Inflector<ContainerRequestContext, Response>() {
+					// not a lambda; Jersey reads the type arguments to decide what to pass in
+					@Override
+					public Response apply(ContainerRequestContext request) {
+						return handle(request);
+					}
+				});
+		app.registerResources(rb.build());
+
+		// the handler only exists once the servlet has started
+		app.register(new ContainerLifecycleListener() {
+			@Override
+			public void onStartup(Container container) {
+				handler = container.getApplicationHandler();
+			}
+
+			@Override
+			public void onReload(Container container) {
+				handler = container.getApplicationHandler();
+			}
+
+			@Override
+			public void onShutdown(Container container) {
+			}
+		});
+	}
+
+	public ObjectMapper getObjectMapper() {
+		return objectMapper;
+	}
+
+	public void setObjectMapper(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		client = new InProcessClient(() -> handler, null, objectMapper);
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), r -> {
+					Thread t = new Thread(r, "batch-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		// batches are occasional, so don't keep the threads when idle
+		executor.allowCoreThreadTimeOut(true);
+		this.executor = executor;
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private Response handle(ContainerRequestContext request) {
+		// a batch inside a batch would block a batch thread on futures queued to
+		// the same pool. Checked on the request, not the path, which can be
+		// spelled many ways that Jersey routes here.
+		if (request.getProperty(InProcessClient.IN_PROCESS_PROPERTY) != null) {
+			return Message.failureResponse("Batches can't be nested", Status.BAD_REQUEST);
+		}
+
+		SubRequest[] subRequests;
+		try {
+			subRequests = objectMapper.readValue(request.getEntityStream(), SubRequest[].class);
+		} catch (IOException e) {
+			return Message.failureResponse("Could not parse batch: " + e.getMessage(), Status.BAD_REQUEST);
+		}
+		if (subRequests == null) {
+			return Message.failureResponse("Batch must be a JSON array of requests", Status.BAD_REQUEST);
+		}
+		if (subRequests.length > maxRequests) {
+			return Message.failureResponse(
+					"Batch has " + subRequests.length + " requests, the limit is " + maxRequests,
+					Status.REQUEST_ENTITY_TOO_LARGE);
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		Deadline requestDeadline = Deadline.of(request);
+		if (requestDeadline.isSet() && requestDeadline.getDeadlineNanos() - deadline < 0) {
+			deadline = requestDeadline.getDeadlineNanos();
+		}
+		ContainerRequest outer = (ContainerRequest) request;
+
+		List<Future<Result>> futures = new ArrayList<>(subRequests.length);
+		Result[] results = new Result[subRequests.length];
+		for (int i = 0; i < subRequests.length; i++) {
+			SubRequest sub = subRequests[i];
+			if (sub == null || sub.path == null) {
+				results[i] = failure(Status.BAD_REQUEST, "Missing path");
+			}
+			if (results[i] != null) {
+				futures.add(null);
+				continue;
+			}
+			try {
+				futures.add(executor.submit(() -> run(outer, sub)));
+			} catch (RejectedExecutionException e) {
+				futures.add(null);
+				results[i] = failure(Status.SERVICE_UNAVAILABLE, "Too many requests queued");
+			}
+		}
+
+		for (int i = 0; i < results.length; i++) {
+			Future<Result> future = futures.get(i);
+			if (future == null) {
+				continue;
+			}
+			try {
+				results[i] = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				results[i] = failure(Status.GATEWAY_TIMEOUT, "Timed out");
+			} catch (ExecutionException e) {
+				results[i] = failure(Status.INTERNAL_SERVER_ERROR,
+						ExceptionMappers.unwrapException(e).toString());
+			} catch (InterruptedException e) {
+				for (Future<Result> f : futures) {
+					if (f != null) {
+						f.cancel(true);
+					}
+				}
+				if (requestDeadline.isExpired()) {
+					// Deadlines interrupted this thread; report what didn't finish
+					for (int j = i; j < results.length; j++) {
+						if (results[j] == null) {
+							results[j] = failure(Status.GATEWAY_TIMEOUT, "Timed out");
+						}
+					}
+					break;
+				}
+				Thread.currentThread().interrupt();
+				return Message.failureResponse("Interrupted", Status.SERVICE_UNAVAILABLE);
+			}
+		}
+		return Response.ok(results).type(MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	private Result run(ContainerRequest outer, SubRequest sub) throws Exception {
+		if (handler == null) {
+			return failure(Status.SERVICE_UNAVAILABLE, "Server is not started");
+		}
+
+		MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+		for (Map.Entry<String, List<String>> header : outer.getHeaders().entrySet()) {
+			if (!NOT_INHERITED.contains(header.getKey().toLowerCase())) {
+				headers.put(header.getKey(), new ArrayList<>(header.getValue()));
+			}
+		}
+		if (sub.headers != null) {
+			for (Map.Entry<String, String> header : sub.headers.entrySet()) {
+				headers.putSingle(header.getKey(), header.getValue());
+			}
+		}
+		Deadline deadline = Deadline.of(outer);
+		if (deadline.isSet()) {
+			// counts from now, so time spent waiting for a batch thread is used up
+			headers.putSingle(Deadline.HEADER, String.valueOf(Math.max(0, deadline.remainingMillis())));
+		}
+
+		byte[] body = null;
+		if (sub.body != null && !sub.body.isNull()) {
+			if (sub.body.isTextual() && headers.getFirst(HttpHeaders.CONTENT_TYPE) != null
+					&& !isJson(MediaType.valueOf(headers.getFirst(HttpHeaders.CONTENT_TYPE)))) {
+				body = sub.body.textValue().getBytes(StandardCharsets.UTF_8);
+			} else {
+				body = objectMapper.writeValueAsBytes(sub.body);
+				if (headers.getFirst(HttpHeaders.CONTENT_TYPE) == null) {
+					headers.putSingle(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
+				}
+			}
+		}
+
+		InProcessClient.Response response;
+		try {
+			response = client.send(outer.getBaseUri(), outer.getSecurityContext(), sub.method, sub.path, headers,
+					body);
+		} catch (IllegalArgumentException e) {
+			return failure(Status.BAD_REQUEST, e.getMessage());
+		}
+
+		Result result = new Result();
+		result.status = response.getStatus();
+		Map<String, String> resultHeaders = new LinkedHashMap<>();
+		for (Map.Entry<String, List<String>> header : response.getHeaders().entrySet()) {
+			if (!header.getValue().isEmpty()) {
+				resultHeaders.put(header.getKey(), header.getValue().get(0));
+			}
+		}
+		if (!resultHeaders.isEmpty()) {
+			result.headers = resultHeaders;
+		}
+		if (response.getBody().length > 0) {
+			if (response.getMediaType() != null && isJson(response.getMediaType())) {
+				result.body = response.getBodyAsString();
+			} else {
+				result.text = response.getBodyAsString();
+			}
+		}
+		return result;
+	}
+
+	private static boolean isJson(MediaType type) {
+		return type.getSubtype().equals("json") || type.getSubtype().endsWith("+json");
+	}
+
+	private Result failure(Status status, String message) {
+		Result result = new Result();
+		result.status = status.getStatusCode();
+		try {
+			result.body = objectMapper.writeValueAsString(Message.failure(status.getStatusCode(), message));
+		} catch (IOException e) {
+			result.text = message;
+		}
+		return result;
+	}
+
+}
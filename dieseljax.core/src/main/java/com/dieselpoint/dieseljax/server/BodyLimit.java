@@ -0,0 +1,111 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Priority;
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * Rejects request bodies larger than a limit with 413. Enable it with
+ * Server.Builder.maxRequestBodySize().
+ * <p>
+ * A request whose Content-Length is over the limit is rejected before matching
+ * and before any of the body is read. When the client sent "Expect:
+ * 100-continue", Jetty only sends the 100 once the body is read, so such a
+ * client never sends the body at all. A chunked body is counted as it is read,
+ * and TooLargeException is thrown from the read that crosses the limit, so no
+ * reader ever holds more than the limit in memory.
+ * <p>
+ * The count is of bytes on the wire, before any Content-Encoding is undone.
+ */
+@PreMatching
+@Priority(Priorities.AUTHENTICATION - 100)
+public class BodyLimit implements ContainerRequestFilter {
+
+	private final long maxBodySize;
+
+	public BodyLimit(long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		if (request.getLength() > maxBodySize) {
+			throw new TooLargeException(maxBodySize);
+		}
+		if (request.hasEntity()) {
+			request.setEntityStream(new LimitedInputStream(request.getEntityStream(), maxBodySize));
+		}
+	}
+
+	/**
+	 * Thrown when a request body is over the limit. ExceptionMappers turns it
+	 * into a 413.
+	 */
+	public static class TooLargeException extends ClientErrorException {
+
+		private static final long serialVersionUID = 1L;
+
+		public TooLargeException(long maxBodySize) {
+			super("Request body is larger than the limit of " + maxBodySize + " bytes",
+					Status.REQUEST_ENTITY_TOO_LARGE);
+		}
+	}
+
+	private static class LimitedInputStream extends FilterInputStream {
+
+		private final long max;
+		private long count;
+
+		LimitedInputStream(InputStream in, long max) {
+			super(in);
+			this.max = max;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				add(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				add(n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			add(skipped);
+			return skipped;
+		}
+
+		private void add(long n) {
+			count += n;
+			if (count > max) {
+				throw new TooLargeException(max);
+			}
+		}
+
+		@Override
+		public boolean markSupported() {
+			// a reset would throw off the count
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnection;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.LowResourceMonitor;
+
+/**
+ * Counts connections and enforces a per-IP connection cap. The server always
+ * has one; get it with Server.getConnectionControl().
+ * <p>
+ * The other connection limits are Jetty's own, set up by Server.Builder:
+ * ConnectionLimit stops accepting when maxConnections are open, AcceptRateLimit
+ * stops accepting when connections arrive too fast, and LowResourceMonitor
+ * stops accepting and shortens idle timeouts while threads or memory run low.
+ * All three leave new connections waiting in the OS accept backlog rather than
+ * refusing them. The per-IP cap can't work that way, because the address isn't
+ * known until the connection is accepted, so connections over the cap are
+ * closed as soon as they open and counted as rejected.
+ * <p>
+ * The gauges, also included in Telemetry windows:
+ * <ul>
+ * <li>open: connections open now</li>
+ * <li>opened: connections opened since start</li>
+ * <li>rejected: connections closed for being over the per-IP cap</li>
+ * <li>idleClosed: connections closed by the server for being idle</li>
+ * <li>lowOnResources: whether the low resource monitor has tripped</li>
+ * </ul>
+ */
+public class ConnectionControl implements Connection.Listener {
+
+	private final int maxConnectionsPerIp;
+	private final Map<InetAddress, Integer> perIp = new ConcurrentHashMap<>();
+	private final AtomicInteger open = new AtomicInteger();
+	private final LongAdder opened = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder idleClosed = new LongAdder();
+	private LowResourceMonitor lowResourceMonitor;
+
+	/**
+	 * @param maxConnectionsPerIp most connections one remote address may have
+	 *                            open, or 0 for no limit
+	 */
+	public ConnectionControl(int maxConnectionsPerIp) {
+		this.maxConnectionsPerIp = maxConnectionsPerIp;
+	}
+
+	/**
+	 * The monitor whose state getStats() reports. Server.Builder sets it.
+	 */
+	public void setLowResourceMonitor(LowResourceMonitor lowResourceMonitor) {
+		this.lowResourceMonitor = lowResourceMonitor;
+	}
+
+	@Override
+	public void onOpened(Connection connection) {
+		open.incrementAndGet();
+		opened.increment();
+		if (maxConnectionsPerIp > 0) {
+			InetAddress address = remoteAddress(connection);
+			if (address != null) {
+				// count inside merge() so it can't race with onClosed() removing the
+				// entry
+				int count = perIp.merge(address, 1, Integer::sum);
+				if (count > maxConnectionsPerIp) {
+					rejected.increment();
+					// onClosed still gets called and undoes the counts
+					connection.getEndPoint().close();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void onClosed(Connection connection) {
+		open.decrementAndGet();
+		if (maxConnectionsPerIp > 0) {
+			InetAddress address = remoteAddress(connection);
+			if (address != null) {
+				// remove the entry at zero so the map doesn't grow with every client ever seen
+				perIp.computeIfPresent(address, (k, count) -> count <= 1 ? null : count - 1);
+			}
+		}
+	}
+
+	private static InetAddress remoteAddress(Connection connection) {
+		InetSocketAddress remote = connection.getEndPoint().getRemoteAddress();
+		return remote == null ? null : remote.getAddress();
+	}
+
+	public int getOpenConnections() {
+		return open.get();
+	}
+
+	public long getOpenedConnections() {
+		return opened.sum();
+	}
+
+	public long getRejectedConnections() {
+		return rejected.sum();
+	}
+
+	public long getIdleClosedConnections() {
+		return idleClosed.sum();
+	}
+
+	public boolean isLowOnResources() {
+		return lowResourceMonitor != null && lowResourceMonitor.isLowOnResources();
+	}
+
+	/**
+	 * Return all the gauges, for Telemetry.
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("open", getOpenConnections());
+		stats.put("opened", getOpenedConnections());
+		stats.put("rejected", getRejectedConnections());
+		stats.put("idleClosed", getIdleClosedConnections());
+		stats.put("lowOnResources", isLowOnResources());
+		return stats;
+	}
+
+	/**
+	 * An HttpConnectionFactory whose connections report idle timeouts to a
+	 * ConnectionControl. Jetty's own listener interface doesn't say why a
+	 * connection closed.
+	 */
+	public static class HttpFactory extends HttpConnectionFactory {
+
+		private final ConnectionControl control;
+
+		public HttpFactory(HttpConfiguration config, ConnectionControl control) {
+			super(config);
+			this.control = control;
+			addBean(control);
+		}
+
+		@Override
+		public Connection newConnection(Connector connector, EndPoint endPoint) {
+			HttpConnection connection = new HttpConnection(getHttpConfiguration(), connector, endPoint,
+					getHttpCompliance(), isRecordHttpComplianceViolations()) {
+
+				// Jetty can report the same expiry more than once while the close completes
+				private boolean counted;
+
+				@Override
+				public boolean onIdleExpired() {
+					boolean expired = super.onIdleExpired();
+					if (expired && !counted) {
+						counted = true;
+						control.idleClosed.increment();
+					}
+					return expired;
+				}
+			};
+			return configure(connection, connector, endPoint);
+		}
+	}
+
+}
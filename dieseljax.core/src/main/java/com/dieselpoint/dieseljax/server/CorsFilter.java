@@ -170,9 +170,11 @@ public class CorsFilter implements ContainerRequestFilter, ContainerResponseFilt
 
 	protected void checkOrigin(ContainerRequestContext requestContext, String origin) {
 		if (!allowedOrigins.contains("*") && !allowedOrigins.contains(origin)) {
+			JfrEvents.corsDecision(origin, requestContext.getMethod(), false);
 			requestContext.setProperty("cors.failure", true);
 			throw new ForbiddenException("Origin not allowed: " + origin);
 		}
+		JfrEvents.corsDecision(origin, requestContext.getMethod(), true);
 	}
 
 	public static class CorsHeaders {
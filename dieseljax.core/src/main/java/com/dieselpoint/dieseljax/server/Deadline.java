@@ -0,0 +1,145 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * The time a request has left. Enable deadlines with
+ * Server.Builder.deadlines(), then take one as a resource method parameter:
+ *
+ * <pre>
+ * &#64;GET
+ * public Report report(&#64;Context Deadline deadline) {
+ * 	for (Part part : parts) {
+ * 		deadline.check();
+ * 		...
+ * 	}
+ * 	// pass what's left on to another service
+ * 	request.header(Deadline.HEADER, deadline.remainingMillis());
+ * }
+ * </pre>
+ *
+ * In a singleton resource or a filter, use Deadline.of(requestContext) instead.
+ * A request with no timeout gets a deadline that never expires. See Deadlines.
+ */
+public class Deadline {
+
+	/**
+	 * Request header with the client's timeout in milliseconds. The server uses
+	 * the smaller of this and the resource's own timeout.
+	 */
+	public static final String HEADER = "X-Request-Timeout";
+
+	static final String PROPERTY = "dieseljax.deadline";
+
+	private static final Deadline NONE = new Deadline(Long.MAX_VALUE, false);
+
+	private final long deadlineNanos;
+	private final boolean set;
+
+	// set by Deadlines while the resource method runs, so the timer knows what
+	// to interrupt. Guarded by this.
+	Thread thread;
+	boolean interrupted;
+	ScheduledFuture<?> timer;
+
+	Deadline(long deadlineNanos, boolean set) {
+		this.deadlineNanos = deadlineNanos;
+		this.set = set;
+	}
+
+	/**
+	 * Return the deadline for a request, or one that never expires if it has
+	 * none.
+	 */
+	public static Deadline of(ContainerRequestContext request) {
+		Deadline deadline = (Deadline) request.getProperty(PROPERTY);
+		return deadline == null ? NONE : deadline;
+	}
+
+	/**
+	 * Return false if the request has no timeout.
+	 */
+	public boolean isSet() {
+		return set;
+	}
+
+	/**
+	 * Return the deadline on the System.nanoTime() clock.
+	 */
+	public long getDeadlineNanos() {
+		return deadlineNanos;
+	}
+
+	/**
+	 * Return the time left, which is 0 or less once the deadline has passed,
+	 * or Long.MAX_VALUE if there is no deadline.
+	 */
+	public long remaining(TimeUnit unit) {
+		if (!set) {
+			return Long.MAX_VALUE;
+		}
+		return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	public long remainingMillis() {
+		return remaining(TimeUnit.MILLISECONDS);
+	}
+
+	public boolean isExpired() {
+		return set && deadlineNanos - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Throw ExceededException, which becomes a 504, if the deadline has passed.
+	 * Call it between steps of long-running work.
+	 */
+	public void check() {
+		if (isExpired()) {
+			throw new ExceededException(Status.GATEWAY_TIMEOUT, "Request deadline exceeded");
+		}
+	}
+
+	/**
+	 * Return true if the request thread was interrupted because the deadline
+	 * passed while the resource method was running.
+	 */
+	public synchronized boolean wasInterrupted() {
+		return interrupted;
+	}
+
+	/**
+	 * Timeout for a resource method, or for all the methods of a resource class,
+	 * in milliseconds. Overrides the default given to Server.Builder.deadlines().
+	 * A client can ask for less with the X-Request-Timeout header, but not for
+	 * more.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ ElementType.METHOD, ElementType.TYPE })
+	public @interface Timeout {
+		long value();
+	}
+
+	/**
+	 * Thrown when a deadline passes: 503 when the request expired before its
+	 * resource method started, 504 when it expired while running.
+	 * ExceptionMappers turns it into a response.
+	 */
+	public static class ExceededException extends WebApplicationException {
+
+		private static final long serialVersionUID = 1L;
+
+		public ExceededException(Status status, String message) {
+			super(message, status);
+		}
+	}
+
+}
@@ -0,0 +1,299 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.annotation.Priority;
+import javax.inject.Inject;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.Response.Status;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.glassfish.jersey.internal.inject.AbstractBinder;
+import org.glassfish.jersey.process.internal.RequestScoped;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * Gives each request a deadline, and stops work on it once the deadline
+ * passes. Enable it with Server.Builder.deadlines().
+ * <p>
+ * The timeout comes from the resource method's or class's @Deadline.Timeout
+ * annotation, or else the default passed to the builder. A client can shorten
+ * it with the X-Request-Timeout header, in milliseconds, but not lengthen it.
+ * If there is no timeout at all the request has no deadline. The clock starts
+ * when Jetty parsed the request headers, so time spent reading the body and in
+ * earlier filters counts.
+ * <p>
+ * Resource code gets the deadline as a Deadline, and should call check()
+ * between steps of long work and pass remainingMillis() on to other services.
+ * Work that doesn't check is stopped another way:
+ * <ul>
+ * <li>A request whose deadline has already passed by the time it is matched,
+ * because it was slow to arrive or waited behind other work, is rejected with
+ * 503 before its resource method runs.</li>
+ * <li>If the deadline passes while the resource method is running, the thread
+ * running it is interrupted, which stops blocking I/O, sleeps, waits and
+ * Future.get(). If the method then fails, the response is 504 instead of
+ * 500. The interrupt is cleared when the method returns, so it can't leak to
+ * the next request on the thread.</li>
+ * </ul>
+ * Batch sub-requests inherit what's left of the batch request's deadline.
+ * <p>
+ * Counters, also included in Telemetry windows:
+ * <ul>
+ * <li>rejected: requests that expired before their resource method ran</li>
+ * <li>exceeded: requests that expired while running</li>
+ * <li>interrupted: request threads interrupted at the deadline</li>
+ * </ul>
+ */
+@Priority(Priorities.AUTHENTICATION - 200)
+public class Deadlines extends AbstractLifeCycle
+		implements ContainerRequestFilter, ContainerResponseFilter, ApplicationEventListener, RequestEventListener {
+
+	private final long defaultTimeoutMillis;
+
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder exceeded = new LongAdder();
+	private final LongAdder interrupted = new LongAdder();
+
+	// no @Context fields: Server.reload() shares this object between
+	// applications. See MatchedResource.
+	private volatile ScheduledThreadPoolExecutor timers;
+
+	/**
+	 * @param defaultTimeoutMillis timeout for resources without
+	 *                             a @Deadline.Timeout, or 0 for none
+	 */
+	public Deadlines(long defaultTimeoutMillis) {
+		this.defaultTimeoutMillis = defaultTimeoutMillis;
+	}
+
+	/**
+	 * Register the filters, the event listener and the Deadline injection.
+	 */
+	public void register(ResourceConfig app) {
+		app.register(this);
+		app.register(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bindFactory(DeadlineSupplier.class).to(Deadline.class).in(RequestScoped.class);
+			}
+		});
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "deadlines");
+			t.setDaemon(true);
+			return t;
+		});
+		// most timers are cancelled; don't keep them around until they would
+		// have fired
+		executor.setRemoveOnCancelPolicy(true);
+		timers = executor;
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		if (timers != null) {
+			timers.shutdownNow();
+			timers = null;
+		}
+	}
+
+	/*
+	 * ContainerRequestFilter
+	 */
+
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		long timeout = resourceTimeout(request);
+		boolean requested = false;
+		String header = request.getHeaderString(Deadline.HEADER);
+		if (header != null) {
+			try {
+				long millis = Long.parseLong(header.trim());
+				if (millis >= 0) {
+					requested = true;
+					if (timeout <= 0 || millis < timeout) {
+						timeout = millis;
+					}
+				}
+			} catch (NumberFormatException e) {
+				// ignore it, as with any malformed optional header
+			}
+		}
+		if (timeout <= 0 && !requested) {
+			return;
+		}
+
+		long deadlineNanos = arrivalNanos(request) + TimeUnit.MILLISECONDS.toNanos(timeout);
+		if (deadlineNanos - System.nanoTime() <= 0) {
+			rejected.increment();
+			throw new Deadline.ExceededException(Status.SERVICE_UNAVAILABLE,
+					"Request deadline passed before it could be handled");
+		}
+		request.setProperty(Deadline.PROPERTY, new Deadline(deadlineNanos, true));
+	}
+
+	private long resourceTimeout(ContainerRequestContext request) {
+		Deadline.Timeout t = MatchedResource.annotation(request, Deadline.Timeout.class);
+		return t != null ? t.value() : defaultTimeoutMillis;
+	}
+
+	/**
+	 * Return when the request arrived, on the nanoTime clock.
+	 */
+	private long arrivalNanos(ContainerRequestContext request) {
+		long now = System.nanoTime();
+		if (request.getProperty(InProcessClient.IN_PROCESS_PROPERTY) != null) {
+			return now;
+		}
+		Object arrived = request.getProperty(ReloadableServlet.ARRIVAL_ATTRIBUTE);
+		if (!(arrived instanceof Long)) {
+			return now;
+		}
+		long waitedMillis = Math.max(0, System.currentTimeMillis() - (Long) arrived);
+		return now - TimeUnit.MILLISECONDS.toNanos(waitedMillis);
+	}
+
+	/*
+	 * ContainerResponseFilter
+	 */
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		Deadline deadline = (Deadline) request.getProperty(Deadline.PROPERTY);
+		if (deadline == null || !deadline.isExpired()) {
+			return;
+		}
+		exceeded.increment();
+		if (deadline.wasInterrupted() && response.getStatus() == Status.INTERNAL_SERVER_ERROR.getStatusCode()) {
+			// whatever the resource threw, it threw because it was interrupted
+			response.setStatus(Status.GATEWAY_TIMEOUT.getStatusCode());
+			response.setEntity(Message.failure(Status.GATEWAY_TIMEOUT.getStatusCode(), "Request deadline exceeded"));
+		}
+	}
+
+	/*
+	 * ApplicationEventListener and RequestEventListener. The same object
+	 * listens to every request; the per-request state is in the Deadline.
+	 */
+
+	@Override
+	public void onEvent(ApplicationEvent event) {
+	}
+
+	@Override
+	public RequestEventListener onRequest(RequestEvent requestEvent) {
+		return this;
+	}
+
+	@Override
+	public void onEvent(RequestEvent event) {
+		switch (event.getType()) {
+		case RESOURCE_METHOD_START:
+			arm((Deadline) event.getContainerRequest().getProperty(Deadline.PROPERTY));
+			break;
+		case RESOURCE_METHOD_FINISHED:
+			disarm((Deadline) event.getContainerRequest().getProperty(Deadline.PROPERTY));
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void arm(Deadline deadline) {
+		ScheduledThreadPoolExecutor timers = this.timers;
+		if (deadline == null || timers == null) {
+			return;
+		}
+		synchronized (deadline) {
+			deadline.thread = Thread.currentThread();
+			long delay = Math.max(0, deadline.remaining(TimeUnit.NANOSECONDS));
+			deadline.timer = timers.schedule(() -> expire(deadline), delay, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void expire(Deadline deadline) {
+		synchronized (deadline) {
+			if (deadline.thread != null) {
+				deadline.interrupted = true;
+				deadline.thread.interrupt();
+				interrupted.increment();
+			}
+		}
+	}
+
+	private void disarm(Deadline deadline) {
+		if (deadline == null) {
+			return;
+		}
+		synchronized (deadline) {
+			if (deadline.timer != null) {
+				deadline.timer.cancel(false);
+				deadline.timer = null;
+			}
+			if (deadline.thread == Thread.currentThread()) {
+				deadline.thread = null;
+				if (deadline.interrupted) {
+					// clear the flag if the method didn't
+					Thread.interrupted();
+				}
+			}
+		}
+	}
+
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	public long getExceeded() {
+		return exceeded.sum();
+	}
+
+	public long getInterrupted() {
+		return interrupted.sum();
+	}
+
+	/**
+	 * Return all the counters, for Telemetry.
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("rejected", getRejected());
+		stats.put("exceeded", getExceeded());
+		stats.put("interrupted", getInterrupted());
+		return stats;
+	}
+
+	/**
+	 * Supplies the Deadline for @Context injection.
+	 */
+	public static class DeadlineSupplier implements Supplier<Deadline> {
+
+		@Inject
+		private ContainerRequest request;
+
+		@Override
+		public Deadline get() {
+			return Deadline.of(request);
+		}
+	}
+
+}
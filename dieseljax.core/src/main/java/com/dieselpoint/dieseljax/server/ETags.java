@@ -0,0 +1,298 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import com.dieselpoint.dieseljax.util.XXHash64;
+
+/**
+ * Conditional GET support. Enable it with Server.Builder.etags(maxBodySize).
+ * <p>
+ * For a GET that returns 200 with an entity and no ETag of its own, the
+ * Interceptor buffers the serialized body, hashes it with xxHash64, and sends
+ * the hash as a strong ETag. If the request's If-None-Match matches, it sends
+ * 304 with no body instead. The body is still built and serialized, but not
+ * sent. Bodies larger than the buffer limit are streamed as usual and get no
+ * ETag.
+ * <p>
+ * A resource that can tell cheaply whether its data has changed, from a version
+ * number or a modification time, can skip building the body entirely:
+ *
+ * <pre>
+ * &#64;GET
+ * public Response get(&#64;Context Request request) {
+ * 	Response notModified = ETags.notModified(request, store.getVersion());
+ * 	if (notModified != null) {
+ * 		return notModified;
+ * 	}
+ * 	return Response.ok(store.getItems()).build();
+ * }
+ * </pre>
+ *
+ * The ETag or Last-Modified is then added to the 200 response automatically.
+ * <p>
+ * Responses that already carry an ETag, including FileEntity responses, get
+ * If-None-Match checked against it.
+ */
+public class ETags {
+
+	private static final String TAG_PROPERTY = "dieseljax.etag.tag";
+	private static final String LAST_MODIFIED_PROPERTY = "dieseljax.etag.lastmodified";
+	private static final String STREAM_PROPERTY = "dieseljax.etag.stream";
+
+	/**
+	 * Check the request's preconditions against a version. Returns a 304 (or 412)
+	 * response to return from the resource method as is, or null if the resource
+	 * should go ahead and build the body. The version can be anything with a
+	 * toString() that changes when the data changes.
+	 */
+	public static Response notModified(Request request, Object version) {
+		return notModified(request, version, null);
+	}
+
+	/**
+	 * Check the request's preconditions against a modification time.
+	 */
+	public static Response notModified(Request request, Date lastModified) {
+		return notModified(request, null, lastModified);
+	}
+
+	/**
+	 * Check the request's preconditions against a version and a modification
+	 * time. Either may be null.
+	 */
+	public static Response notModified(Request request, Object version, Date lastModified) {
+		if (version == null && lastModified == null) {
+			// nothing to compare against, so the resource has to build the body
+			return null;
+		}
+		EntityTag tag = version == null ? null : versionTag(version);
+		Response.ResponseBuilder rb;
+		if (tag != null && lastModified != null) {
+			rb = request.evaluatePreconditions(lastModified, tag);
+		} else if (tag != null) {
+			rb = request.evaluatePreconditions(tag);
+		} else {
+			rb = request.evaluatePreconditions(lastModified);
+		}
+		if (rb != null) {
+			return rb.build();
+		}
+
+		// Jersey's Request is also the request context, so remember the validators
+		// for the response filter
+		if (request instanceof ContainerRequestContext) {
+			ContainerRequestContext context = (ContainerRequestContext) request;
+			if (tag != null) {
+				context.setProperty(TAG_PROPERTY, tag);
+			}
+			if (lastModified != null) {
+				context.setProperty(LAST_MODIFIED_PROPERTY, lastModified);
+			}
+		}
+		return null;
+	}
+
+	private static EntityTag versionTag(Object version) {
+		byte[] bytes = version.toString().getBytes(StandardCharsets.UTF_8);
+		return new EntityTag("v" + Long.toHexString(XXHash64.hash(bytes)));
+	}
+
+	/**
+	 * True if an If-None-Match header matches a strong tag, quotes included.
+	 * If-None-Match uses the weak comparison, so W/ prefixes are ignored.
+	 */
+	static boolean matches(String ifNoneMatch, String tag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		int len = ifNoneMatch.length();
+		int i = 0;
+		while (i < len) {
+			while (i < len && (ifNoneMatch.charAt(i) == ' ' || ifNoneMatch.charAt(i) == ',')) {
+				i++;
+			}
+			if (ifNoneMatch.startsWith("*", i)) {
+				return true;
+			}
+			if (ifNoneMatch.startsWith("W/", i)) {
+				i += 2;
+			}
+			if (ifNoneMatch.startsWith(tag, i)) {
+				int next = i + tag.length();
+				if (next == len || ifNoneMatch.charAt(next) == ',' || ifNoneMatch.charAt(next) == ' ') {
+					return true;
+				}
+			}
+			int comma = ifNoneMatch.indexOf(',', i);
+			if (comma < 0) {
+				break;
+			}
+			i = comma + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds ETags to responses and answers If-None-Match. Runs after the response
+	 * filters that set an ETag of their own, such as FileEntityProvider, and as
+	 * an interceptor runs outside GZipEncoder, so the hash is of the bytes that
+	 * actually go out and differs between gzipped and plain responses, as a
+	 * strong ETag should.
+	 */
+	@Priority(Priorities.HEADER_DECORATOR - 100)
+	public static class Interceptor implements ContainerResponseFilter, WriterInterceptor {
+
+		private final int maxBodySize;
+
+		/**
+		 * @param maxBodySize bodies larger than this are streamed without an ETag
+		 */
+		public Interceptor(int maxBodySize) {
+			this.maxBodySize = maxBodySize;
+		}
+
+		@Override
+		public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+			if (!request.getMethod().equals("GET") || response.getStatus() != 200 || !response.hasEntity()) {
+				return;
+			}
+			MultivaluedMap<String, Object> headers = response.getHeaders();
+
+			Object tag = request.getProperty(TAG_PROPERTY);
+			if (tag != null) {
+				headers.putSingle(HttpHeaders.ETAG, tag);
+			}
+			Object lastModified = request.getProperty(LAST_MODIFIED_PROPERTY);
+			if (lastModified != null) {
+				headers.putSingle(HttpHeaders.LAST_MODIFIED, lastModified);
+			}
+			if (tag != null || lastModified != null) {
+				// the resource already checked its preconditions
+				return;
+			}
+
+			String ifNoneMatch = request.getHeaderString(HttpHeaders.IF_NONE_MATCH);
+			Object existing = headers.getFirst(HttpHeaders.ETAG);
+			if (existing != null) {
+				String existingTag = existing instanceof EntityTag ? existing.toString() : (String) existing;
+				if (matches(ifNoneMatch, existingTag)) {
+					response.setEntity(null);
+					notModified(response);
+				}
+				return;
+			}
+
+			request.setProperty(STREAM_PROPERTY, new HashingOutputStream(response, ifNoneMatch, maxBodySize));
+		}
+
+		@Override
+		public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+			HashingOutputStream stream = (HashingOutputStream) context.getProperty(STREAM_PROPERTY);
+			if (stream != null) {
+				context.removeProperty(STREAM_PROPERTY);
+				stream.target = context.getOutputStream();
+				context.setOutputStream(stream);
+			}
+			context.proceed();
+		}
+	}
+
+	private static void notModified(ContainerResponseContext response) {
+		response.setStatus(304);
+		MultivaluedMap<String, Object> headers = response.getHeaders();
+		headers.remove(HttpHeaders.CONTENT_TYPE);
+		headers.remove(HttpHeaders.CONTENT_LENGTH);
+		headers.remove(HttpHeaders.CONTENT_ENCODING);
+	}
+
+	/**
+	 * Holds the body until it is closed, then either sends it with an ETag, or
+	 * turns the response into a 304. The headers can still change at close()
+	 * because nothing has reached the underlying stream, which is what commits
+	 * them. Once the body outgrows the limit it is passed straight through.
+	 */
+	private static class HashingOutputStream extends OutputStream {
+
+		private final ContainerResponseContext response;
+		private final String ifNoneMatch;
+		private final int maxBodySize;
+		private OutputStream target;
+		private byte[] buf = new byte[1024];
+		private int count;
+		private boolean passThrough;
+
+		HashingOutputStream(ContainerResponseContext response, String ifNoneMatch, int maxBodySize) {
+			this.response = response;
+			this.ifNoneMatch = ifNoneMatch;
+			this.maxBodySize = maxBodySize;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (passThrough) {
+				target.write(b, off, len);
+				return;
+			}
+			if (count + len > maxBodySize) {
+				passThrough = true;
+				target.write(buf, 0, count);
+				target.write(b, off, len);
+				buf = null;
+				return;
+			}
+			if (count + len > buf.length) {
+				buf = Arrays.copyOf(buf, Math.min(maxBodySize, Math.max(buf.length * 2, count + len)));
+			}
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// flushing would commit the headers
+			if (passThrough) {
+				target.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!passThrough && buf != null) {
+				String tag = "\"" + Long.toHexString(XXHash64.hash(buf, 0, count, 0)) + "\"";
+				if (matches(ifNoneMatch, tag)) {
+					notModified(response);
+					response.getHeaders().putSingle(HttpHeaders.ETAG, tag);
+				} else {
+					response.getHeaders().putSingle(HttpHeaders.ETAG, tag);
+					target.write(buf, 0, count);
+				}
+				buf = null;
+			}
+			target.close();
+		}
+	}
+
+}
@@ -8,6 +8,7 @@ import javax.ws.rs.NotAllowedException;
 import javax.ws.rs.NotAuthorizedException;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.ext.ExceptionMapper;
@@ -27,6 +28,9 @@ public class ExceptionMappers {
 		app.register(NotAllowedExceptionMapper.class);
 		app.register(NotAuthorizedExceptionMapper.class);
 		app.register(NotFoundExceptionMapper.class);
+		app.register(TooLargeExceptionMapper.class);
+		app.register(DeadlineExceededExceptionMapper.class);
+		app.register(QueueFullExceptionMapper.class);
 		app.register(InvalidFormatExceptionMapper.class);
 		app.register(OtherExceptionMapper.class);
 	}
@@ -47,7 +51,7 @@ public class ExceptionMappers {
 			String msgs = sb.toString();
 			
 			logger.error(e.getMessage() + " " + msgs);
-			return Message.failureResponse(msgs, Status.UNAUTHORIZED);
+			return JfrEvents.exceptionMapped(this, e, Message.failureResponse(msgs, Status.UNAUTHORIZED));
 		}
 	}
 
@@ -60,7 +64,7 @@ public class ExceptionMappers {
 		public Response toResponse(BadRequestException e) {
 			Status status = Status.fromStatusCode(e.getResponse().getStatus());
 			logger.error(e.getMessage()); // log it, but not the whole stack trace
-			return Message.failureResponse(unwrapException(e), status);
+			return JfrEvents.exceptionMapped(this, e, Message.failureResponse(unwrapException(e), status));
 		}
 	}
 	
@@ -78,7 +82,7 @@ public class ExceptionMappers {
 				logger.error(e.getMessage(), e);
 			}
 			
-			return Message.failureResponse(unwrapException(e), status);
+			return JfrEvents.exceptionMapped(this, e, Message.failureResponse(unwrapException(e), status));
 		}
 	}
 
@@ -87,7 +91,56 @@ public class ExceptionMappers {
 		@Override
 		public Response toResponse(NotFoundException e) {
 			Status status = Status.fromStatusCode(e.getResponse().getStatus());
-			return Message.failureResponse(e, status);
+			return JfrEvents.exceptionMapped(this, e, Message.failureResponse(e, status));
+		}
+	}
+
+	/**
+	 * Request body over Builder.maxRequestBodySize(). The client's fault, so no
+	 * stack trace.
+	 */
+	public static class TooLargeExceptionMapper implements ExceptionMapper<BodyLimit.TooLargeException> {
+
+		Logger logger = LoggerFactory.getLogger(this.getClass());
+
+		@Override
+		public Response toResponse(BodyLimit.TooLargeException e) {
+			logger.warn(e.getMessage());
+			return JfrEvents.exceptionMapped(this, e,
+					Message.failureResponse(e.getMessage(), Status.REQUEST_ENTITY_TOO_LARGE));
+		}
+	}
+
+	/**
+	 * Request deadline passed, 503 or 504. Expected under overload, so no stack
+	 * trace.
+	 */
+	public static class DeadlineExceededExceptionMapper implements ExceptionMapper<Deadline.ExceededException> {
+
+		Logger logger = LoggerFactory.getLogger(this.getClass());
+
+		@Override
+		public Response toResponse(Deadline.ExceededException e) {
+			Status status = Status.fromStatusCode(e.getResponse().getStatus());
+			logger.warn(e.getMessage());
+			return JfrEvents.exceptionMapped(this, e, Message.failureResponse(e.getMessage(), status));
+		}
+	}
+
+	/**
+	 * PriorityScheduler queue full, 503 with Retry-After. Expected under
+	 * overload, so no stack trace.
+	 */
+	public static class QueueFullExceptionMapper implements ExceptionMapper<PriorityScheduler.QueueFullException> {
+
+		Logger logger = LoggerFactory.getLogger(this.getClass());
+
+		@Override
+		public Response toResponse(PriorityScheduler.QueueFullException e) {
+			logger.warn(e.getMessage());
+			Response response = Message.failureResponse(e.getMessage(), Status.SERVICE_UNAVAILABLE);
+			return JfrEvents.exceptionMapped(this, e, Response.fromResponse(response)
+					.header(HttpHeaders.RETRY_AFTER, e.getResponse().getHeaderString(HttpHeaders.RETRY_AFTER)).build());
 		}
 	}
 
@@ -100,7 +153,8 @@ public class ExceptionMappers {
 		@Override
 		public Response toResponse(InvalidFormatException e) {
 			// originalMessage() omits location information
-			return Message.failureResponse(e.getOriginalMessage(), Status.BAD_REQUEST);
+			return JfrEvents.exceptionMapped(this, e,
+					Message.failureResponse(e.getOriginalMessage(), Status.BAD_REQUEST));
 		}
 	}
 	
@@ -110,8 +164,15 @@ public class ExceptionMappers {
 
 		@Override
 		public Response toResponse(Throwable t) {
+			Throwable cause = unwrapException(t);
+			if (cause instanceof BodyLimit.TooLargeException) {
+				// readers like Jackson wrap what the entity stream throws
+				logger.warn(cause.getMessage());
+				return JfrEvents.exceptionMapped(this, t,
+						Message.failureResponse(cause.getMessage(), Status.REQUEST_ENTITY_TOO_LARGE));
+			}
 			logger.error(t.toString(), t);
-			return Message.failureResponse(t, Status.INTERNAL_SERVER_ERROR);
+			return JfrEvents.exceptionMapped(this, t, Message.failureResponse(t, Status.INTERNAL_SERVER_ERROR));
 		}
 	}
 
@@ -123,19 +184,21 @@ public class ExceptionMappers {
 		public Response toResponse(ValidationException exception) {
 			if (exception instanceof ConstraintViolationException) {
 
-				StringBuffer buf = new StringBuffer();
+				StringBuilder sb = new StringBuilder(64);
 				ConstraintViolationException cve = (ConstraintViolationException) exception;
 				for (ConstraintViolation<?> cv : cve.getConstraintViolations()) {
-					if (buf.length() > 0) {
-						buf.append(", ");
+					if (sb.length() > 0) {
+						sb.append(", ");
 					}
-					buf.append(cv.getMessage());
+					sb.append(cv.getMessage());
 				}
-				return Message.failureResponse(buf.toString(), Status.BAD_REQUEST);
+				return JfrEvents.exceptionMapped(this, exception,
+						Message.failureResponse(sb.toString(), Status.BAD_REQUEST));
 
 			} else {
 				logger.error(exception.getMessage(), exception);
-				return Message.failureResponse(unwrapException(exception), Status.INTERNAL_SERVER_ERROR);
+				return JfrEvents.exceptionMapped(this, exception,
+						Message.failureResponse(unwrapException(exception), Status.INTERNAL_SERVER_ERROR));
 			}
 		}
 
@@ -146,8 +209,9 @@ public class ExceptionMappers {
 		@Override
 		public Response toResponse(NotAllowedException e) {
 			// gets called if you try to do a GET and there are no methods marked GET (for example)
-			return Message.failureResponse("The method you used on this resource or path is not implemented: " + e.getMessage(),
-					Status.METHOD_NOT_ALLOWED);
+			return JfrEvents.exceptionMapped(this, e,
+					Message.failureResponse("The method you used on this resource or path is not implemented: " + e.getMessage(),
+							Status.METHOD_NOT_ALLOWED));
 		}
 	}
 
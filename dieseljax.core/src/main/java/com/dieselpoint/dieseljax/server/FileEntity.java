@@ -0,0 +1,111 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Return this from a resource method to send a file, or a region of a file.
+ * The server writes it without copying it through the heap, and honors Range
+ * and If-Range headers, including multiple ranges. See FileEntityProvider.
+ * <p>
+ * A FileEntity holds no per-request state, so one can be cached and returned
+ * to many requests at once.
+ * <p>
+ * File responses are never compressed, because compression would need the bytes
+ * to pass through the heap. Serve compressible files as static files if that
+ * matters.
+ */
+public class FileEntity {
+
+	private final Path path;
+	private final long offset;
+	private final long length;
+	private final long lastModified;
+	private MediaType mediaType;
+
+	/**
+	 * Send the whole file.
+	 */
+	public FileEntity(File file) {
+		this(file.toPath());
+	}
+
+	/**
+	 * Send the whole file.
+	 */
+	public FileEntity(Path path) {
+		this(path, 0, size(path));
+	}
+
+	/**
+	 * Send a region of a file, for example one blob out of a larger file. To the
+	 * client the region looks like a complete resource, so Range requests are
+	 * relative to the start of the region.
+	 */
+	public FileEntity(Path path, long offset, long length) {
+		this.path = path;
+		this.offset = offset;
+		this.length = length;
+		try {
+			this.lastModified = Files.getLastModifiedTime(path).toMillis();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static long size(Path path) {
+		try {
+			return Files.size(path);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Set the Content-Type. Default is the type the resource method @Produces, or
+	 * application/octet-stream if that is a wildcard.
+	 */
+	public FileEntity type(MediaType mediaType) {
+		this.mediaType = mediaType;
+		return this;
+	}
+
+	public FileEntity type(String mediaType) {
+		return type(MediaType.valueOf(mediaType));
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public MediaType getMediaType() {
+		return mediaType;
+	}
+
+	/**
+	 * A strong validator for If-Range. Changes when the file's modification time,
+	 * the region or the size changes.
+	 */
+	public String getETag() {
+		return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(offset) + "-"
+				+ Long.toHexString(length) + "\"";
+	}
+
+}
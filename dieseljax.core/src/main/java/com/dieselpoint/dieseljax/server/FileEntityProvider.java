@@ -0,0 +1,389 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Priority;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.handler.gzip.GzipHttpOutputInterceptor;
+import org.glassfish.jersey.message.internal.CommittingOutputStream;
+import org.glassfish.jersey.server.ContainerRequest;
+
+/**
+ * Writes FileEntity responses. Server.Builder always registers it.
+ * <p>
+ * As a response filter it adds Accept-Ranges, ETag, Last-Modified and
+ * Content-Length, and turns a GET with a satisfiable Range header into a 206
+ * response, either a single range or multipart/byteranges. If-Range is honored
+ * with either the ETag or the Last-Modified date. A Range header that is
+ * malformed, has too many ranges, or asks for more bytes than the file has is
+ * ignored and the whole file is sent, which the spec allows.
+ * <p>
+ * As a message body writer it bypasses Jersey's entity stream once the headers
+ * are committed, and hands memory-mapped regions of the file directly to
+ * Jetty's HttpOutput, so the bytes never get copied into the Java heap. If the
+ * response isn't going to Jetty, it falls back to FileChannel.transferTo().
+ * <p>
+ * As a writer interceptor it stops Jersey's gzip encoder from wrapping the
+ * stream, because compression would defeat the point. Jetty's GzipHandler is
+ * switched off for the response too.
+ */
+@Priority(Priorities.HEADER_DECORATOR)
+public class FileEntityProvider implements ContainerResponseFilter, WriterInterceptor, MessageBodyWriter<FileEntity> {
+
+	private static final int MAX_RANGES = 16;
+
+	// regions this small are cheaper to read than to map
+	private static final int SMALL_REGION = 16 * 1024;
+
+	// map large files a window at a time to limit address space use
+	private static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+	private static final long[] UNSATISFIABLE = new long[0];
+
+	private static final String RANGES_PROPERTY = "dieseljax.fileRanges";
+
+	@Context
+	private HttpServletResponse servletResponse;
+
+	@Inject
+	private Provider<ContainerRequest> containerRequest;
+
+	/**
+	 * What to send for a request with a satisfiable Range header. Kept in a
+	 * request property, not on the entity, which may be shared between
+	 * requests.
+	 */
+	private static class Ranges {
+
+		// pairs of start, end (inclusive), relative to the entity's offset
+		final long[] ranges;
+		// for a multipart response, the delimiter and headers to write before
+		// each range, plus the closing delimiter; otherwise null
+		final byte[][] partHeaders;
+
+		Ranges(long[] ranges, byte[][] partHeaders) {
+			this.ranges = ranges;
+			this.partHeaders = partHeaders;
+		}
+	}
+
+	/*
+	 * ContainerResponseFilter
+	 */
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		Object entity = response.getEntity();
+		if (!(entity instanceof FileEntity)) {
+			return;
+		}
+		FileEntity file = (FileEntity) entity;
+		MultivaluedMap<String, Object> headers = response.getHeaders();
+
+		MediaType type = file.getMediaType();
+		if (type == null) {
+			type = response.getMediaType();
+			if (type == null || type.isWildcardType() || type.isWildcardSubtype()) {
+				type = MediaType.APPLICATION_OCTET_STREAM_TYPE;
+			}
+		}
+		headers.putSingle(HttpHeaders.CONTENT_TYPE, type);
+		headers.putSingle("Accept-Ranges", "bytes");
+		if (!headers.containsKey(HttpHeaders.ETAG)) {
+			headers.putSingle(HttpHeaders.ETAG, file.getETag());
+		}
+		if (!headers.containsKey(HttpHeaders.LAST_MODIFIED)) {
+			headers.putSingle(HttpHeaders.LAST_MODIFIED, new Date(file.getLastModified()));
+		}
+
+		long length = file.getLength();
+		String range = request.getHeaderString("Range");
+		if (range == null || response.getStatus() != 200 || !request.getMethod().equals("GET")) {
+			headers.putSingle(HttpHeaders.CONTENT_LENGTH, length);
+			return;
+		}
+
+		String ifRange = request.getHeaderString("If-Range");
+		if (ifRange != null && !ifRangeMatches(ifRange, file)) {
+			headers.putSingle(HttpHeaders.CONTENT_LENGTH, length);
+			return;
+		}
+
+		long[] ranges = parseRanges(range, length);
+		if (ranges == null) {
+			headers.putSingle(HttpHeaders.CONTENT_LENGTH, length);
+			return;
+		}
+		if (ranges == UNSATISFIABLE) {
+			headers.remove(HttpHeaders.CONTENT_TYPE);
+			headers.putSingle("Content-Range", "bytes */" + length);
+			response.setStatus(416);
+			response.setEntity(Message.failure(416, "Range not satisfiable: " + range), null,
+					MediaType.APPLICATION_JSON_TYPE);
+			return;
+		}
+
+		response.setStatus(206);
+		if (ranges.length == 2) {
+			headers.putSingle("Content-Range", "bytes " + ranges[0] + "-" + ranges[1] + "/" + length);
+			headers.putSingle(HttpHeaders.CONTENT_LENGTH, ranges[1] - ranges[0] + 1);
+			request.setProperty(RANGES_PROPERTY, new Ranges(ranges, null));
+			return;
+		}
+
+		// multipart/byteranges. Build the part headers now so the length is known
+		// before anything is written.
+		String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong())
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong());
+		int parts = ranges.length / 2;
+		byte[][] partHeaders = new byte[parts + 1][];
+		long contentLength = 0;
+		for (int i = 0; i < parts; i++) {
+			long start = ranges[i * 2];
+			long end = ranges[i * 2 + 1];
+			String partHeader = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\nContent-Type: " + type
+					+ "\r\nContent-Range: bytes " + start + "-" + end + "/" + length + "\r\n\r\n";
+			partHeaders[i] = partHeader.getBytes(StandardCharsets.US_ASCII);
+			contentLength += partHeaders[i].length + end - start + 1;
+		}
+		partHeaders[parts] = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		contentLength += partHeaders[parts].length;
+		request.setProperty(RANGES_PROPERTY, new Ranges(ranges, partHeaders));
+
+		headers.putSingle(HttpHeaders.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+		headers.putSingle(HttpHeaders.CONTENT_LENGTH, contentLength);
+	}
+
+	private static boolean ifRangeMatches(String ifRange, FileEntity file) {
+		if (ifRange.startsWith("\"")) {
+			// weak validators never match, so no need to check for W/
+			return ifRange.equals(file.getETag());
+		}
+		try {
+			long millis = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()
+					.toEpochMilli();
+			// http dates have one-second resolution
+			return millis / 1000 == file.getLastModified() / 1000;
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Parse a Range header into pairs of start, end (inclusive). Returns null if
+	 * the header should be ignored, or UNSATISFIABLE if none of the ranges overlap
+	 * the file.
+	 */
+	static long[] parseRanges(String header, long length) {
+		if (!header.startsWith("bytes=")) {
+			return null;
+		}
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+
+		long[] ranges = new long[specs.length * 2];
+		int count = 0;
+		long total = 0;
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				int dash = spec.indexOf('-');
+				if (dash < 0) {
+					return null;
+				}
+				long start;
+				long end;
+				if (dash == 0) {
+					// suffix range, the last n bytes
+					long suffix = Long.parseLong(spec.substring(1));
+					if (suffix == 0) {
+						continue;
+					}
+					start = Math.max(0, length - suffix);
+					end = length - 1;
+				} else {
+					start = Long.parseLong(spec.substring(0, dash));
+					if (dash == spec.length() - 1) {
+						end = length - 1;
+					} else {
+						end = Long.parseLong(spec.substring(dash + 1));
+						if (end < start) {
+							return null;
+						}
+						end = Math.min(end, length - 1);
+					}
+				}
+				if (start >= length) {
+					continue;
+				}
+				ranges[count++] = start;
+				ranges[count++] = end;
+				total += end - start + 1;
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		if (count == 0) {
+			return UNSATISFIABLE;
+		}
+		if (total > length) {
+			// overlapping ranges, which can be used to amplify a small request
+			return null;
+		}
+		return Arrays.copyOf(ranges, count);
+	}
+
+	/*
+	 * WriterInterceptor
+	 */
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+		if (!(context.getEntity() instanceof FileEntity)) {
+			context.proceed();
+			return;
+		}
+		FileEntity file = (FileEntity) context.getEntity();
+		Ranges ranges = (Ranges) context.getProperty(RANGES_PROPERTY);
+
+		// EncodingFilter may have picked gzip. Removing the header keeps
+		// GZipEncoder, which runs after this, from wrapping the stream.
+		context.getHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+
+		// if no outer interceptor has wrapped the entity stream, commit the
+		// headers through it and then write straight to Jetty. Requests
+		// dispatched in-process have no servlet response to write to.
+		OutputStream entityStream = context.getOutputStream();
+		if (entityStream instanceof CommittingOutputStream && servletResponse != null
+				&& context.getProperty(InProcessClient.IN_PROCESS_PROPERTY) == null) {
+			((CommittingOutputStream) entityStream).commit();
+			ServletOutputStream servletOut = servletResponse.getOutputStream();
+			if (servletOut instanceof HttpOutput) {
+				HttpOutput httpOut = (HttpOutput) servletOut;
+				if (httpOut.getInterceptor() instanceof GzipHttpOutputInterceptor) {
+					((GzipHttpOutputInterceptor) httpOut.getInterceptor()).noCompression();
+				}
+				writeFile(file, ranges, httpOut, httpOut);
+				return;
+			}
+		}
+		context.proceed();
+	}
+
+	/*
+	 * MessageBodyWriter
+	 */
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return FileEntity.class.isAssignableFrom(type);
+	}
+
+	@Override
+	public long getSize(FileEntity file, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType) {
+		return -1;
+	}
+
+	@Override
+	public void writeTo(FileEntity file, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+			throws IOException, WebApplicationException {
+
+		writeFile(file, (Ranges) containerRequest.get().getProperty(RANGES_PROPERTY), entityStream, null);
+	}
+
+	private static void writeFile(FileEntity file, Ranges r, OutputStream out, HttpOutput httpOut)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(file.getPath(), StandardOpenOption.READ)) {
+			if (r == null) {
+				writeRegion(channel, file.getOffset(), file.getLength(), out, httpOut);
+				return;
+			}
+			long[] ranges = r.ranges;
+			byte[][] partHeaders = r.partHeaders;
+			for (int i = 0; i < ranges.length; i += 2) {
+				if (partHeaders != null) {
+					out.write(partHeaders[i / 2]);
+				}
+				writeRegion(channel, file.getOffset() + ranges[i], ranges[i + 1] - ranges[i] + 1, out, httpOut);
+			}
+			if (partHeaders != null) {
+				out.write(partHeaders[partHeaders.length - 1]);
+			}
+		}
+	}
+
+	private static void writeRegion(FileChannel channel, long position, long length, OutputStream out,
+			HttpOutput httpOut) throws IOException {
+
+		if (httpOut == null) {
+			WritableByteChannel target = Channels.newChannel(out);
+			while (length > 0) {
+				long n = channel.transferTo(position, length, target);
+				if (n <= 0) {
+					throw new EOFException("File is shorter than expected");
+				}
+				position += n;
+				length -= n;
+			}
+			return;
+		}
+
+		if (length <= SMALL_REGION) {
+			ByteBuffer buf = ByteBuffer.allocate((int) length);
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, position + buf.position()) < 0) {
+					throw new EOFException("File is shorter than expected");
+				}
+			}
+			buf.flip();
+			httpOut.write(buf);
+			return;
+		}
+
+		while (length > 0) {
+			long window = Math.min(length, MAP_WINDOW);
+			httpOut.write(channel.map(FileChannel.MapMode.READ_ONLY, position, window));
+			position += window;
+			length -= window;
+		}
+	}
+
+}
@@ -0,0 +1,243 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.SecurityContext;
+
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ContainerResponse;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Calls the server's own resources without a socket. Get one from
+ * Server.inProcessClient() after the server has started.
+ * <p>
+ * Requests are handed straight to the Jersey ApplicationHandler behind the
+ * ServletContainer, with the body in a byte array, and the response is
+ * collected in another. They run the same filters, interceptors, exception
+ * mappers and JSON provider as a request from the network. What they skip is
+ * everything outside Jersey: the socket, HTTP parsing, Jetty's gzip, servlet
+ * filters and the request log. Resources that inject HttpServletRequest or
+ * HttpServletResponse won't have them.
+ * <p>
+ * Paths are relative to the service context path, and one that has a scheme
+ * or host, or uses .. to leave it, gets an IllegalArgumentException. A client
+ * is thread-safe, and the request runs on the calling thread.
+ *
+ * <pre>
+ * InProcessClient client = server.inProcessClient();
+ * Item item = client.get("/items/3").readEntity(Item.class);
+ * </pre>
+ */
+public class InProcessClient {
+
+	/**
+	 * Set on in-process requests, for providers that need to know they are not
+	 * running inside a servlet.
+	 */
+	static final String IN_PROCESS_PROPERTY = "dieseljax.inprocess";
+
+	private final Supplier<ApplicationHandler> handler;
+	private final URI baseUri;
+	private final ObjectMapper objectMapper;
+
+	InProcessClient(Supplier<ApplicationHandler> handler, URI baseUri, ObjectMapper objectMapper) {
+		this.handler = handler;
+		this.baseUri = baseUri;
+		this.objectMapper = objectMapper;
+	}
+
+	public Response get(String path) {
+		return request("GET", path, null, null);
+	}
+
+	public Response delete(String path) {
+		return request("DELETE", path, null, null);
+	}
+
+	/**
+	 * POST an entity. See request() for how it is sent.
+	 */
+	public Response post(String path, Object entity) {
+		return request("POST", path, null, entity);
+	}
+
+	public Response put(String path, Object entity) {
+		return request("PUT", path, null, entity);
+	}
+
+	/**
+	 * Send a request. The entity may be null, a byte[] or String sent as is, or
+	 * any other object, which is sent as JSON. The Content-Type defaults to
+	 * application/json, or text/plain for a String.
+	 */
+	public Response request(String method, String path, Map<String, String> headers, Object entity) {
+		MultivaluedMap<String, String> h = new MultivaluedHashMap<>();
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				h.putSingle(header.getKey(), header.getValue());
+			}
+		}
+		byte[] body = null;
+		if (entity != null) {
+			String contentType = MediaType.APPLICATION_JSON;
+			if (entity instanceof byte[]) {
+				body = (byte[]) entity;
+			} else if (entity instanceof String) {
+				body = ((String) entity).getBytes(StandardCharsets.UTF_8);
+				contentType = MediaType.TEXT_PLAIN;
+			} else {
+				try {
+					body = objectMapper.writeValueAsBytes(entity);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			if (!h.containsKey(HttpHeaders.CONTENT_TYPE)) {
+				h.putSingle(HttpHeaders.CONTENT_TYPE, contentType);
+			}
+		}
+		try {
+			return send(baseUri, null, method, path, h, body);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Run one request through Jersey. A null security context means an
+	 * anonymous request. Batch uses this directly to pass along the batch
+	 * request's base URI, security context and headers.
+	 */
+	Response send(URI baseUri, SecurityContext securityContext, String method, String path,
+			MultivaluedMap<String, String> headers, byte[] body) throws InterruptedException {
+		ApplicationHandler handler = this.handler.get();
+		ContainerRequest req = new ContainerRequest(baseUri, resolve(baseUri, path), method.toUpperCase(),
+				securityContext, new MapPropertiesDelegate());
+		req.setProperty(IN_PROCESS_PROPERTY, Boolean.TRUE);
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			req.getHeaders().addAll(header.getKey(), header.getValue());
+		}
+		if (body != null) {
+			req.setEntityStream(new ByteArrayInputStream(body));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ContainerResponse response;
+		try {
+			response = handler.apply(req, out).get();
+		} catch (ExecutionException e) {
+			// exception mappers normally turn errors into responses, so this is
+			// something that escaped them
+			throw new RuntimeException(ExceptionMappers.unwrapException(e));
+		}
+		return new Response(response.getStatus(), response.getStringHeaders(), out.toByteArray(), objectMapper);
+	}
+
+	/**
+	 * Resolve a path against the base uri. Throws IllegalArgumentException if
+	 * the path has a scheme or host, or if after removing . and .. segments it
+	 * is no longer under the base uri.
+	 */
+	static URI resolve(URI baseUri, String path) {
+		String relative = path.startsWith("/") ? path.substring(1) : path;
+		URI ref = URI.create(relative);
+		if (ref.getScheme() != null || ref.getRawAuthority() != null) {
+			throw new IllegalArgumentException("Path must be relative: " + path);
+		}
+		URI base = baseUri.normalize();
+		String basePath = base.getRawPath().endsWith("/") ? base.getRawPath() : base.getRawPath() + "/";
+		URI uri = base.resolve(basePath).resolve(ref).normalize();
+		if (uri.getRawPath() == null || !uri.getRawPath().startsWith(basePath)) {
+			throw new IllegalArgumentException("Path is outside the service context path: " + path);
+		}
+		return uri;
+	}
+
+	/**
+	 * A response, with the body fully read.
+	 */
+	public static class Response {
+
+		private final int status;
+		private final MultivaluedMap<String, String> headers;
+		private final byte[] body;
+		private final ObjectMapper objectMapper;
+
+		Response(int status, MultivaluedMap<String, String> headers, byte[] body, ObjectMapper objectMapper) {
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+			this.objectMapper = objectMapper;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public MultivaluedMap<String, String> getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * Return the first value of a header, or null.
+		 */
+		public String getHeaderString(String name) {
+			return headers.getFirst(name);
+		}
+
+		/**
+		 * Return the Content-Type, or null if there isn't one.
+		 */
+		public MediaType getMediaType() {
+			String contentType = headers.getFirst(HttpHeaders.CONTENT_TYPE);
+			return contentType == null ? null : MediaType.valueOf(contentType);
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public String getBodyAsString() {
+			return new String(body, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Deserialize a JSON body.
+		 */
+		public <T> T readEntity(Class<T> type) {
+			try {
+				return objectMapper.readValue(body, type);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		public <T> T readEntity(TypeReference<T> type) {
+			try {
+				return objectMapper.readValue(body, type);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+}
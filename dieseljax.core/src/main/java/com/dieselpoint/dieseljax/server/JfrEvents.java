@@ -0,0 +1,445 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.annotation.Priority;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.eclipse.jetty.server.Request;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+import org.glassfish.jersey.uri.UriTemplate;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events for requests, exception mapping, CORS decisions and
+ * gzip encoding. Server.Builder installs the request and gzip hooks only when
+ * AVAILABLE is true. ExceptionMappers and CorsFilter always call theirs.
+ * <p>
+ * All events are disabled by default. Enable them with the settings file
+ * etc/dieseljax.jfc, which also sets thresholds, for example:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=settings=etc/dieseljax.jfc,filename=app.jfr ...
+ * </pre>
+ *
+ * While an event is disabled its hook does one check of a static EventType and
+ * nothing else, so no event objects get allocated. On a runtime without the
+ * jdk.jfr module, such as a jlink image that leaves it out, the hooks are
+ * inert.
+ */
+public class JfrEvents {
+
+	private static final String TEMPLATE_ATTRIBUTE = "dieseljax.jfr.template";
+	private static final String GZIP_PROPERTY = "dieseljax.jfr.gzip";
+
+	/**
+	 * True if the runtime has the jdk.jfr module. Without it the hooks do
+	 * nothing, and Server.Builder doesn't install the ones it can leave out.
+	 */
+	public static final boolean AVAILABLE = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+	/**
+	 * The event types. In a class of their own so that nothing from jdk.jfr
+	 * gets loaded unless AVAILABLE is true.
+	 */
+	private static class Types {
+		static final EventType HTTP_REQUEST = EventType.getEventType(HttpRequestEvent.class);
+		static final EventType EXCEPTION_MAPPED = EventType.getEventType(ExceptionMappedEvent.class);
+		static final EventType CORS_DECISION = EventType.getEventType(CorsDecisionEvent.class);
+		static final EventType GZIP_ENCODING = EventType.getEventType(GzipEncodingEvent.class);
+	}
+
+	@Name("dieseljax.HttpRequest")
+	@Label("HTTP Request")
+	@Category({ "dieseljax", "HTTP" })
+	@Description("A request handled by the server, from the first filter until the response is written")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class HttpRequestEvent extends Event {
+
+		@Label("Method")
+		String method;
+
+		@Label("Path")
+		String path;
+
+		@Label("Path Template")
+		@Description("The matched resource path template, or the path if no resource matched")
+		String pathTemplate;
+
+		@Label("Status")
+		int status;
+
+		@Label("Bytes Written")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("dieseljax.ExceptionMapped")
+	@Label("Exception Mapped")
+	@Category({ "dieseljax", "HTTP" })
+	@Description("An exception turned into a response by one of the standard ExceptionMappers")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class ExceptionMappedEvent extends Event {
+
+		@Label("Mapper")
+		String mapper;
+
+		@Label("Exception Class")
+		Class<?> exceptionClass;
+
+		@Label("Message")
+		String message;
+
+		@Label("Status")
+		int status;
+	}
+
+	@Name("dieseljax.CorsDecision")
+	@Label("CORS Decision")
+	@Category({ "dieseljax", "HTTP" })
+	@Description("CorsFilter allowing or rejecting a cross-origin request")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class CorsDecisionEvent extends Event {
+
+		@Label("Origin")
+		String origin;
+
+		@Label("Method")
+		String method;
+
+		@Label("Preflight")
+		boolean preflight;
+
+		@Label("Allowed")
+		boolean allowed;
+	}
+
+	@Name("dieseljax.GzipEncoding")
+	@Label("Gzip Encoding")
+	@Category({ "dieseljax", "HTTP" })
+	@Description("Writing a gzip-encoded response body. The duration includes serialization and socket writes; compression time is the part spent in the compressor.")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class GzipEncodingEvent extends Event {
+
+		@Label("Path")
+		String path;
+
+		@Label("Compression Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long compressionTime;
+
+		@Label("Uncompressed Bytes")
+		@DataAmount
+		long uncompressedBytes;
+
+		@Label("Compressed Bytes")
+		@DataAmount
+		long compressedBytes;
+	}
+
+	/**
+	 * Record an exception mapping and return the response, so a mapper can wrap
+	 * its return value.
+	 */
+	static Response exceptionMapped(ExceptionMapper<?> mapper, Throwable e, Response response) {
+		if (AVAILABLE && Types.EXCEPTION_MAPPED.isEnabled()) {
+			ExceptionMappedEvent event = new ExceptionMappedEvent();
+			event.mapper = mapper.getClass().getSimpleName();
+			event.exceptionClass = e.getClass();
+			event.message = e.getMessage();
+			event.status = response.getStatus();
+			event.commit();
+		}
+		return response;
+	}
+
+	static void corsDecision(String origin, String method, boolean allowed) {
+		if (AVAILABLE && Types.CORS_DECISION.isEnabled()) {
+			CorsDecisionEvent event = new CorsDecisionEvent();
+			event.origin = origin;
+			event.method = method;
+			event.preflight = method.equalsIgnoreCase("OPTIONS");
+			event.allowed = allowed;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Times requests and emits HttpRequestEvent. Installed on every path.
+	 */
+	public static class RequestFilter implements Filter {
+
+		@Override
+		public void init(FilterConfig filterConfig) {
+		}
+
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+				throws IOException, ServletException {
+			if (!AVAILABLE || !Types.HTTP_REQUEST.isEnabled()) {
+				chain.doFilter(request, response);
+				return;
+			}
+			HttpRequestEvent event = new HttpRequestEvent();
+			event.begin();
+			try {
+				chain.doFilter(request, response);
+			} finally {
+				event.end();
+				if (event.shouldCommit()) {
+					HttpServletRequest req = (HttpServletRequest) request;
+					event.method = req.getMethod();
+					event.path = req.getRequestURI();
+					Object template = req.getAttribute(TEMPLATE_ATTRIBUTE);
+					event.pathTemplate = template == null ? event.path : (String) template;
+					event.status = ((HttpServletResponse) response).getStatus();
+					Request baseRequest = Request.getBaseRequest(request);
+					if (baseRequest != null) {
+						event.bytes = baseRequest.getResponse().getHttpChannel().getBytesWritten();
+					}
+					event.commit();
+				}
+			}
+		}
+
+		@Override
+		public void destroy() {
+		}
+	}
+
+	/**
+	 * Return the full path template saved by MatchListener, such as
+	 * /api/orders/{id}, or null if no resource matched.
+	 */
+	static String pathTemplate(HttpServletRequest request) {
+		return (String) request.getAttribute(TEMPLATE_ATTRIBUTE);
+	}
+
+	/**
+	 * Saves the matched path template for RequestFilter and AccessLog. Gets no
+	 * per-request listener unless HttpRequestEvent is enabled, or it was
+	 * created to always save the template.
+	 */
+	public static class MatchListener implements ApplicationEventListener, RequestEventListener {
+
+		private final boolean always;
+
+		public MatchListener() {
+			this(false);
+		}
+
+		/**
+		 * @param always save the template on every request, not only while
+		 *               HttpRequestEvent is enabled
+		 */
+		public MatchListener(boolean always) {
+			this.always = always;
+		}
+
+		@Override
+		public void onEvent(ApplicationEvent event) {
+		}
+
+		@Override
+		public RequestEventListener onRequest(RequestEvent requestEvent) {
+			return always || (AVAILABLE && Types.HTTP_REQUEST.isEnabled()) ? this : null;
+		}
+
+		@Override
+		public void onEvent(RequestEvent event) {
+			if (event.getType() != RequestEvent.Type.REQUEST_MATCHED) {
+				return;
+			}
+			// most recently matched first
+			List<UriTemplate> templates = event.getUriInfo().getMatchedTemplates();
+			// start with the servlet path, which the base uri ends with
+			String base = event.getUriInfo().getBaseUri().getRawPath();
+			StringBuilder sb = new StringBuilder(base);
+			for (int i = templates.size() - 1; i >= 0; i--) {
+				String t = templates.get(i).getTemplate();
+				if (sb.length() > 0 && sb.charAt(sb.length() - 1) == '/' && t.startsWith("/")) {
+					sb.append(t, 1, t.length());
+				} else {
+					sb.append(t);
+				}
+			}
+			event.getContainerRequest().setProperty(TEMPLATE_ATTRIBUTE, sb.toString());
+		}
+	}
+
+	/**
+	 * Per-response gzip counters shared by the two interceptors.
+	 */
+	private static class GzipTiming {
+		final GzipEncodingEvent event = new GzipEncodingEvent();
+		long downstreamNanos;
+	}
+
+	/**
+	 * Runs outside GZipEncoder, so its stream sees compressed bytes on their way
+	 * to the socket. Starts the event.
+	 */
+	@Priority(Priorities.ENTITY_CODER - 1)
+	public static class GzipOuter implements WriterInterceptor {
+
+		@Context
+		private UriInfo uriInfo;
+
+		@Override
+		public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+			if (AVAILABLE && Types.GZIP_ENCODING.isEnabled()) {
+				Object encoding = context.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+				if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+					GzipTiming timing = new GzipTiming();
+					timing.event.begin();
+					timing.event.path = uriInfo.getPath();
+					context.setProperty(GZIP_PROPERTY, timing);
+					context.setOutputStream(new CompressedStream(context.getOutputStream(), timing));
+				}
+			}
+			context.proceed();
+		}
+	}
+
+	/**
+	 * Runs inside GZipEncoder, so its stream sees the serialized bytes going into
+	 * the compressor. Commits the event when the stream closes.
+	 */
+	@Priority(Priorities.ENTITY_CODER + 1)
+	public static class GzipInner implements WriterInterceptor {
+
+		@Override
+		public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+			GzipTiming timing = (GzipTiming) context.getProperty(GZIP_PROPERTY);
+			if (timing != null) {
+				context.removeProperty(GZIP_PROPERTY);
+				context.setOutputStream(new UncompressedStream(context.getOutputStream(), timing));
+			}
+			context.proceed();
+		}
+	}
+
+	private static class CompressedStream extends OutputStream {
+
+		private final OutputStream target;
+		private final GzipTiming timing;
+
+		CompressedStream(OutputStream target, GzipTiming timing) {
+			this.target = target;
+			this.timing = timing;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			target.write(b, off, len);
+			timing.downstreamNanos += System.nanoTime() - start;
+			timing.event.compressedBytes += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			long start = System.nanoTime();
+			target.flush();
+			timing.downstreamNanos += System.nanoTime() - start;
+		}
+
+		@Override
+		public void close() throws IOException {
+			long start = System.nanoTime();
+			target.close();
+			timing.downstreamNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Time spent in the compressor is time spent in this stream's writes, less
+	 * the time the compressor spent writing downstream.
+	 */
+	private static class UncompressedStream extends OutputStream {
+
+		private final OutputStream target;
+		private final GzipTiming timing;
+
+		UncompressedStream(OutputStream target, GzipTiming timing) {
+			this.target = target;
+			this.timing = timing;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			long downstream = timing.downstreamNanos;
+			long start = System.nanoTime();
+			target.write(b, off, len);
+			timing.event.compressionTime += System.nanoTime() - start - (timing.downstreamNanos - downstream);
+			timing.event.uncompressedBytes += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			long downstream = timing.downstreamNanos;
+			long start = System.nanoTime();
+			target.flush();
+			timing.event.compressionTime += System.nanoTime() - start - (timing.downstreamNanos - downstream);
+		}
+
+		@Override
+		public void close() throws IOException {
+			long downstream = timing.downstreamNanos;
+			long start = System.nanoTime();
+			try {
+				target.close();
+			} finally {
+				timing.event.compressionTime += System.nanoTime() - start - (timing.downstreamNanos - downstream);
+				timing.event.end();
+				timing.event.commit();
+			}
+		}
+	}
+
+}
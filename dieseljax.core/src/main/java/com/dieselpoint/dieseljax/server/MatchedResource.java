@@ -0,0 +1,59 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+
+import javax.ws.rs.container.ContainerRequestContext;
+
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.model.Invocable;
+import org.glassfish.jersey.server.model.ResourceMethod;
+
+/**
+ * Finds the resource method a request matched, from the request itself.
+ * <p>
+ * Filters that the Builder registers as instances use this rather than
+ * a @Context ResourceInfo field. Server.reload() hands the same instances to
+ * each new application, and Jersey would inject the field again with a proxy
+ * for the new application's request scope, which fails for requests still
+ * running on the old one.
+ */
+final class MatchedResource {
+
+	private MatchedResource() {
+	}
+
+	private static Invocable invocable(ContainerRequestContext request) {
+		if (!(request instanceof ContainerRequest)) {
+			return null;
+		}
+		ResourceMethod method = ((ContainerRequest) request).getUriInfo().getMatchedResourceMethod();
+		return method == null ? null : method.getInvocable();
+	}
+
+	/**
+	 * Return the Java method that handles the request, or null if it hasn't
+	 * been matched.
+	 */
+	static Method method(ContainerRequestContext request) {
+		Invocable invocable = invocable(request);
+		return invocable == null ? null : invocable.getHandlingMethod();
+	}
+
+	/**
+	 * Return the annotation on the handling method, or else on its resource
+	 * class, or null.
+	 */
+	static <A extends Annotation> A annotation(ContainerRequestContext request, Class<A> type) {
+		Invocable invocable = invocable(request);
+		if (invocable == null) {
+			return null;
+		}
+		A a = invocable.getHandlingMethod().getAnnotation(type);
+		if (a == null) {
+			a = invocable.getHandler().getHandlerClass().getAnnotation(type);
+		}
+		return a;
+	}
+
+}
@@ -0,0 +1,398 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+
+import org.glassfish.jersey.server.CloseableService;
+
+/**
+ * A multipart body, such as multipart/form-data, read one part at a time
+ * straight from the request. Declare a resource method parameter of this type
+ * and loop over the parts:
+ *
+ * <pre>
+ * &#64;POST
+ * &#64;Consumes(MediaType.MULTIPART_FORM_DATA)
+ * public Message upload(Multipart multipart) throws IOException {
+ * 	Multipart.Part part;
+ * 	while ((part = multipart.next()) != null) {
+ * 		if (part.getFileName() != null) {
+ * 			part.spool().moveTo(dir.resolve(safeName(part.getFileName())));
+ * 		} else {
+ * 			String value = part.getString();
+ * 		}
+ * 	}
+ * 	...
+ * }
+ * </pre>
+ *
+ * Nothing is parsed until next() is called, and no part is materialized
+ * unless the resource asks for it: getInputStream() streams the part's bytes
+ * from the request through a small fixed buffer, spool() turns it into an
+ * Upload, which goes to disk above the memory threshold, and getString() reads
+ * a small field. Calling next() skips whatever is left of the current part.
+ * <p>
+ * A body that is malformed or ends early throws BadRequestException from
+ * whichever call finds the problem. Part headers are limited to 16k.
+ */
+public class Multipart implements Closeable {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_HEADER_SIZE = 16 * 1024;
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final InputStream in;
+	private final byte[] delimiter;
+	private final Upload.Settings settings;
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int pos;
+	private int lim;
+	private boolean eof;
+	private boolean finished;
+	private Part current;
+	private final List<Upload> uploads = new ArrayList<>();
+
+	Multipart(InputStream in, String boundary, Upload.Settings settings) {
+		this.in = in;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		this.settings = settings;
+		// the first delimiter has no CRLF in front; pretend it does, so it can
+		// be found like the others
+		buf[0] = '\r';
+		buf[1] = '\n';
+		lim = 2;
+	}
+
+	/**
+	 * Return the next part, or null after the last one.
+	 */
+	public Part next() throws IOException {
+		if (finished) {
+			return null;
+		}
+		if (current == null) {
+			// skip the preamble
+			new PartInputStream().skipAll();
+		} else {
+			current.stream.skipAll();
+		}
+
+		// after a delimiter comes either "--" for the end, or optional
+		// whitespace and CRLF for another part
+		ensure(2);
+		if (lim - pos >= 2 && buf[pos] == '-' && buf[pos + 1] == '-') {
+			finished = true;
+			current = null;
+			return null;
+		}
+		int eol = indexOf(CRLF, 0);
+		while (eol < 0 && !eof && lim - pos < MAX_HEADER_SIZE) {
+			fill();
+			eol = indexOf(CRLF, 0);
+		}
+		if (eol < 0) {
+			throw new BadRequestException("Malformed multipart body");
+		}
+		pos = eol + 2;
+
+		current = new Part(readHeaders());
+		return current;
+	}
+
+	private Map<String, String> readHeaders() throws IOException {
+		Map<String, String> headers = new LinkedHashMap<>();
+		int used = 0;
+		while (true) {
+			int eol = indexOf(CRLF, 0);
+			while (eol < 0 && !eof && lim - pos < MAX_HEADER_SIZE) {
+				fill();
+				eol = indexOf(CRLF, 0);
+			}
+			if (eol < 0) {
+				throw new BadRequestException("Malformed or oversized multipart headers");
+			}
+			String line = new String(buf, pos, eol - pos, StandardCharsets.UTF_8);
+			used += eol + 2 - pos;
+			pos = eol + 2;
+			if (used > MAX_HEADER_SIZE) {
+				throw new BadRequestException("Malformed or oversized multipart headers");
+			}
+			if (line.isEmpty()) {
+				return headers;
+			}
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+		}
+	}
+
+	/**
+	 * Read until at least n bytes are buffered, or the stream ends.
+	 */
+	private void ensure(int n) throws IOException {
+		while (lim - pos < n && !eof) {
+			fill();
+		}
+	}
+
+	private void fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, lim - pos);
+			lim -= pos;
+			pos = 0;
+		}
+		int n = in.read(buf, lim, buf.length - lim);
+		if (n < 0) {
+			eof = true;
+		} else {
+			lim += n;
+		}
+	}
+
+	private int indexOf(byte[] pattern, int from) {
+		int last = lim - pattern.length;
+		outer: for (int i = pos + from; i <= last; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (buf[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Delete any spooled parts that haven't been moved.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (Upload upload : uploads) {
+			upload.close();
+		}
+		uploads.clear();
+	}
+
+	/**
+	 * One part of the body. It is only readable until next() is called.
+	 */
+	public class Part {
+
+		private final Map<String, String> headers;
+		private final PartInputStream stream = new PartInputStream();
+		private String name;
+		private String fileName;
+
+		Part(Map<String, String> headers) {
+			this.headers = Collections.unmodifiableMap(headers);
+			String disposition = headers.get("content-disposition");
+			if (disposition != null) {
+				name = dispositionParam(disposition, "name");
+				fileName = dispositionParam(disposition, "filename");
+			}
+		}
+
+		/**
+		 * Return the part's headers, with lowercase names.
+		 */
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * Return the form field name from Content-Disposition, or null.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Return the file name the client sent, or null if this part isn't a
+		 * file. Don't use it as a path without cleaning it up.
+		 */
+		public String getFileName() {
+			return fileName;
+		}
+
+		/**
+		 * Return the part's Content-Type, or text/plain if it didn't have one.
+		 */
+		public MediaType getMediaType() {
+			String contentType = headers.get("content-type");
+			return contentType == null ? MediaType.TEXT_PLAIN_TYPE : MediaType.valueOf(contentType);
+		}
+
+		/**
+		 * Return the part's bytes as a stream. There is only one stream per
+		 * part, and it reads straight from the request.
+		 */
+		public InputStream getInputStream() {
+			return stream;
+		}
+
+		/**
+		 * Read the rest of the part into an Upload, which is in memory or on disk
+		 * depending on its size. It is deleted when the Multipart is closed,
+		 * unless moved first.
+		 */
+		public Upload spool() throws IOException {
+			Upload upload = Upload.spool(stream, settings.memoryThreshold, settings.tempDir);
+			uploads.add(upload);
+			return upload;
+		}
+
+		/**
+		 * Read the rest of the part as UTF-8, or the part's charset if it has
+		 * one. Throws BadRequestException if it is over the memory threshold, so
+		 * a client can't make a form field fill the heap.
+		 */
+		public String getString() throws IOException {
+			byte[] bytes = new byte[256];
+			int len = 0;
+			int n;
+			while ((n = stream.read(bytes, len, bytes.length - len)) >= 0) {
+				len += n;
+				if (len == bytes.length) {
+					if (len > settings.memoryThreshold) {
+						throw new BadRequestException("Multipart field " + name + " is too large");
+					}
+					bytes = Arrays.copyOf(bytes, len * 2);
+				}
+			}
+			String charset = getMediaType().getParameters().get(MediaType.CHARSET_PARAMETER);
+			return new String(bytes, 0, len, charset == null ? StandardCharsets.UTF_8.name() : charset);
+		}
+	}
+
+	private static String dispositionParam(String disposition, String param) {
+		for (String token : disposition.split(";")) {
+			int eq = token.indexOf('=');
+			if (eq > 0 && token.substring(0, eq).trim().equalsIgnoreCase(param)) {
+				String value = token.substring(eq + 1).trim();
+				if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+					value = value.substring(1, value.length() - 1);
+				}
+				return value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The bytes up to the next delimiter. A delimiter split across two reads
+	 * is found because bytes are only handed out once they can't be the start
+	 * of one.
+	 */
+	private class PartInputStream extends InputStream {
+
+		private boolean done;
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (done) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			while (true) {
+				int found = indexOf(delimiter, 0);
+				int available;
+				if (found >= 0) {
+					available = found - pos;
+					if (available == 0) {
+						pos += delimiter.length;
+						done = true;
+						return -1;
+					}
+				} else {
+					available = lim - pos - delimiter.length + 1;
+					if (available <= 0) {
+						if (eof) {
+							throw new BadRequestException("Multipart body ended early");
+						}
+						fill();
+						continue;
+					}
+				}
+				int n = Math.min(len, available);
+				System.arraycopy(buf, pos, b, off, n);
+				pos += n;
+				return n;
+			}
+		}
+
+		void skipAll() throws IOException {
+			while (!done) {
+				int found = indexOf(delimiter, 0);
+				if (found >= 0) {
+					pos = found + delimiter.length;
+					done = true;
+				} else {
+					// keep what might be the start of a delimiter
+					pos = Math.max(pos, lim - delimiter.length + 1);
+					if (eof) {
+						throw new BadRequestException("Multipart body ended early");
+					}
+					fill();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads Multipart parameters. Server.Builder always registers it.
+	 */
+	public static class Reader implements MessageBodyReader<Multipart> {
+
+		private final Upload.Settings settings = new Upload.Settings();
+
+		@Inject
+		private Provider<CloseableService> closeableService;
+
+		@Override
+		public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+			return type == Multipart.class;
+		}
+
+		@Override
+		public Multipart readFrom(Class<Multipart> type, Type genericType, Annotation[] annotations,
+				MediaType mediaType, MultivaluedMap<String, String> httpHeaders, InputStream entityStream) {
+			String boundary = mediaType == null ? null : mediaType.getParameters().get("boundary");
+			if (!"multipart".equalsIgnoreCase(mediaType == null ? null : mediaType.getType()) || boundary == null
+					|| boundary.isEmpty() || boundary.length() > 70) {
+				throw new BadRequestException("Expected a multipart body with a boundary");
+			}
+			Multipart multipart = new Multipart(entityStream, boundary, settings);
+			// Jersey leaves the entity stream open for a Closeable entity. This
+			// deletes spooled parts once the response is done.
+			closeableService.get().add(multipart);
+			return multipart;
+		}
+	}
+
+}
@@ -0,0 +1,452 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.IOException;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Response.Status;
+
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dieselpoint.dieseljax.util.Config;
+import com.dieselpoint.dieseljax.util.Histogram;
+
+/**
+ * Limits how many requests run at once, and decides which waiting request runs
+ * next by its priority class. Enable it with Server.Builder.scheduler():
+ *
+ * <pre>
+ * new PriorityScheduler(16)
+ * 		.priorityClass("critical", 8)
+ * 		.priorityClass("paid", 4)
+ * 		.priorityClass("standard", 2)
+ * 		.priorityClass("background", 1)
+ * 		.path("/health", "critical")
+ * 		.header("X-Tier", "paid", "paid")
+ * 		.defaultClass("standard")
+ * </pre>
+ *
+ * A request's class comes from, in order: a @PriorityScheduler.PriorityClass
+ * annotation on its resource method or resource class, if it names a class
+ * the scheduler has, which is logged if not; the first path rule
+ * whose prefix matches the path relative to the service context path; the
+ * first header rule that matches; or the default class. This needs the matched
+ * resource method, so it runs just after matching, which is cheap, rather than
+ * before.
+ * <p>
+ * Jetty's thread pool serves requests first come, first served. This sits
+ * after it: once a request is matched, it takes one of the maxConcurrent
+ * slots, or waits for one in its class's queue. When a slot frees, the next
+ * request is picked by stride scheduling, so under load each class gets a
+ * share of the slots in proportion to its weight, and a class that has been
+ * idle doesn't get to catch up in a burst. As starvation protection, a request
+ * that has waited longer than dieseljax.scheduler.maxWaitMillis (default 1000)
+ * goes ahead of everything that hasn't. A request holds its slot until its
+ * response is written.
+ * <p>
+ * Waiting requests keep their Jetty thread, so maxConcurrent must be well under
+ * the pool's maxThreads, or the pool runs out before the queues fill and new
+ * requests wait in Jetty's FIFO queue instead. Each class queue holds at most
+ * dieseljax.scheduler.queueSize requests, default 1000. A request that finds
+ * it full gets 503, and so does one whose Deadline passes while it waits.
+ * In-process requests, including batch sub-requests, aren't scheduled, because
+ * whoever made them already holds a slot.
+ * <p>
+ * getStats() reports, per class: the weight, requests queued now, requests
+ * admitted, rejected and completed since start, throughput and queue time
+ * percentiles since the last reset. Telemetry includes them in each window and
+ * resets them.
+ */
+@Priority(Priorities.AUTHENTICATION - 150)
+public class PriorityScheduler implements ContainerRequestFilter, ApplicationEventListener, RequestEventListener {
+
+	private static final String PROPERTY = "dieseljax.scheduler.slot";
+
+	// pass values advance by STRIDE / weight for every request admitted
+	private static final long STRIDE = 1 << 20;
+
+	// cached for resource methods that have no annotation
+	private static final PClass UNANNOTATED = new PClass("", 1);
+
+	private final Logger logger = LoggerFactory.getLogger(PriorityScheduler.class);
+
+	private final int maxConcurrent;
+	private final long maxWaitNanos = TimeUnit.MILLISECONDS
+			.toNanos(Config.getInt("dieseljax.scheduler.maxWaitMillis", 1000));
+	private final int queueSize = Config.getInt("dieseljax.scheduler.queueSize", 1000);
+
+	private final List<PClass> classes = new ArrayList<>();
+	private final Map<String, PClass> classesByName = new LinkedHashMap<>();
+	private final List<String[]> pathRules = new ArrayList<>();
+	private final List<String[]> headerRules = new ArrayList<>();
+	private PClass defaultClass;
+	private final Map<Method, PClass> annotated = new ConcurrentHashMap<>();
+
+	// guarded by this
+	private int running;
+	private int queued;
+	private long virtualTime;
+
+	// no @Context fields: Server.reload() shares this object between
+	// applications. See MatchedResource.
+	private volatile long windowStart = System.nanoTime();
+
+	/**
+	 * Put this annotation on a resource method or class to set its priority
+	 * class.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ ElementType.METHOD, ElementType.TYPE })
+	public @interface PriorityClass {
+		String value();
+	}
+
+	/**
+	 * Thrown when a class queue is full. ExceptionMappers turns it into a 503.
+	 */
+	public static class QueueFullException extends ServiceUnavailableException {
+
+		private static final long serialVersionUID = 1L;
+
+		public QueueFullException(String className) {
+			super("Too many " + className + " requests waiting", 1L);
+		}
+	}
+
+	/**
+	 * One priority class.
+	 */
+	private static class PClass {
+		final String name;
+		final int weight;
+		final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+		long pass;
+
+		final LongAdder admitted = new LongAdder();
+		final LongAdder rejected = new LongAdder();
+		final LongAdder completed = new LongAdder();
+		final LongAdder windowCompleted = new LongAdder();
+		volatile Histogram queueTime = new Histogram();
+
+		PClass(String name, int weight) {
+			this.name = name;
+			this.weight = weight;
+		}
+	}
+
+	private static class Waiter {
+		final Thread thread = Thread.currentThread();
+		final long enqueued = System.nanoTime();
+		volatile boolean granted;
+	}
+
+	/**
+	 * @param maxConcurrent most requests that run at once. The rest wait.
+	 */
+	public PriorityScheduler(int maxConcurrent) {
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	/**
+	 * Add a class. Under load, classes get slots in proportion to their
+	 * weights. The first class added is the default unless defaultClass() says
+	 * otherwise.
+	 */
+	public PriorityScheduler priorityClass(String name, int weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Weight must be positive: " + name);
+		}
+		PClass c = new PClass(name, weight);
+		classes.add(c);
+		classesByName.put(name, c);
+		if (defaultClass == null) {
+			defaultClass = c;
+		}
+		return this;
+	}
+
+	public PriorityScheduler defaultClass(String name) {
+		defaultClass = get(name);
+		return this;
+	}
+
+	/**
+	 * Put requests whose path, relative to the service context path, starts
+	 * with pathPrefix in a class.
+	 */
+	public PriorityScheduler path(String pathPrefix, String className) {
+		get(className);
+		pathRules.add(new String[] { pathPrefix.startsWith("/") ? pathPrefix.substring(1) : pathPrefix, className });
+		return this;
+	}
+
+	/**
+	 * Put requests with a header in a class. If value is null, any value
+	 * matches.
+	 */
+	public PriorityScheduler header(String name, String value, String className) {
+		get(className);
+		headerRules.add(new String[] { name, value, className });
+		return this;
+	}
+
+	/**
+	 * Throw IllegalStateException if there is no class to put requests in.
+	 * Server.Builder calls this.
+	 */
+	void validate() {
+		if (defaultClass == null) {
+			throw new IllegalStateException("The scheduler needs at least one priority class");
+		}
+	}
+
+	private PClass get(String name) {
+		PClass c = classesByName.get(name);
+		if (c == null) {
+			throw new IllegalArgumentException("No priority class named " + name);
+		}
+		return c;
+	}
+
+	/*
+	 * ContainerRequestFilter
+	 */
+
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		if (request.getProperty(InProcessClient.IN_PROCESS_PROPERTY) != null) {
+			// a batch sub-request, or a call from resource code, whose caller
+			// already holds a slot. Waiting for another could deadlock.
+			return;
+		}
+		PClass c = classify(request);
+		Deadline deadline = Deadline.of(request);
+		Waiter waiter;
+		synchronized (this) {
+			if (running < maxConcurrent && queued == 0) {
+				running++;
+				admit(c, 0);
+				request.setProperty(PROPERTY, c);
+				return;
+			}
+			if (c.queue.size() >= queueSize) {
+				c.rejected.increment();
+				throw new QueueFullException(c.name);
+			}
+			if (c.queue.isEmpty() && c.pass < virtualTime) {
+				// idle classes don't bank credit
+				c.pass = virtualTime;
+			}
+			waiter = new Waiter();
+			c.queue.add(waiter);
+			queued++;
+		}
+
+		while (!waiter.granted) {
+			if (deadline.isSet()) {
+				LockSupport.parkNanos(this, deadline.remaining(TimeUnit.NANOSECONDS));
+			} else {
+				LockSupport.park(this);
+			}
+			if (!waiter.granted && deadline.isExpired()) {
+				synchronized (this) {
+					if (!waiter.granted) {
+						c.queue.remove(waiter);
+						queued--;
+						c.rejected.increment();
+						throw new Deadline.ExceededException(Status.SERVICE_UNAVAILABLE,
+								"Request deadline passed while waiting to be scheduled");
+					}
+				}
+			}
+			if (!waiter.granted && Thread.currentThread().isInterrupted()) {
+				// usually the thread pool stopping, which isn't a rejection.
+				// The flag stays set for the caller.
+				synchronized (this) {
+					if (!waiter.granted) {
+						c.queue.remove(waiter);
+						queued--;
+						throw new ServiceUnavailableException("Interrupted while waiting to be scheduled");
+					}
+				}
+			}
+		}
+		request.setProperty(PROPERTY, c);
+	}
+
+	private PClass classify(ContainerRequestContext request) {
+		Method method = MatchedResource.method(request);
+		if (method != null) {
+			PClass c = annotated.computeIfAbsent(method, m -> {
+				PriorityClass a = MatchedResource.annotation(request, PriorityClass.class);
+				if (a == null) {
+					return UNANNOTATED;
+				}
+				PClass named = classesByName.get(a.value());
+				if (named == null) {
+					// warned once, since the result is cached
+					logger.warn("No priority class named " + a.value() + " for " + m
+							+ "; using the path and header rules");
+					return UNANNOTATED;
+				}
+				return named;
+			});
+			if (c != UNANNOTATED) {
+				return c;
+			}
+		}
+		if (!pathRules.isEmpty()) {
+			String path = request.getUriInfo().getPath();
+			for (String[] rule : pathRules) {
+				if (path.startsWith(rule[0])) {
+					return classesByName.get(rule[1]);
+				}
+			}
+		}
+		for (String[] rule : headerRules) {
+			String value = request.getHeaderString(rule[0]);
+			if (value != null && (rule[1] == null || rule[1].equalsIgnoreCase(value))) {
+				return classesByName.get(rule[2]);
+			}
+		}
+		return defaultClass;
+	}
+
+	// called holding the lock
+	private void admit(PClass c, long waitedNanos) {
+		c.admitted.increment();
+		c.queueTime.record(waitedNanos);
+	}
+
+	/**
+	 * Give the slot to the next waiting request, or free it.
+	 */
+	private synchronized void release(PClass finished) {
+		finished.completed.increment();
+		finished.windowCompleted.increment();
+
+		PClass next = pickNext();
+		if (next == null) {
+			running--;
+			return;
+		}
+		Waiter waiter = next.queue.poll();
+		queued--;
+		admit(next, System.nanoTime() - waiter.enqueued);
+		waiter.granted = true;
+		LockSupport.unpark(waiter.thread);
+	}
+
+	// called holding the lock
+	private PClass pickNext() {
+		if (queued == 0) {
+			return null;
+		}
+		long now = System.nanoTime();
+		PClass starved = null;
+		PClass best = null;
+		for (PClass c : classes) {
+			Waiter head = c.queue.peek();
+			if (head == null) {
+				continue;
+			}
+			if (now - head.enqueued > maxWaitNanos
+					&& (starved == null || head.enqueued - starved.queue.peek().enqueued < 0)) {
+				starved = c;
+			}
+			if (best == null || c.pass < best.pass) {
+				best = c;
+			}
+		}
+		PClass pick = starved != null ? starved : best;
+		virtualTime = Math.max(virtualTime, pick.pass);
+		pick.pass += STRIDE / pick.weight;
+		return pick;
+	}
+
+	/*
+	 * ApplicationEventListener and RequestEventListener, to free the slot once
+	 * the response is written, however the request ended.
+	 */
+
+	@Override
+	public void onEvent(ApplicationEvent event) {
+	}
+
+	@Override
+	public RequestEventListener onRequest(RequestEvent requestEvent) {
+		return this;
+	}
+
+	@Override
+	public void onEvent(RequestEvent event) {
+		if (event.getType() == RequestEvent.Type.FINISHED) {
+			PClass c = (PClass) event.getContainerRequest().getProperty(PROPERTY);
+			if (c != null) {
+				event.getContainerRequest().removeProperty(PROPERTY);
+				release(c);
+			}
+		}
+	}
+
+	/**
+	 * Return stats for each class. If reset is true, restart the throughput
+	 * and queue time figures; Telemetry does this at the end of each window.
+	 */
+	public Map<String, Object> getStats(boolean reset) {
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-9, (now - windowStart) / 1e9);
+		if (reset) {
+			windowStart = now;
+		}
+		Map<String, Object> stats = new LinkedHashMap<>();
+		synchronized (this) {
+			stats.put("running", running);
+			stats.put("maxConcurrent", maxConcurrent);
+		}
+		for (PClass c : classes) {
+			Histogram h = c.queueTime;
+			long completed = reset ? c.windowCompleted.sumThenReset() : c.windowCompleted.sum();
+			if (reset) {
+				c.queueTime = new Histogram();
+			}
+			Map<String, Object> cs = new LinkedHashMap<>();
+			cs.put("weight", c.weight);
+			synchronized (this) {
+				cs.put("queued", c.queue.size());
+			}
+			cs.put("admitted", c.admitted.sum());
+			cs.put("rejected", c.rejected.sum());
+			cs.put("completed", c.completed.sum());
+			cs.put("throughputPerSec", completed / seconds);
+			cs.put("queueTimeP50Ms", h.getValueAtPercentile(50) / 1e6);
+			cs.put("queueTimeP99Ms", h.getValueAtPercentile(99) / 1e6);
+			cs.put("queueTimeMaxMs", h.getMax() / 1e6);
+			stats.put(c.name, cs);
+		}
+		return stats;
+	}
+
+}
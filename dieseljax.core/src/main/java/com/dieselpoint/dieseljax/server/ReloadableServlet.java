@@ -0,0 +1,229 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+
+import org.eclipse.jetty.server.Request;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.servlet.ServletContainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dieselpoint.dieseljax.util.Config;
+
+/**
+ * The servlet that runs Jersey, in a form that can swap in a new application
+ * while serving. Server.reload() uses it.
+ * <p>
+ * Each application runs in its own Jersey ServletContainer. A reload builds and
+ * initializes the new one first, with requests still going to the old one,
+ * then switches to it in a single volatile write. Requests that had already
+ * started, including async ones, finish on the old container, which is
+ * destroyed once they have, or after dieseljax.reload.drainMillis, default
+ * 30000.
+ * <p>
+ * Jersey's own ServletContainer.reload() isn't used because it shuts the old
+ * application down before building the new one, so requests arriving or still
+ * running during the rebuild would fail.
+ */
+public class ReloadableServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Request attribute with the time Jetty parsed the request headers, in
+	 * epoch millis. Jersey exposes servlet attributes as request properties,
+	 * so filters shared between generations can read it without an injected
+	 * HttpServletRequest.
+	 */
+	static final String ARRIVAL_ATTRIBUTE = "dieseljax.arrivalMillis";
+
+	private final long drainMillis = Config.getInt("dieseljax.reload.drainMillis", 30000);
+
+	private transient Logger logger;
+	private transient volatile Generation current;
+	private transient ResourceConfig initialConfig;
+
+	// guarded by this
+	private long reloads;
+	private long lastBuildMillis;
+	private long lastDrainMillis;
+	private long lastAbandoned;
+
+	ReloadableServlet(ResourceConfig config) {
+		this.initialConfig = config;
+	}
+
+	/**
+	 * One application and the number of requests running in it.
+	 */
+	private static class Generation {
+
+		final ServletContainer container;
+		final LongAdder active = new LongAdder();
+
+		Generation(ServletContainer container) {
+			this.container = container;
+		}
+	}
+
+	@Override
+	public void init() throws ServletException {
+		logger = LoggerFactory.getLogger(ReloadableServlet.class);
+		current = start(initialConfig);
+		initialConfig = null;
+	}
+
+	private Generation start(ResourceConfig config) throws ServletException {
+		ServletContainer container = new ServletContainer(config);
+		container.init(getServletConfig());
+		return new Generation(container);
+	}
+
+	@Override
+	public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException {
+		Request base = Request.getBaseRequest(request);
+		if (base != null && base.getTimeStamp() != 0) {
+			request.setAttribute(ARRIVAL_ATTRIBUTE, base.getTimeStamp());
+		}
+
+		Generation g;
+		while (true) {
+			g = current;
+			g.active.increment();
+			// a reload between reading current and counting would let the drain
+			// miss this request, so check again
+			if (g == current) {
+				break;
+			}
+			g.active.decrement();
+		}
+
+		boolean async = false;
+		try {
+			g.container.service(request, response);
+			if (request.isAsyncStarted()) {
+				Generation generation = g;
+				request.getAsyncContext().addListener(new AsyncListener() {
+					@Override
+					public void onComplete(AsyncEvent event) {
+						generation.active.decrement();
+					}
+
+					@Override
+					public void onTimeout(AsyncEvent event) {
+					}
+
+					@Override
+					public void onError(AsyncEvent event) {
+					}
+
+					@Override
+					public void onStartAsync(AsyncEvent event) {
+						event.getAsyncContext().addListener(this);
+					}
+				});
+				async = true;
+			}
+		} finally {
+			if (!async) {
+				g.active.decrement();
+			}
+		}
+	}
+
+	/**
+	 * Build an application from the config, switch new requests to it, and
+	 * destroy the old one in the background once its requests have finished.
+	 * Returns after the switch. If the new application fails to start, the old
+	 * one stays and the exception is thrown.
+	 */
+	public synchronized void reload(ResourceConfig config) throws ServletException {
+		long start = System.nanoTime();
+		Generation next = start(config);
+		Generation old = current;
+		current = next;
+		long built = System.nanoTime();
+		reloads++;
+		lastBuildMillis = TimeUnit.NANOSECONDS.toMillis(built - start);
+		logger.info("Reloaded application in " + lastBuildMillis + " ms");
+
+		Thread drain = new Thread(() -> drain(old, built), "jersey-drain");
+		drain.setDaemon(true);
+		drain.start();
+	}
+
+	private void drain(Generation old, long since) {
+		long deadline = since + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+		long remaining;
+		while ((remaining = old.active.sum()) > 0 && System.nanoTime() - deadline < 0) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		if (remaining > 0) {
+			logger.warn("Destroying the previous application with " + remaining + " requests still running");
+		}
+		old.container.destroy();
+		synchronized (this) {
+			lastDrainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+			lastAbandoned = Math.max(0, remaining);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		Generation g = current;
+		if (g != null) {
+			g.container.destroy();
+			current = null;
+		}
+	}
+
+	/**
+	 * Return the current application's handler, or null before init().
+	 */
+	public ApplicationHandler getApplicationHandler() {
+		Generation g = current;
+		return g == null ? null : g.container.getApplicationHandler();
+	}
+
+	/**
+	 * Return the current application's config, or null before init().
+	 */
+	public ResourceConfig getConfiguration() {
+		Generation g = current;
+		return g == null ? null : g.container.getConfiguration();
+	}
+
+	/**
+	 * Return reload counts and times. lastBuildMillis is how long the last
+	 * reload took to build the new application, during which the old one kept
+	 * serving, and lastDrainMillis how long the old one took to finish its
+	 * requests.
+	 */
+	public synchronized Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		Generation g = current;
+		stats.put("reloads", reloads);
+		stats.put("active", g == null ? 0 : g.active.sum());
+		stats.put("lastBuildMillis", lastBuildMillis);
+		stats.put("lastDrainMillis", lastDrainMillis);
+		stats.put("lastAbandoned", lastAbandoned);
+		return stats;
+	}
+
+}
@@ -0,0 +1,256 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Priority;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.eclipse.jetty.server.CustomRequestLog;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * Records how long each phase of a request took and reports it in a W3C
+ * Server-Timing response header and in the request log. Enable it with
+ * Server.Builder.requestTiming(sampleRate).
+ * <p>
+ * The phases are:
+ * <ul>
+ * <li>prematch: pre-matching filters, such as CorsFilter</li>
+ * <li>match: matching the request to a resource method</li>
+ * <li>filter: request filters</li>
+ * <li>app: the resource method itself</li>
+ * <li>respfilter: response filters, including EncodingFilter choosing an
+ * encoding</li>
+ * <li>ser: writer interceptors and the message body writer, which is gzip plus
+ * Jackson serialization plus any socket writes that happen while
+ * streaming</li>
+ * <li>write: closing the entity stream and flushing to the socket</li>
+ * </ul>
+ * The header is sent before the body, so it can only include the phases up to
+ * respfilter. The request log line gets all of them.
+ * <p>
+ * Only a sample of requests are timed. The rest get no listener at all and pay
+ * only the cost of a random number.
+ */
+public class RequestTiming implements ApplicationEventListener {
+
+	public static final String HEADER = "Server-Timing";
+
+	/** Request attribute that holds the full timing string for the request log. */
+	public static final String LOG_ATTRIBUTE = "dieseljax.timing";
+
+	private static final String TIMING_PROPERTY = "dieseljax.timing.object";
+
+	// one spare Timing per thread. Requests that finish on another thread just
+	// leave theirs there for the next request on that thread.
+	private static final ThreadLocal<Timing> pool = new ThreadLocal<>();
+
+	private final double sampleRate;
+
+	/**
+	 * @param sampleRate fraction of requests to time, from 0 to 1
+	 */
+	public RequestTiming(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	@Override
+	public void onEvent(ApplicationEvent event) {
+	}
+
+	@Override
+	public RequestEventListener onRequest(RequestEvent requestEvent) {
+		if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+			return null;
+		}
+		Timing timing = pool.get();
+		if (timing == null) {
+			timing = new Timing();
+		} else {
+			pool.set(null);
+		}
+		timing.start = System.nanoTime();
+		requestEvent.getContainerRequest().setProperty(TIMING_PROPERTY, timing);
+		return timing;
+	}
+
+	/**
+	 * Per-request timestamps. Pooled, so it must be fully reset before reuse.
+	 */
+	static class Timing implements RequestEventListener {
+
+		long start;
+		long matchingStart;
+		long matched;
+		long filtered;
+		long methodStart;
+		long methodFinished;
+		long respFiltersStart;
+		long respFiltersFinished;
+		long serStart;
+		long serFinished;
+
+		private final StringBuilder sb = new StringBuilder(160);
+
+		@Override
+		public void onEvent(RequestEvent event) {
+			long now = System.nanoTime();
+			switch (event.getType()) {
+			case MATCHING_START:
+				matchingStart = now;
+				break;
+			case REQUEST_MATCHED:
+				matched = now;
+				break;
+			case REQUEST_FILTERED:
+				filtered = now;
+				break;
+			case RESOURCE_METHOD_START:
+				methodStart = now;
+				break;
+			case RESOURCE_METHOD_FINISHED:
+				methodFinished = now;
+				break;
+			case RESP_FILTERS_START:
+				respFiltersStart = now;
+				break;
+			case RESP_FILTERS_FINISHED:
+				respFiltersFinished = now;
+				sb.setLength(0);
+				appendHeadPhases();
+				event.getContainerResponse().getHeaders().putSingle(HEADER, sb.toString());
+				break;
+			case FINISHED:
+				sb.setLength(0);
+				appendHeadPhases();
+				appendPhase("ser", serStart, serFinished);
+				appendPhase("write", serFinished != 0 ? serFinished : respFiltersFinished, now);
+				appendPhase("total", start, now);
+				event.getContainerRequest().setProperty(LOG_ATTRIBUTE, sb.toString());
+				event.getContainerRequest().removeProperty(TIMING_PROPERTY);
+				release();
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void appendHeadPhases() {
+			appendPhase("prematch", start, matchingStart);
+			appendPhase("match", matchingStart, matched);
+			appendPhase("filter", matched, filtered);
+			appendPhase("app", methodStart, methodFinished);
+			appendPhase("respfilter", respFiltersStart, respFiltersFinished);
+		}
+
+		/**
+		 * Append "name;dur=1.234", in millis. Phases that did not happen, for example
+		 * because an exception skipped them, are left out.
+		 */
+		private void appendPhase(String name, long from, long to) {
+			if (from == 0 || to == 0 || to < from) {
+				return;
+			}
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			long micros = (to - from) / 1000;
+			long frac = micros % 1000;
+			sb.append(name).append(";dur=").append(micros / 1000).append('.');
+			if (frac < 100) {
+				sb.append('0');
+			}
+			if (frac < 10) {
+				sb.append('0');
+			}
+			sb.append(frac);
+		}
+
+		private void release() {
+			start = matchingStart = matched = filtered = 0;
+			methodStart = methodFinished = respFiltersStart = respFiltersFinished = 0;
+			serStart = serFinished = 0;
+			if (pool.get() == null) {
+				pool.set(this);
+			}
+		}
+	}
+
+	/**
+	 * Times the body write. Runs outside every other interceptor, so the time
+	 * includes gzip.
+	 */
+	@Priority(1)
+	public static class Interceptor implements WriterInterceptor {
+
+		@Override
+		public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+			Timing timing = (Timing) context.getProperty(TIMING_PROPERTY);
+			if (timing == null) {
+				context.proceed();
+				return;
+			}
+			timing.serStart = System.nanoTime();
+			try {
+				context.proceed();
+			} finally {
+				timing.serFinished = System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * A CustomRequestLog that appends the timing string, in quotes, to each line.
+	 * Requests that were not sampled get "-".
+	 */
+	public static class TimingRequestLog extends CustomRequestLog {
+
+		private static final ThreadLocal<Object> current = new ThreadLocal<>();
+
+		public TimingRequestLog(RequestLog.Writer writer, String formatString) {
+			super(new TimingWriter(writer), formatString);
+		}
+
+		@Override
+		public void log(Request request, Response response) {
+			// super.log() formats the line and hands it to the writer on this thread
+			current.set(request.getAttribute(LOG_ATTRIBUTE));
+			try {
+				super.log(request, response);
+			} finally {
+				current.remove();
+			}
+		}
+
+		/**
+		 * Extends ContainerLifeCycle so the wrapped writer still gets started and
+		 * stopped.
+		 */
+		private static class TimingWriter extends ContainerLifeCycle implements RequestLog.Writer {
+
+			private final RequestLog.Writer writer;
+
+			TimingWriter(RequestLog.Writer writer) {
+				this.writer = writer;
+				addBean(writer);
+			}
+
+			@Override
+			public void write(String requestEntry) throws IOException {
+				Object timing = current.get();
+				writer.write(requestEntry + " \"" + (timing == null ? "-" : timing) + "\"");
+			}
+		}
+	}
+
+}
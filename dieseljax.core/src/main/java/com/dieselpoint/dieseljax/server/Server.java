@@ -6,26 +6,47 @@ import java.net.InetAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
 import java.util.Collections;
-
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.ws.rs.core.Configuration;
+
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.server.AcceptRateLimit;
 import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.ConnectionLimit;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.CustomRequestLog;
+import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.LowResourceMonitor;
 import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.Slf4jRequestLogWriter;
 import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.Scanner;
 import org.glassfish.jersey.CommonProperties;
+import org.glassfish.jersey.internal.util.PropertiesHelper;
 import org.glassfish.jersey.message.GZipEncoder;
+import org.glassfish.jersey.server.ApplicationHandler;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.ServerProperties;
 import org.glassfish.jersey.server.filter.EncodingFilter;
-import org.glassfish.jersey.servlet.ServletContainer;
+import org.glassfish.jersey.server.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
@@ -41,10 +62,24 @@ public class Server {
 	private Logger logger;
 	private org.eclipse.jetty.server.Server jettyServer;
 	private ResourceConfig app;
+	private ResourceConfig services;
+	private SseHub sseHub;
+	private ByteBufferPool byteBufferPool;
+	private ServletHolder jerseyHolder;
+	private String host;
+	private String serviceContextPath;
+	private ObjectMapper objectMapper;
+	private ConnectionControl connectionControl;
+	private ServerConnector tlsConnector;
+	private Deadlines deadlines;
+	private PriorityScheduler scheduler;
+	private Sessions sessions;
+	private AccessLog accessLog;
 
 	public static class Builder {
 
 		private String homeDir = "./";
+		private boolean productionLogging;
 		private String host;
 		private int port = 8080;
 		private boolean cors;
@@ -54,8 +89,38 @@ public class Server {
 		private String serviceContextPath = "/";
 		private RequestLog requestLog;
 		private boolean standardExceptionMappers = true;
+		private boolean failFastValidation;
+		private double requestTimingSampleRate;
+		private long slowRequestThresholdMillis;
+		private long slowRequestSampleMillis;
+		private int etagMaxBodySize;
+		private boolean sparseFields;
+		private String telemetryPath;
+		private String batchPath;
 		private ObjectMapper objectMapper;
 		private ResourceConfig app = new ResourceConfig();
+		private String ssePath;
+		private SseHub sseHub;
+		private Map<String, WebSocketEndpoint> webSocketEndpoints = new LinkedHashMap<>();
+		private ByteBufferPool byteBufferPool;
+		private int outputBufferSize;
+		private int outputAggregationSize;
+		private int requestHeaderSize;
+		private int responseHeaderSize;
+		private int contentLengthBufferSize = -1;
+		private Boolean jacksonBufferRecycling;
+		private long idleTimeout;
+		private int maxConnections;
+		private int acceptRate;
+		private int maxConnectionsPerIp;
+		private int lowResourcesIdleTimeout;
+		private long lowResourcesMaxMemory;
+		private Tls tls;
+		private long maxRequestBodySize;
+		private long deadlineDefaultMillis = -1;
+		private PriorityScheduler scheduler;
+		private Sessions sessions;
+		private AccessLog accessLog;
 
 		private Builder() {
 		}
@@ -69,6 +134,17 @@ public class Server {
 			return this;
 		}
 
+		/**
+		 * Use etc/logback-production.xml instead of etc/logback.xml: asynchronous
+		 * appenders that drop INFO and lower when they fall behind, JSON lines, and
+		 * rolling by day and size. Default false. Like all logging setup, it only
+		 * takes effect if nothing has logged yet.
+		 */
+		public Builder productionLogging(boolean productionLogging) {
+			this.productionLogging = productionLogging;
+			return this;
+		}
+
 		/**
 		 * Add CORS support. Default false.
 		 */
@@ -94,7 +170,8 @@ public class Server {
 		}
 
 		/**
-		 * Set the port. Default 8088.
+		 * Set the port. Default 8080. Use 0 to pick a free port, and then call
+		 * server.getPort() after start() to find out which one.
 		 */
 		public Builder port(int port) {
 			this.port = port;
@@ -146,6 +223,268 @@ public class Server {
 			return this;
 		}
 
+		/**
+		 * Stop bean validation of a request at the first constraint violation, and
+		 * report only that one. Cheaper for large payloads, such as a batch of items
+		 * with a &#64;Valid on the list. Default false. See ValidationFastPath.
+		 */
+		public Builder failFastValidation(boolean failFastValidation) {
+			this.failFastValidation = failFastValidation;
+			return this;
+		}
+
+		/**
+		 * Time the phases of a sample of requests and report them in a Server-Timing
+		 * header and in the request log. See RequestTiming. The rate is the fraction
+		 * of requests to time, from 0 to 1. Default 0, which disables it.
+		 */
+		public Builder requestTiming(double sampleRate) {
+			this.requestTimingSampleRate = sampleRate;
+			return this;
+		}
+
+		/**
+		 * Report requests that run longer than a threshold. While such a request is
+		 * running, its stack is sampled at the given interval, and when it finishes a
+		 * summary goes to the slow request log. See SlowRequestWatchdog. No default;
+		 * disabled unless called.
+		 */
+		public Builder slowRequests(long thresholdMillis, long sampleIntervalMillis) {
+			this.slowRequestThresholdMillis = thresholdMillis;
+			this.slowRequestSampleMillis = sampleIntervalMillis;
+			return this;
+		}
+
+		/**
+		 * Let clients ask for only some fields of json responses with a ?fields=
+		 * query parameter. See SparseFields. Default false.
+		 */
+		public Builder sparseFields(boolean sparseFields) {
+			this.sparseFields = sparseFields;
+			return this;
+		}
+
+		/**
+		 * Add strong ETags to GET responses and answer If-None-Match with 304. Bodies
+		 * up to maxBodySize bytes are buffered and hashed; larger ones are streamed
+		 * without a tag. 64k is a reasonable size. See ETags. Default 0, which
+		 * disables it.
+		 */
+		public Builder etags(int maxBodySize) {
+			this.etagMaxBodySize = maxBodySize;
+			return this;
+		}
+
+		/**
+		 * Collect GC, safepoint, allocation, lock contention and request queue
+		 * numbers with Flight Recorder, and serve them as JSON at this path under the
+		 * service context path. See Telemetry for the Config settings. No default;
+		 * disabled unless called.
+		 */
+		public Builder telemetry(String path) {
+			this.telemetryPath = path;
+			return this;
+		}
+
+		/**
+		 * Accept batches of API calls at this path under the service context path,
+		 * run them in parallel in-process, and return all the results in one
+		 * response. See Batch for the format and the Config settings. No default;
+		 * disabled unless called.
+		 */
+		public Builder batch(String path) {
+			this.batchPath = path;
+			return this;
+		}
+
+		/**
+		 * Use this pool for all of Jetty's network buffers. No default; Jetty
+		 * creates its own pool per connector.
+		 */
+		public Builder byteBufferPool(ByteBufferPool byteBufferPool) {
+			this.byteBufferPool = byteBufferPool;
+			return this;
+		}
+
+		/**
+		 * Use a bucketed pool of heap and direct buffers, with buckets every 1k up to
+		 * maxBufferSize, that retains at most the given number of bytes of each kind.
+		 * When a limit is reached, the oldest idle buffers are released to the GC.
+		 * maxBufferSize must be a multiple of 1024.
+		 */
+		public Builder byteBufferPool(int maxBufferSize, long maxHeapMemory, long maxDirectMemory) {
+			return byteBufferPool(new ArrayByteBufferPool(0, 1024, maxBufferSize, -1, maxHeapMemory, maxDirectMemory));
+		}
+
+		/**
+		 * Size of the buffer Jetty uses for response content. Responses that fit are
+		 * sent with a Content-Length, in a single write. Default is Jetty's, 32k.
+		 */
+		public Builder outputBufferSize(int outputBufferSize) {
+			this.outputBufferSize = outputBufferSize;
+			return this;
+		}
+
+		/**
+		 * Writes smaller than this are copied into the output buffer rather than
+		 * written directly. Default is Jetty's, 1/4 of the output buffer size.
+		 */
+		public Builder outputAggregationSize(int outputAggregationSize) {
+			this.outputAggregationSize = outputAggregationSize;
+			return this;
+		}
+
+		/**
+		 * Max size of request headers. Default is Jetty's, 8k.
+		 */
+		public Builder requestHeaderSize(int requestHeaderSize) {
+			this.requestHeaderSize = requestHeaderSize;
+			return this;
+		}
+
+		/**
+		 * Max size of response headers. Default is Jetty's, 8k.
+		 */
+		public Builder responseHeaderSize(int responseHeaderSize) {
+			this.responseHeaderSize = responseHeaderSize;
+			return this;
+		}
+
+		/**
+		 * Close connections that have been idle this long. Default is Jetty's, 30
+		 * seconds.
+		 */
+		public Builder idleTimeout(long idleTimeoutMillis) {
+			this.idleTimeout = idleTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * Stop accepting connections while this many are open. Further connections
+		 * wait in the OS accept backlog until some close. Default 0, no limit.
+		 */
+		public Builder maxConnections(int maxConnections) {
+			this.maxConnections = maxConnections;
+			return this;
+		}
+
+		/**
+		 * Stop accepting for a moment whenever more than this many connections
+		 * arrive in a second, so a reconnect storm is spread out. Default 0, no
+		 * limit.
+		 */
+		public Builder acceptRateLimit(int connectionsPerSecond) {
+			this.acceptRate = connectionsPerSecond;
+			return this;
+		}
+
+		/**
+		 * Close new connections from a remote address that already has this many
+		 * open. Default 0, no limit. See ConnectionControl.
+		 */
+		public Builder maxConnectionsPerIp(int maxConnectionsPerIp) {
+			this.maxConnectionsPerIp = maxConnectionsPerIp;
+			return this;
+		}
+
+		/**
+		 * Go into low resource mode when the thread pool runs out of idle threads
+		 * or, if maxMemory is above 0, when the heap in use goes over maxMemory
+		 * bytes. In low resource mode the server stops accepting connections and
+		 * cuts the idle timeout of existing ones to idleTimeoutMillis, until things
+		 * recover. Disabled unless called.
+		 */
+		public Builder lowResources(int idleTimeoutMillis, long maxMemory) {
+			this.lowResourcesIdleTimeout = idleTimeoutMillis;
+			this.lowResourcesMaxMemory = maxMemory;
+			return this;
+		}
+
+		/**
+		 * Reject requests with a body over this many bytes with 413, before the
+		 * body is read if it has a Content-Length. Default 0, no limit. See
+		 * BodyLimit. To accept large bodies without buffering them in the heap,
+		 * take an Upload or Multipart parameter.
+		 */
+		public Builder maxRequestBodySize(long maxRequestBodySize) {
+			this.maxRequestBodySize = maxRequestBodySize;
+			return this;
+		}
+
+		/**
+		 * Give requests a deadline, and stop work on them once it passes. The
+		 * timeout is defaultTimeoutMillis unless the resource has a
+		 * &#64;Deadline.Timeout, and a client can shorten it with the
+		 * X-Request-Timeout header. Use 0 for no default, so only annotated
+		 * resources and clients that ask get a deadline. Off unless called. See
+		 * Deadlines.
+		 */
+		public Builder deadlines(long defaultTimeoutMillis) {
+			this.deadlineDefaultMillis = defaultTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * Limit how many requests run at once, and let waiting requests in by
+		 * priority class. Off unless called. The scheduler must have at least one
+		 * priority class by the time build() is called. See PriorityScheduler.
+		 */
+		public Builder scheduler(PriorityScheduler scheduler) {
+			this.scheduler = scheduler;
+			return this;
+		}
+
+		/**
+		 * Turn on HttpSessions, stored off-heap. Without this the server has no
+		 * sessions. See Sessions.
+		 */
+		public Builder sessions(Sessions sessions) {
+			this.sessions = sessions;
+			return this;
+		}
+
+		/**
+		 * Sample the request log by path, always logging errors and slow requests,
+		 * and optionally replace per-request lines with periodic per-template
+		 * rollups. Wraps requestLog() if one was set. See AccessLog.
+		 */
+		public Builder accessLog(AccessLog accessLog) {
+			this.accessLog = accessLog;
+			return this;
+		}
+
+		/**
+		 * Also listen for HTTPS, on the port and with the certificate given in the
+		 * Tls settings. The plain HTTP port stays open. See Tls.
+		 */
+		public Builder tls(Tls tls) {
+			this.tls = tls;
+			return this;
+		}
+
+		/**
+		 * Jersey copies the first part of each response entity into a byte array so
+		 * it can compute a Content-Length. This sets the size of that array. Set 0 to
+		 * skip the copy and leave buffering to Jetty's output buffer, which is
+		 * pooled. Default is Jersey's, 8k.
+		 */
+		public Builder contentLengthBufferSize(int contentLengthBufferSize) {
+			this.contentLengthBufferSize = contentLengthBufferSize;
+			return this;
+		}
+
+		/**
+		 * Jackson recycles its serialization buffers through a per-thread cache.
+		 * That works well on a fixed pool of threads like Jetty's. Turn it off if
+		 * requests run on a new thread each time, such as virtual threads, where the
+		 * cache would be allocated and thrown away on every request. Default is
+		 * Jackson's, true.
+		 */
+		public Builder jacksonBufferRecycling(boolean jacksonBufferRecycling) {
+			this.jacksonBufferRecycling = jacksonBufferRecycling;
+			return this;
+		}
+
 		/**
 		 * Customize how Jersey serializes and deserializes json.
 		 */
@@ -154,6 +493,33 @@ public class Server {
 			return this;
 		}
 
+		/**
+		 * Serve Server-Sent Events at this path. Clients subscribe to a channel at
+		 * /ssePath/channelName. Publish events with server.getSseHub(). No default.
+		 */
+		public Builder sse(String ssePath) {
+			return sse(ssePath, new SseHub());
+		}
+
+		/**
+		 * Serve Server-Sent Events at this path using a hub that has already been
+		 * configured.
+		 */
+		public Builder sse(String ssePath, SseHub sseHub) {
+			this.ssePath = ssePath;
+			this.sseHub = sseHub;
+			return this;
+		}
+
+		/**
+		 * Accept WebSocket connections at this path. Can be called more than once
+		 * with different paths.
+		 */
+		public Builder websocket(String path, WebSocketEndpoint endpoint) {
+			webSocketEndpoints.put(path, endpoint);
+			return this;
+		}
+
 		/**
 		 * Add a JAX-RS rs service class.
 		 */
@@ -179,10 +545,13 @@ public class Server {
 
 			homeDir = new File(homeDir).getAbsolutePath();
 
-			Server.initLogging(homeDir);
+			Server.initLogging(homeDir, productionLogging);
 
 			Server server = new Server();
 			server.app = app;
+			// what the caller registered, as opposed to what is added below, so
+			// reload() knows what to replace
+			server.services = new ResourceConfig(app);
 			server.logger = LoggerFactory.getLogger(this.getClass());
 
 			if (standardExceptionMappers) {
@@ -201,9 +570,77 @@ public class Server {
 				// enable gzip encoding
 				// TODO test this
 				EncodingFilter.enableFor(app, GZipEncoder.class);
+				if (JfrEvents.AVAILABLE) {
+					app.register(JfrEvents.GzipOuter.class);
+					app.register(JfrEvents.GzipInner.class);
+				}
+			}
+
+			boolean templates = accessLog != null && accessLog.needsTemplates();
+			if (JfrEvents.AVAILABLE || templates) {
+				app.register(new JfrEvents.MatchListener(templates));
+			}
+
+			if (!PropertiesHelper.isProperty(app.getProperty(ServerProperties.BV_FEATURE_DISABLE))) {
+				app.register(new ValidationFastPath(failFastValidation));
+			}
+
+			if (requestTimingSampleRate > 0) {
+				app.register(new RequestTiming(requestTimingSampleRate));
+				app.register(RequestTiming.Interceptor.class);
+			}
+
+			app.register(FileEntityProvider.class);
+			app.register(Upload.Reader.class);
+			app.register(Multipart.Reader.class);
+			if (maxRequestBodySize > 0) {
+				app.register(new BodyLimit(maxRequestBodySize));
+			}
+
+			if (etagMaxBodySize > 0) {
+				app.register(new ETags.Interceptor(etagMaxBodySize));
 			}
 
-			setupObjectMapper(app, objectMapper);
+			Telemetry telemetry = null;
+			if (telemetryPath != null) {
+				telemetry = new Telemetry();
+				telemetry.register(app, telemetryPath);
+			}
+
+			Deadlines deadlines = null;
+			if (deadlineDefaultMillis >= 0) {
+				deadlines = new Deadlines(deadlineDefaultMillis);
+				deadlines.register(app);
+				server.deadlines = deadlines;
+			}
+
+			if (scheduler != null) {
+				scheduler.validate();
+				app.register(scheduler);
+				server.scheduler = scheduler;
+			}
+
+			Batch batch = null;
+			if (batchPath != null) {
+				batch = new Batch();
+				batch.register(app, batchPath);
+			}
+
+			objectMapper = setupObjectMapper(app, objectMapper);
+			if (jacksonBufferRecycling != null) {
+				objectMapper.getFactory().configure(JsonFactory.Feature.USE_THREAD_LOCAL_FOR_BUFFER_RECYCLING,
+						jacksonBufferRecycling);
+			}
+			if (sparseFields) {
+				objectMapper.registerModule(SparseFields.module());
+				app.register(new SparseFields(objectMapper));
+			}
+			if (batch != null && batch.getObjectMapper() == null) {
+				batch.setObjectMapper(objectMapper);
+			}
+			if (contentLengthBufferSize >= 0) {
+				app.property(ServerProperties.OUTBOUND_CONTENT_LENGTH_BUFFER, contentLengthBufferSize);
+			}
 
 			if (host == null) {
 				try {
@@ -219,24 +656,70 @@ public class Server {
 			System.out.println(msg);
 			server.logger.info(msg);
 
-			org.eclipse.jetty.server.Server jettyServer = new org.eclipse.jetty.server.Server(port);
+			org.eclipse.jetty.server.Server jettyServer = new org.eclipse.jetty.server.Server();
+			server.connectionControl = setupConnector(jettyServer, server);
+
+			if (telemetry != null) {
+				telemetry.setThreadPool(jettyServer.getThreadPool());
+				telemetry.setConnectionControl(server.connectionControl);
+				telemetry.setDeadlines(deadlines);
+				telemetry.setPriorityScheduler(scheduler);
+				telemetry.setSessions(sessions);
+				telemetry.setAccessLog(accessLog);
+				jettyServer.addBean(telemetry);
+			}
+			if (batch != null) {
+				jettyServer.addBean(batch);
+			}
+			if (deadlines != null) {
+				jettyServer.addBean(deadlines);
+			}
+			server.byteBufferPool = byteBufferPool;
 
 			/*
 			 * How to do all this:
 			 * https://www.eclipse.org/jetty/documentation/current/embedding-jetty.html
 			 */
 
-			// change this to enable sessions or change security
-			int options = ServletContextHandler.NO_SESSIONS | ServletContextHandler.NO_SECURITY
-					| ServletContextHandler.GZIP;
+			// change this to change security
+			int options = (sessions == null ? ServletContextHandler.NO_SESSIONS : ServletContextHandler.SESSIONS)
+					| ServletContextHandler.NO_SECURITY | ServletContextHandler.GZIP;
 			ServletContextHandler context = new ServletContextHandler(options);
 			context.setContextPath("/");
 			jettyServer.setHandler(context);
 
+			if (sessions != null) {
+				try {
+					sessions.install(jettyServer, context, homeDir);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+				server.sessions = sessions;
+			}
+
+			// compressing a stream defeats the purpose of streaming
+			context.getGzipHandler().addExcludedMimeTypes("text/event-stream");
+
+			if (JfrEvents.AVAILABLE) {
+				context.addFilter(new FilterHolder(new JfrEvents.RequestFilter()), "/*",
+						EnumSet.of(DispatcherType.REQUEST));
+			}
+
+			if (slowRequestThresholdMillis > 0) {
+				SlowRequestWatchdog watchdog = new SlowRequestWatchdog(slowRequestThresholdMillis,
+						slowRequestSampleMillis);
+				context.addFilter(new FilterHolder(watchdog.getFilter()), "/*", EnumSet.of(DispatcherType.REQUEST));
+				jettyServer.addBean(watchdog);
+			}
+
 			// add the jersey servlet
-			ServletContainer jerseyServlet = new ServletContainer(app);
+			ReloadableServlet jerseyServlet = new ReloadableServlet(app);
 			ServletHolder holder = new ServletHolder(jerseyServlet);
 			context.addServlet(holder, serviceContextPath + "/*");
+			server.jerseyHolder = holder;
+			server.host = host;
+			server.serviceContextPath = serviceContextPath;
+			server.objectMapper = objectMapper;
 
 			// add static file serving
 			if (staticFileDir != null) {
@@ -257,7 +740,26 @@ public class Server {
 				// defaultServletHolder.setInitParameter("useFileMappedBuffer", "false");
 			}
 
-			setupRequestLog(jettyServer, requestLog);
+			if (sseHub != null) {
+				if (sseHub.getObjectMapper() == null) {
+					sseHub.setObjectMapper(objectMapper);
+				}
+				context.addServlet(new ServletHolder(sseHub.getServlet()), ssePath + "/*");
+				// the server starts and stops the hub's heartbeat with its other beans
+				jettyServer.addBean(sseHub);
+				server.sseHub = sseHub;
+			}
+
+			for (Map.Entry<String, WebSocketEndpoint> entry : webSocketEndpoints.entrySet()) {
+				WebSocketEndpoint endpoint = entry.getValue();
+				if (endpoint.getObjectMapper() == null) {
+					endpoint.setObjectMapper(objectMapper);
+				}
+				context.addServlet(new ServletHolder(endpoint.getServlet()), entry.getKey());
+			}
+
+			setupRequestLog(jettyServer, context, requestLog);
+			server.accessLog = accessLog;
 			removeJettyServerHeader(jettyServer);
 			jettyServer.setStopAtShutdown(true);
 
@@ -266,6 +768,71 @@ public class Server {
 			return server;
 		}
 
+		private ConnectionControl setupConnector(org.eclipse.jetty.server.Server jettyServer, Server server) {
+			HttpConfiguration httpConfig = new HttpConfiguration();
+			if (outputBufferSize > 0) {
+				httpConfig.setOutputBufferSize(outputBufferSize);
+			}
+			if (outputAggregationSize > 0) {
+				httpConfig.setOutputAggregationSize(outputAggregationSize);
+			}
+			if (requestHeaderSize > 0) {
+				httpConfig.setRequestHeaderSize(requestHeaderSize);
+			}
+			if (responseHeaderSize > 0) {
+				httpConfig.setResponseHeaderSize(responseHeaderSize);
+			}
+
+			if (byteBufferPool != null) {
+				// a server-level bean, so any connector added later shares it
+				jettyServer.addBean(byteBufferPool);
+			}
+
+			ConnectionControl control = new ConnectionControl(maxConnectionsPerIp);
+			ServerConnector connector = new ServerConnector(jettyServer, null, null, byteBufferPool, -1, -1,
+					new ConnectionControl.HttpFactory(httpConfig, control));
+			connector.setPort(port);
+			if (idleTimeout > 0) {
+				connector.setIdleTimeout(idleTimeout);
+			}
+			jettyServer.addConnector(connector);
+
+			if (tls != null) {
+				tls.init(homeDir);
+				ServerConnector tlsConnector = new ServerConnector(jettyServer, null, null, byteBufferPool, -1, -1,
+						tls.connectionFactories(httpConfig, control));
+				tlsConnector.setPort(tls.getPort());
+				if (idleTimeout > 0) {
+					tlsConnector.setIdleTimeout(idleTimeout);
+				}
+				jettyServer.addConnector(tlsConnector);
+				Scanner reloadScanner = tls.newReloadScanner();
+				if (reloadScanner != null) {
+					jettyServer.addBean(reloadScanner);
+				}
+				server.tlsConnector = tlsConnector;
+			}
+
+			// these apply to all the server's connectors
+			if (maxConnections > 0) {
+				jettyServer.addBean(new ConnectionLimit(maxConnections, jettyServer));
+			}
+			if (acceptRate > 0) {
+				jettyServer.addBean(new AcceptRateLimit(acceptRate, 1, TimeUnit.SECONDS, jettyServer));
+			}
+			if (lowResourcesIdleTimeout > 0) {
+				LowResourceMonitor monitor = new LowResourceMonitor(jettyServer);
+				monitor.setMonitorThreads(true);
+				monitor.setMaxMemory(lowResourcesMaxMemory);
+				monitor.setLowResourcesIdleTimeout(lowResourcesIdleTimeout);
+				monitor.setAcceptingInLowResources(false);
+				monitor.setPeriod(1000);
+				jettyServer.addBean(monitor);
+				control.setLowResourceMonitor(monitor);
+			}
+			return control;
+		}
+
 		private String getCanonicalPath(File file) {
 			try {
 				return file.getCanonicalPath();
@@ -274,7 +841,7 @@ public class Server {
 			}
 		}
 
-		private void setupObjectMapper(ResourceConfig app, ObjectMapper objectMapper) {
+		private ObjectMapper setupObjectMapper(ResourceConfig app, ObjectMapper objectMapper) {
 			// see
 			// https://stackoverflow.com/questions/18872931/custom-objectmapper-with-jersey-2-2-and-jackson-2-1
 			// answer by svenwltr
@@ -292,6 +859,7 @@ public class Server {
 			JacksonJaxbJsonProvider provider = new JacksonJaxbJsonProvider();
 			provider.setMapper(objectMapper);
 			app.register(provider);
+			return objectMapper;
 		}
 
 		/**
@@ -316,11 +884,11 @@ public class Server {
 		 * jettyServer.setHandler(handlers); }
 		 */
 
-		private void setupRequestLog(org.eclipse.jetty.server.Server jettyServer, RequestLog requestLog) {
+		private void setupRequestLog(org.eclipse.jetty.server.Server jettyServer, ServletContextHandler context,
+				RequestLog requestLog) {
 			if (requestLog == null) {
 
-				String[] ignorePaths = { "/images/*", "/img/*", "*.css", "*.jpg", "*.JPG", "*.gif", "*.GIF", "*.ico",
-						"*.ICO", "*.js" };
+				String[] ignorePaths = AccessLog.STATIC_PATHS;
 
 				/*-
 				 * This is the newer way of handling request logs. Slf4jRequestLog is deprecated
@@ -330,8 +898,16 @@ public class Server {
 				 */
 
 				Slf4jRequestLogWriter writer = new Slf4jRequestLogWriter();
-				CustomRequestLog crl = new CustomRequestLog(writer, CustomRequestLog.EXTENDED_NCSA_FORMAT);
-				crl.setIgnorePaths(ignorePaths);
+				CustomRequestLog crl;
+				if (requestTimingSampleRate > 0) {
+					crl = new RequestTiming.TimingRequestLog(writer, CustomRequestLog.EXTENDED_NCSA_FORMAT);
+				} else {
+					crl = new CustomRequestLog(writer, CustomRequestLog.EXTENDED_NCSA_FORMAT);
+				}
+				if (accessLog == null) {
+					// AccessLog has its own rules for these
+					crl.setIgnorePaths(ignorePaths);
+				}
 				requestLog = crl;
 
 				/*-
@@ -344,6 +920,9 @@ public class Server {
 				requestLog = rl;
 				*/
 			}
+			if (accessLog != null) {
+				requestLog = accessLog.install(context, requestLog);
+			}
 			jettyServer.setRequestLog(requestLog);
 		}
 
@@ -389,13 +968,25 @@ public class Server {
 	 * Sets up logging properly.
 	 */
 	public static void initLogging(String homeDir) {
+		initLogging(homeDir, false);
+	}
+
+	/**
+	 * Same as initLogging(homeDir), but optionally with the production logging
+	 * profile. Falls back to etc/logback.xml if etc/logback-production.xml is
+	 * missing.
+	 */
+	public static void initLogging(String homeDir, boolean production) {
 
 		// uncomment this to debug logback problems
 		// System.setProperty("logback.statusListenerClass",
 		// "ch.qos.logback.core.status.OnConsoleStatusListener");
 
 		// must init the logger *after* system properties set up
-		File logbackConfFile = new File(homeDir + "/etc/logback.xml");
+		File logbackConfFile = new File(homeDir + "/etc/logback-production.xml");
+		if (!production || !logbackConfFile.exists()) {
+			logbackConfFile = new File(homeDir + "/etc/logback.xml");
+		}
 		System.setProperty("logback.configurationFile", logbackConfFile.getAbsolutePath());
 
 		// redirects java.util.logging (jul) to slf4j. Jersey uses jul.
@@ -403,7 +994,170 @@ public class Server {
 		SLF4JBridgeHandler.install();
 	}
 
+	/**
+	 * Returns the port the server is listening on. Only valid after start().
+	 */
+	public int getPort() {
+		for (Connector connector : jettyServer.getConnectors()) {
+			if (connector instanceof ServerConnector) {
+				return ((ServerConnector) connector).getLocalPort();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the port the server is listening on for HTTPS, or -1 if
+	 * Builder.tls() wasn't set. Only valid after start().
+	 */
+	public int getTlsPort() {
+		return tlsConnector == null ? -1 : tlsConnector.getLocalPort();
+	}
+
+	/**
+	 * Returns the buffer pool set with Builder.byteBufferPool(), or null if
+	 * Jetty is using its default.
+	 */
+	public ByteBufferPool getByteBufferPool() {
+		return byteBufferPool;
+	}
+
+	/**
+	 * Return a client that calls this server's resources in-process, through
+	 * Jersey but without a socket. See InProcessClient. Only valid after
+	 * start().
+	 */
+	public InProcessClient inProcessClient() {
+		String path = serviceContextPath.endsWith("/") ? serviceContextPath : serviceContextPath + "/";
+		URI baseUri = URI.create("http://" + host + ":" + getPort() + path);
+		return new InProcessClient(this::getApplicationHandler, baseUri, objectMapper);
+	}
+
+	private ApplicationHandler getApplicationHandler() {
+		ApplicationHandler handler = getJerseyServlet().getApplicationHandler();
+		if (handler == null) {
+			throw new IllegalStateException("Server is not started");
+		}
+		return handler;
+	}
+
+	private ReloadableServlet getJerseyServlet() {
+		try {
+			// initializes the servlet if no request has done it yet
+			ReloadableServlet servlet = (ReloadableServlet) jerseyHolder.getServlet();
+			if (servlet == null) {
+				throw new IllegalStateException("Server is not started");
+			}
+			return servlet;
+		} catch (ServletException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Replace the services registered with Builder.register() with these, without
+	 * a restart. Everything the Builder added itself, such as exception mappers,
+	 * filters and the json provider, is carried over. Properties in services are
+	 * added to the existing ones.
+	 * <p>
+	 * The new application is built while the old one keeps serving, and new
+	 * requests go to it as soon as it is ready. Requests already running finish
+	 * on the old one. If the new one fails to start, for example because a
+	 * resource is invalid, the old one stays and the exception is thrown. See
+	 * ReloadableServlet.
+	 */
+	public synchronized void reload(ResourceConfig services) throws ServletException {
+		ResourceConfig next = new ResourceConfig();
+		next.addProperties(app.getProperties());
+		copyRegistrations(app, next, this.services);
+		copyRegistrations(services, next, null);
+		next.addProperties(services.getProperties());
+
+		getJerseyServlet().reload(next);
+		app = next;
+		this.services = new ResourceConfig(services);
+	}
+
+	private static void copyRegistrations(ResourceConfig from, ResourceConfig to, ResourceConfig except) {
+		Configuration config = from.getConfiguration();
+		for (Class<?> c : from.getClasses()) {
+			if (except == null || !except.getClasses().contains(c)) {
+				Map<Class<?>, Integer> contracts = config.getContracts(c);
+				if (contracts.isEmpty()) {
+					to.register(c);
+				} else {
+					to.register(c, contracts);
+				}
+			}
+		}
+		for (Object o : from.getInstances()) {
+			if (except == null || !except.getInstances().contains(o)) {
+				Map<Class<?>, Integer> contracts = config.getContracts(o.getClass());
+				if (contracts.isEmpty()) {
+					to.register(o);
+				} else {
+					to.register(o, contracts);
+				}
+			}
+		}
+		for (Resource resource : from.getResources()) {
+			if (except == null || !except.getResources().contains(resource)) {
+				to.registerResources(resource);
+			}
+		}
+	}
+
+	/**
+	 * Returns reload counts and timings. See ReloadableServlet.getStats().
+	 */
+	public Map<String, Object> getReloadStats() {
+		return getJerseyServlet().getStats();
+	}
+
+	/**
+	 * Returns connection counts and the per-IP limit.
+	 */
+	public ConnectionControl getConnectionControl() {
+		return connectionControl;
+	}
+
+	/**
+	 * Returns the deadline counters, or null if Builder.deadlines() wasn't set.
+	 */
+	public Deadlines getDeadlines() {
+		return deadlines;
+	}
+
+	/**
+	 * Returns the scheduler set with Builder.scheduler(), or null.
+	 */
+	public PriorityScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Returns the settings passed to Builder.sessions(), or null.
+	 */
+	public Sessions getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * Returns the settings passed to Builder.accessLog(), or null.
+	 */
+	public AccessLog getAccessLog() {
+		return accessLog;
+	}
+
 	public ResourceConfig getApp() {
 		return app;
 	}
+
+	/**
+	 * Returns the Server-Sent Events hub, or null if .sse() was not called on the
+	 * builder.
+	 */
+	public SseHub getSseHub() {
+		return sseHub;
+	}
 }
@@ -0,0 +1,136 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import org.eclipse.jetty.server.session.DefaultSessionCache;
+import org.eclipse.jetty.server.session.HouseKeeper;
+import org.eclipse.jetty.server.session.SessionCache;
+import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+
+/**
+ * Session settings for Server.Builder.sessions(). Without them the server runs
+ * with no sessions at all. With them, resources get the usual HttpSession from
+ * request.getSession(), but the data is kept serialized outside the heap in a
+ * SlabSessionStore instead of in heap maps:
+ *
+ * <pre>
+ * Server.builder().sessions(new Sessions().maxMemory(256L &lt;&lt; 20).persistTo("data/sessions.dat"))
+ * </pre>
+ *
+ * A session is only on the heap while a request is using it. The first request
+ * to use it deserializes it from the store, and the last one to finish writes
+ * it back and drops it from the heap, so session attributes must be
+ * Serializable.
+ * <p>
+ * Session ids are 128 random bits from Ids. Sessions that expire are
+ * invalidated with the usual listener calls by a scavenger that runs every
+ * scavengeInterval seconds. Sessions evicted because the store is full, or that
+ * expired while the server was down, are dropped without listener calls.
+ * <p>
+ * Counters are available from getStats() and are included in Telemetry
+ * windows.
+ */
+public class Sessions {
+
+	private long maxMemory = 64L << 20;
+	private int slabSize = 1 << 20;
+	private int maxInactiveSeconds = 30 * 60;
+	private int scavengeIntervalSeconds = 10;
+	private String persistPath;
+
+	private SlabSessionStore store;
+
+	/**
+	 * Most memory for session data, in bytes. Default 64MB.
+	 */
+	public Sessions maxMemory(long bytes) {
+		this.maxMemory = bytes;
+		return this;
+	}
+
+	/**
+	 * Size of the slabs memory is handed out in, which is also the largest a
+	 * serialized session can be. Default 1MB.
+	 */
+	public Sessions slabSize(int bytes) {
+		this.slabSize = bytes;
+		return this;
+	}
+
+	/**
+	 * How long a session lasts without being used. Default 30 minutes.
+	 */
+	public Sessions maxInactive(int seconds) {
+		this.maxInactiveSeconds = seconds;
+		return this;
+	}
+
+	/**
+	 * How often to look for expired sessions. Default 10 seconds.
+	 */
+	public Sessions scavengeInterval(int seconds) {
+		this.scavengeIntervalSeconds = seconds;
+		return this;
+	}
+
+	/**
+	 * Memory-map the store from this file so sessions survive a restart. A
+	 * relative path is resolved against the home dir. The file is as large as
+	 * maxMemory, but sparse until used. Default none.
+	 */
+	public Sessions persistTo(String path) {
+		this.persistPath = path;
+		return this;
+	}
+
+	/**
+	 * Set up the context's session handler, and the server's session id
+	 * manager.
+	 */
+	void install(org.eclipse.jetty.server.Server jettyServer, ServletContextHandler context, String homeDir)
+			throws Exception {
+		SlabSessionStore.IdManager idManager = new SlabSessionStore.IdManager(jettyServer);
+		HouseKeeper houseKeeper = new HouseKeeper();
+		houseKeeper.setIntervalSec(scavengeIntervalSeconds);
+		idManager.setSessionHouseKeeper(houseKeeper);
+		jettyServer.setSessionIdManager(idManager);
+
+		File file = null;
+		if (persistPath != null) {
+			file = new File(persistPath);
+			if (!file.isAbsolute()) {
+				file = new File(homeDir, persistPath);
+			}
+		}
+		store = new SlabSessionStore(maxMemory, slabSize, file);
+
+		SessionHandler handler = context.getSessionHandler();
+		handler.setMaxInactiveInterval(maxInactiveSeconds);
+		handler.setHttpOnly(true);
+		// the cache only holds sessions that requests are using, which also lets
+		// invalidation of expired sessions call the listeners
+		DefaultSessionCache cache = new DefaultSessionCache(handler);
+		cache.setEvictionPolicy(SessionCache.EVICT_ON_SESSION_EXIT);
+		cache.setRemoveUnloadableSessions(true);
+		cache.setSessionDataStore(store);
+		handler.setSessionCache(cache);
+	}
+
+	/**
+	 * Return the store, or null before the server is built.
+	 */
+	public SlabSessionStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Return the store's counters, for Telemetry.
+	 */
+	public Map<String, Object> getStats() {
+		return store == null ? Collections.emptyMap() : store.getStats();
+	}
+
+}
@@ -0,0 +1,883 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jetty.server.session.AbstractSessionDataStore;
+import org.eclipse.jetty.server.session.DefaultSessionIdManager;
+import org.eclipse.jetty.server.session.SessionData;
+import org.eclipse.jetty.server.session.UnreadableSessionDataException;
+import org.eclipse.jetty.util.ClassLoadingObjectInputStream;
+import org.eclipse.jetty.util.StringUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dieselpoint.dieseljax.util.Ids;
+
+/**
+ * Keeps serialized session data outside the Java heap. Server.Builder installs
+ * it when sessions are turned on; see Sessions for the settings.
+ * <p>
+ * Memory is divided into slabs of equal size, and each slab, when first
+ * needed, is cut into chunks of one size class. Classes grow by a quarter from
+ * 128 bytes up to the slab size, so a session wastes at most a fifth of its
+ * chunk. A session goes in the smallest chunk that holds it and is rewritten
+ * in place while it stays in the same class. When a class has no free chunk
+ * and no slab is left to give it, the least recently stored session of that
+ * class is evicted. A class that has no slab at all when memory runs out takes
+ * one from the class with the most, evicting the sessions in it.
+ * <p>
+ * The heap holds only a small index entry per session. Expiry is tracked by a
+ * hierarchical timer wheel, so the scavenger only looks at sessions that are
+ * actually due, not the whole store.
+ * <p>
+ * With a file the slabs are memory-mapped from it, and the index is rebuilt
+ * from the file at startup, so sessions survive a restart. Writes reach the
+ * file as the OS flushes them and are forced on a clean stop; a crash can lose
+ * the most recent ones.
+ */
+public class SlabSessionStore extends AbstractSessionDataStore {
+
+	private static final long MAGIC = 0x646a78736c616231L;
+	private static final int MIN_CHUNK = 128;
+	// record header: int length of the body, 0 if the chunk is free, then the
+	// long expiry
+	private static final int RECORD_HEADER = 12;
+	// rough heap cost of an index entry, with its map node and id string
+	private static final int ENTRY_HEAP_BYTES = 200;
+	// how long to wait before offering an expired session to Jetty again, if it
+	// didn't delete it the first time
+	private static final long RETRY_MILLIS = 60 * 1000;
+
+	private final Logger logger = LoggerFactory.getLogger(SlabSessionStore.class);
+
+	private final int slabSize;
+	private final int slabCount;
+	private final File file;
+	private final int[] chunkSizes;
+
+	// everything below is guarded by this
+	private final Map<String, Entry> index = new HashMap<>();
+	private final SizeClass[] classes;
+	private final ByteBuffer[] slabs;
+	private final int[] slabClass;
+	private int nextSlab;
+	private int slabsUsed;
+	private FileChannel channel;
+	private MappedByteBuffer header;
+	private Wheel wheel;
+
+	private long usedBytes;
+	private long chunkBytes;
+	private long stores;
+	private long loads;
+	private long deletes;
+	private long expired;
+	private long evicted;
+	private long slabsReassigned;
+	private long rejected;
+	private long recovered;
+
+	/**
+	 * @param maxMemory most bytes of session data, rounded down to whole slabs
+	 * @param slabSize  bytes per slab, which is also the largest session
+	 * @param file      file to map the slabs from, or null to keep them in
+	 *                  direct memory only
+	 */
+	public SlabSessionStore(long maxMemory, int slabSize, File file) {
+		if (slabSize < MIN_CHUNK * 2) {
+			throw new IllegalArgumentException("Slab size is too small: " + slabSize);
+		}
+		this.slabSize = slabSize;
+		this.slabCount = (int) Math.max(1, maxMemory / slabSize);
+		this.file = file;
+		this.chunkSizes = chunkSizes(slabSize);
+		this.classes = new SizeClass[chunkSizes.length];
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new SizeClass(chunkSizes[i]);
+		}
+		this.slabs = new ByteBuffer[slabCount];
+		this.slabClass = new int[slabCount];
+		Arrays.fill(slabClass, -1);
+	}
+
+	private static int[] chunkSizes(int slabSize) {
+		List<Integer> sizes = new ArrayList<>();
+		int size = MIN_CHUNK;
+		while (size < slabSize) {
+			sizes.add(size);
+			size = (Math.max(size + 8, size + size / 4) + 7) & ~7;
+		}
+		sizes.add(slabSize);
+		return sizes.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	@Override
+	protected synchronized void doStart() throws Exception {
+		wheel = new Wheel(System.currentTimeMillis());
+		if (file != null) {
+			openFile();
+		}
+		super.doStart();
+	}
+
+	@Override
+	protected synchronized void doStop() throws Exception {
+		super.doStop();
+		if (channel != null) {
+			for (ByteBuffer slab : slabs) {
+				if (slab != null) {
+					((MappedByteBuffer) slab).force();
+				}
+			}
+			header.force();
+			channel.close();
+			channel = null;
+			header = null;
+		}
+		// direct buffers are freed when collected
+		index.clear();
+		Arrays.fill(slabs, null);
+		Arrays.fill(slabClass, -1);
+		for (SizeClass c : classes) {
+			c.clear();
+		}
+		nextSlab = 0;
+		slabsUsed = 0;
+		usedBytes = 0;
+		chunkBytes = 0;
+	}
+
+	/*
+	 * The file is a header page with the settings and which class each slab
+	 * belongs to, followed by the slabs.
+	 */
+
+	private int headerSize() {
+		return (20 + 4 * slabCount + 4095) & ~4095;
+	}
+
+	private void openFile() throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		boolean existed = file.length() > 0;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerSize());
+
+		if (existed && header.getLong(0) == MAGIC && header.getInt(8) == slabSize && header.getInt(12) == slabCount
+				&& header.getInt(16) == MIN_CHUNK) {
+			recover();
+			logger.info("Recovered " + recovered + " sessions from " + file);
+			return;
+		}
+		if (existed) {
+			logger.warn("Session file " + file + " doesn't match the session settings; starting empty");
+		}
+		header.putLong(0, MAGIC);
+		header.putInt(8, slabSize);
+		header.putInt(12, slabCount);
+		header.putInt(16, MIN_CHUNK);
+		for (int i = 0; i < slabCount; i++) {
+			header.putInt(20 + 4 * i, -1);
+		}
+	}
+
+	private void recover() throws IOException {
+		long now = System.currentTimeMillis();
+		for (int s = 0; s < slabCount; s++) {
+			int cls = header.getInt(20 + 4 * s);
+			if (cls < 0 || cls >= classes.length) {
+				continue;
+			}
+			ByteBuffer slab = mapSlab(s);
+			slabClass[s] = cls;
+			slabsUsed++;
+			SizeClass c = classes[cls];
+			c.slabs++;
+			int chunks = slabSize / c.chunkSize;
+			for (int i = 0; i < chunks; i++) {
+				int offset = i * c.chunkSize;
+				int length = slab.getInt(offset);
+				long expiry = slab.getLong(offset + 4);
+				String id = null;
+				if (length > 0 && length <= c.chunkSize - RECORD_HEADER && (expiry <= 0 || expiry > now)) {
+					id = readId(slab, offset, length);
+				}
+				if (id == null || index.containsKey(id)) {
+					slab.putInt(offset, 0);
+					c.push(address(s, offset));
+					continue;
+				}
+				Entry e = new Entry(id);
+				e.cls = cls;
+				e.address = address(s, offset);
+				e.length = length;
+				e.expiry = expiry;
+				index.put(id, e);
+				c.lruAdd(e);
+				wheel.schedule(e);
+				usedBytes += length;
+				chunkBytes += c.chunkSize;
+				recovered++;
+			}
+		}
+	}
+
+	private static String readId(ByteBuffer slab, int offset, int length) {
+		ByteBuffer body = slab.duplicate();
+		body.position(offset + RECORD_HEADER);
+		byte[] bytes = new byte[Math.min(length, 2 + 1024)];
+		body.get(bytes);
+		try {
+			return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private ByteBuffer mapSlab(int s) throws IOException {
+		ByteBuffer slab = channel.map(FileChannel.MapMode.READ_WRITE, headerSize() + (long) s * slabSize, slabSize);
+		slabs[s] = slab;
+		return slab;
+	}
+
+	private static long address(int slab, int offset) {
+		return ((long) slab << 32) | offset;
+	}
+
+	private static int slabOf(long address) {
+		return (int) (address >>> 32);
+	}
+
+	private static int offsetOf(long address) {
+		return (int) address;
+	}
+
+	/*
+	 * SessionDataStore
+	 */
+
+	@Override
+	public boolean isPassivating() {
+		return true;
+	}
+
+	@Override
+	public synchronized boolean exists(String id) throws Exception {
+		Entry e = index.get(id);
+		return e != null && (e.expiry <= 0 || e.expiry > System.currentTimeMillis());
+	}
+
+	@Override
+	public void doStore(String id, SessionData data, long lastSaveTime) throws Exception {
+		byte[] body = serialize(id, data);
+		synchronized (this) {
+			int cls = classFor(body.length + RECORD_HEADER);
+			if (cls < 0) {
+				rejected++;
+				throw new IOException(
+						"Session " + id + " is " + body.length + " bytes, more than the slab size " + slabSize);
+			}
+			Entry e = index.get(id);
+			if (e == null) {
+				e = new Entry(id);
+				long address = allocate(cls);
+				if (address < 0) {
+					rejected++;
+					throw new IOException("No room for session " + id + " in the session store");
+				}
+				e.cls = cls;
+				e.address = address;
+				index.put(id, e);
+				chunkBytes += chunkSizes[cls];
+			} else {
+				usedBytes -= e.length;
+				classes[e.cls].lruRemove(e);
+				wheel.cancel(e);
+				if (e.cls != cls) {
+					// let go of the old chunk before finding a new one. Finding room
+					// can evict sessions or move a slab to another class, and this
+					// session must not be among them
+					free(e);
+					index.remove(id);
+					long address = allocate(cls);
+					if (address < 0) {
+						rejected++;
+						throw new IOException("No room for session " + id + " in the session store");
+					}
+					e.cls = cls;
+					e.address = address;
+					index.put(id, e);
+					chunkBytes += chunkSizes[cls];
+				}
+			}
+
+			ByteBuffer slab = slabs[slabOf(e.address)].duplicate();
+			int offset = offsetOf(e.address);
+			// the length goes in last, so a torn write in the file leaves a free
+			// chunk or the old record rather than garbage
+			slab.putInt(offset, 0);
+			slab.putLong(offset + 4, data.getExpiry());
+			slab.position(offset + RECORD_HEADER);
+			slab.put(body);
+			slab.putInt(offset, body.length);
+
+			e.length = body.length;
+			e.expiry = data.getExpiry();
+			usedBytes += e.length;
+			classes[e.cls].lruAdd(e);
+			wheel.schedule(e);
+			stores++;
+		}
+	}
+
+	@Override
+	public SessionData doLoad(String id) throws Exception {
+		byte[] body;
+		synchronized (this) {
+			Entry e = index.get(id);
+			if (e == null) {
+				return null;
+			}
+			body = new byte[e.length];
+			ByteBuffer slab = slabs[slabOf(e.address)].duplicate();
+			slab.position(offsetOf(e.address) + RECORD_HEADER);
+			slab.get(body);
+			loads++;
+		}
+
+		AtomicReference<SessionData> result = new AtomicReference<>();
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		// deserialize with the webapp's class loader
+		_context.run(() -> {
+			try {
+				result.set(deserialize(body));
+			} catch (Exception e) {
+				failure.set(e);
+			}
+		});
+		if (failure.get() != null) {
+			throw new UnreadableSessionDataException(id, _context, failure.get());
+		}
+		return result.get();
+	}
+
+	@Override
+	public synchronized boolean delete(String id) throws Exception {
+		Entry e = index.remove(id);
+		if (e == null) {
+			return false;
+		}
+		free(e);
+		usedBytes -= e.length;
+		classes[e.cls].lruRemove(e);
+		wheel.cancel(e);
+		deletes++;
+		return true;
+	}
+
+	/**
+	 * Return the sessions the wheel says are due, plus any of the candidates
+	 * that have expired or are gone. Jetty then loads and invalidates them,
+	 * which calls the session listeners and deletes them here.
+	 */
+	@Override
+	public synchronized Set<String> doGetExpired(Set<String> candidates) {
+		long now = System.currentTimeMillis();
+		Set<String> due = new HashSet<>();
+		List<Entry> fired = new ArrayList<>();
+		wheel.advance(now, fired);
+		for (Entry e : fired) {
+			if (e.expiry > 0 && e.expiry <= now) {
+				due.add(e.id);
+				expired++;
+				// if Jetty doesn't delete it, because it is in use, offer it again
+				// later
+				wheel.scheduleAt(e, now + RETRY_MILLIS);
+			} else {
+				wheel.schedule(e);
+			}
+		}
+		for (String id : candidates) {
+			Entry e = index.get(id);
+			if (e == null || (e.expiry > 0 && e.expiry <= now)) {
+				due.add(id);
+			}
+		}
+		return due;
+	}
+
+	/*
+	 * Allocation. Addresses are the slab index in the high 32 bits and the
+	 * chunk offset in the low.
+	 */
+
+	private int classFor(int size) {
+		int i = Arrays.binarySearch(chunkSizes, size);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return i < chunkSizes.length ? i : -1;
+	}
+
+	private long allocate(int cls) throws IOException {
+		SizeClass c = classes[cls];
+		if (c.free == 0) {
+			while (nextSlab < slabCount && slabClass[nextSlab] >= 0) {
+				nextSlab++;
+			}
+			if (nextSlab < slabCount) {
+				int s = nextSlab++;
+				slabsUsed++;
+				slabs[s] = channel == null ? ByteBuffer.allocateDirect(slabSize) : mapSlab(s);
+				assignSlab(s, cls);
+			} else if (c.lruTail() != null) {
+				evict(c.lruTail());
+			} else {
+				// the class has no slab at all, so take one from the class that
+				// has the most
+				int donor = -1;
+				for (int i = 0; i < classes.length; i++) {
+					if (classes[i].slabs > 0 && (donor < 0 || classes[i].slabs > classes[donor].slabs)) {
+						donor = i;
+					}
+				}
+				if (donor < 0) {
+					return -1;
+				}
+				reassignSlab(donor, cls);
+			}
+		}
+		return c.pop();
+	}
+
+	/**
+	 * Empty a slab of one class, evicting its sessions, and give it to another.
+	 * The slab is the one holding the donor's least recently stored session.
+	 */
+	private void reassignSlab(int from, int to) {
+		SizeClass donor = classes[from];
+		int s = -1;
+		if (donor.lruTail() != null) {
+			s = slabOf(donor.lruTail().address);
+		} else {
+			for (int i = 0; i < slabCount && s < 0; i++) {
+				if (slabClass[i] == from) {
+					s = i;
+				}
+			}
+		}
+		Entry e = donor.lru.lruNext;
+		while (e != donor.lru) {
+			Entry next = e.lruNext;
+			if (slabOf(e.address) == s) {
+				evict(e);
+			}
+			e = next;
+		}
+		int n = 0;
+		for (int i = 0; i < donor.free; i++) {
+			if (slabOf(donor.stack[i]) != s) {
+				donor.stack[n++] = donor.stack[i];
+			}
+		}
+		donor.free = n;
+		donor.slabs--;
+		slabsReassigned++;
+		assignSlab(s, to);
+	}
+
+	private void assignSlab(int s, int cls) {
+		SizeClass c = classes[cls];
+		ByteBuffer slab = slabs[s];
+		slabClass[s] = cls;
+		c.slabs++;
+		int chunks = slabSize / c.chunkSize;
+		// push in reverse so chunks are handed out in address order
+		for (int i = chunks - 1; i >= 0; i--) {
+			slab.putInt(i * c.chunkSize, 0);
+			c.push(address(s, i * c.chunkSize));
+		}
+		if (header != null) {
+			header.putInt(20 + 4 * s, cls);
+		}
+	}
+
+	private void evict(Entry e) {
+		index.remove(e.id);
+		free(e);
+		usedBytes -= e.length;
+		classes[e.cls].lruRemove(e);
+		wheel.cancel(e);
+		evicted++;
+	}
+
+	private void free(Entry e) {
+		slabs[slabOf(e.address)].putInt(offsetOf(e.address), 0);
+		classes[e.cls].push(e.address);
+		chunkBytes -= chunkSizes[e.cls];
+	}
+
+	/*
+	 * Serialization
+	 */
+
+	private static byte[] serialize(String id, SessionData data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(id);
+		out.writeUTF(data.getContextPath());
+		out.writeUTF(data.getVhost());
+		out.writeUTF(data.getLastNode() == null ? "" : data.getLastNode());
+		out.writeLong(data.getCreated());
+		out.writeLong(data.getAccessed());
+		out.writeLong(data.getLastAccessed());
+		out.writeLong(data.getCookieSet());
+		out.writeLong(data.getExpiry());
+		out.writeLong(data.getMaxInactiveMs());
+		// not SessionData.serializeAttributes(), which refuses classes from
+		// loaders other than the webapp's and the server's
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeInt(data.getKeys().size());
+		for (String name : data.getKeys()) {
+			oos.writeUTF(name);
+			oos.writeObject(data.getAttribute(name));
+		}
+		oos.flush();
+		return bytes.toByteArray();
+	}
+
+	private SessionData deserialize(byte[] body) throws Exception {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		String id = in.readUTF();
+		String contextPath = in.readUTF();
+		String vhost = in.readUTF();
+		String lastNode = in.readUTF();
+		long created = in.readLong();
+		long accessed = in.readLong();
+		long lastAccessed = in.readLong();
+		long cookieSet = in.readLong();
+		long expiry = in.readLong();
+		long maxInactiveMs = in.readLong();
+
+		SessionData data = newSessionData(id, created, accessed, lastAccessed, maxInactiveMs);
+		data.setContextPath(contextPath);
+		data.setVhost(vhost);
+		data.setLastNode(lastNode);
+		data.setCookieSet(cookieSet);
+		data.setExpiry(expiry);
+		Map<String, Object> attributes = new HashMap<>();
+		try (ClassLoadingObjectInputStream ois = new ClassLoadingObjectInputStream(in)) {
+			int n = ois.readInt();
+			for (int i = 0; i < n; i++) {
+				String name = ois.readUTF();
+				attributes.put(name, ois.readObject());
+			}
+		}
+		data.putAllAttributes(attributes);
+		return data;
+	}
+
+	/**
+	 * Return occupancy, eviction and traffic counters, for Telemetry.
+	 * offHeapBytes is what the slabs take outside the heap, and heapBytes an
+	 * estimate of what the index takes on it; the difference is what the
+	 * collector doesn't have to trace or copy.
+	 */
+	public synchronized Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		long capacity = (long) slabCount * slabSize;
+		stats.put("sessions", index.size());
+		stats.put("usedBytes", usedBytes);
+		stats.put("chunkBytes", chunkBytes);
+		stats.put("offHeapBytes", (long) slabsUsed * slabSize);
+		stats.put("capacityBytes", capacity);
+		stats.put("occupancy", capacity == 0 ? 0.0 : (double) chunkBytes / capacity);
+		stats.put("slabsUsed", slabsUsed);
+		stats.put("slabs", slabCount);
+		stats.put("heapBytes", (long) index.size() * ENTRY_HEAP_BYTES);
+		stats.put("stores", stores);
+		stats.put("loads", loads);
+		stats.put("deletes", deletes);
+		stats.put("expired", expired);
+		stats.put("evicted", evicted);
+		stats.put("slabsReassigned", slabsReassigned);
+		stats.put("rejected", rejected);
+		stats.put("recovered", recovered);
+		return stats;
+	}
+
+	/**
+	 * Check that the index, the LRU lists, the free stacks and the byte counts
+	 * agree, and that every chunk of every slab in use is either free or holds
+	 * exactly one session. Throws IllegalStateException if not. It walks
+	 * everything, so it is for tests.
+	 */
+	synchronized void verify() {
+		Set<Long> seen = new HashSet<>();
+		long used = 0;
+		long chunks = 0;
+		for (Entry e : index.values()) {
+			int slabCls = slabClass[slabOf(e.address)];
+			check(slabCls == e.cls, "session " + e.id + " is in a slab of class " + slabCls + ", not " + e.cls);
+			check(offsetOf(e.address) % chunkSizes[e.cls] == 0, "session " + e.id + " is not on a chunk boundary");
+			check(seen.add(e.address), "session " + e.id + " shares its chunk");
+			used += e.length;
+			chunks += chunkSizes[e.cls];
+		}
+		int listed = 0;
+		for (int i = 0; i < classes.length; i++) {
+			SizeClass c = classes[i];
+			for (Entry e = c.lru.lruNext; e != c.lru; e = e.lruNext) {
+				check(index.get(e.id) == e && e.cls == i, "LRU list of class " + i + " has a stray " + e.id);
+				listed++;
+			}
+			for (int j = 0; j < c.free; j++) {
+				long address = c.stack[j];
+				check(slabClass[slabOf(address)] == i, "free chunk of class " + i + " is in a slab of class "
+						+ slabClass[slabOf(address)]);
+				check(seen.add(address), "free chunk of class " + i + " is also free or in use elsewhere");
+			}
+		}
+		check(listed == index.size(), "LRU lists have " + listed + " sessions, the index " + index.size());
+		check(used == usedBytes, "usedBytes is " + usedBytes + ", sessions add up to " + used);
+		check(chunks == chunkBytes, "chunkBytes is " + chunkBytes + ", sessions add up to " + chunks);
+		long expected = 0;
+		for (int s = 0; s < slabCount; s++) {
+			if (slabClass[s] >= 0) {
+				expected += slabSize / chunkSizes[slabClass[s]];
+			}
+		}
+		check(seen.size() == expected, seen.size() + " chunks accounted for, slabs have " + expected);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+
+	/**
+	 * Index entry for one session. It is linked into its size class's LRU list
+	 * and into a timer wheel slot.
+	 */
+	static class Entry {
+
+		final String id;
+		int cls;
+		long address;
+		int length;
+		long expiry;
+		long tick;
+		Entry lruPrev, lruNext;
+		Entry wheelPrev, wheelNext;
+
+		Entry(String id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Free chunks of one size, as a stack of addresses, and the sessions in
+	 * chunks of that size, most recently stored first.
+	 */
+	private static class SizeClass {
+
+		final int chunkSize;
+		long[] stack = new long[16];
+		int free;
+		int slabs;
+		final Entry lru = new Entry(null);
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+			clear();
+		}
+
+		void clear() {
+			free = 0;
+			slabs = 0;
+			lru.lruPrev = lru;
+			lru.lruNext = lru;
+		}
+
+		void push(long address) {
+			if (free == stack.length) {
+				stack = Arrays.copyOf(stack, free * 2);
+			}
+			stack[free++] = address;
+		}
+
+		long pop() {
+			return stack[--free];
+		}
+
+		void lruAdd(Entry e) {
+			e.lruNext = lru.lruNext;
+			e.lruPrev = lru;
+			lru.lruNext.lruPrev = e;
+			lru.lruNext = e;
+		}
+
+		void lruRemove(Entry e) {
+			e.lruPrev.lruNext = e.lruNext;
+			e.lruNext.lruPrev = e.lruPrev;
+			e.lruPrev = null;
+			e.lruNext = null;
+		}
+
+		Entry lruTail() {
+			return lru.lruPrev == lru ? null : lru.lruPrev;
+		}
+	}
+
+	/**
+	 * Hierarchical timer wheel with one-second ticks: 256 slots of one tick,
+	 * 256 of 256 ticks, and 64 of 65536 ticks, which covers about 48 days.
+	 * Entries further out wait in the last slot and are placed again when it
+	 * comes round. Scheduling and cancelling are constant time; advancing
+	 * touches only the slots that come due, moving entries down a level when
+	 * their slot at a higher one is reached.
+	 */
+	static class Wheel {
+
+		private static final long TICK_MILLIS = 1000;
+
+		private final Entry[] level0 = sentinels(256);
+		private final Entry[] level1 = sentinels(256);
+		private final Entry[] level2 = sentinels(64);
+		private long current;
+
+		Wheel(long nowMillis) {
+			current = nowMillis / TICK_MILLIS;
+		}
+
+		private static Entry[] sentinels(int n) {
+			Entry[] slots = new Entry[n];
+			for (int i = 0; i < n; i++) {
+				Entry s = new Entry(null);
+				s.wheelPrev = s;
+				s.wheelNext = s;
+				slots[i] = s;
+			}
+			return slots;
+		}
+
+		/**
+		 * Schedule at the entry's expiry. Entries that never expire aren't
+		 * scheduled.
+		 */
+		void schedule(Entry e) {
+			if (e.expiry > 0) {
+				scheduleAt(e, e.expiry);
+			}
+		}
+
+		void scheduleAt(Entry e, long millis) {
+			e.tick = Math.max(millis / TICK_MILLIS + 1, current + 1);
+			place(e);
+		}
+
+		private void place(Entry e) {
+			long t = e.tick;
+			Entry slot;
+			if (t - current < 256) {
+				slot = level0[(int) (t & 255)];
+			} else if ((t >> 8) - (current >> 8) < 256) {
+				slot = level1[(int) ((t >> 8) & 255)];
+			} else {
+				long group = Math.min(t >> 16, (current >> 16) + 63);
+				slot = level2[(int) (group & 63)];
+			}
+			e.wheelNext = slot.wheelNext;
+			e.wheelPrev = slot;
+			slot.wheelNext.wheelPrev = e;
+			slot.wheelNext = e;
+		}
+
+		void cancel(Entry e) {
+			if (e.wheelPrev != null) {
+				e.wheelPrev.wheelNext = e.wheelNext;
+				e.wheelNext.wheelPrev = e.wheelPrev;
+				e.wheelPrev = null;
+				e.wheelNext = null;
+			}
+		}
+
+		/**
+		 * Move time forward and add every entry that comes due to fired,
+		 * removed from the wheel.
+		 */
+		void advance(long nowMillis, List<Entry> fired) {
+			long target = nowMillis / TICK_MILLIS;
+			while (current < target) {
+				current++;
+				if ((current & 0xFFFF) == 0) {
+					cascade(level2[(int) ((current >> 16) & 63)]);
+				}
+				if ((current & 255) == 0) {
+					cascade(level1[(int) ((current >> 8) & 255)]);
+				}
+				Entry slot = level0[(int) (current & 255)];
+				while (slot.wheelNext != slot) {
+					Entry e = slot.wheelNext;
+					cancel(e);
+					fired.add(e);
+				}
+			}
+		}
+
+		private void cascade(Entry slot) {
+			Entry e = slot.wheelNext;
+			slot.wheelNext = slot;
+			slot.wheelPrev = slot;
+			while (e != slot) {
+				Entry next = e.wheelNext;
+				place(e);
+				e = next;
+			}
+		}
+	}
+
+	/**
+	 * Makes session ids from Ids: 128 random bits from a per-thread DRBG, with
+	 * no lock shared between request threads.
+	 */
+	public static class IdManager extends DefaultSessionIdManager {
+
+		public IdManager(org.eclipse.jetty.server.Server server) {
+			super(server);
+		}
+
+		@Override
+		public String newSessionId(long seedTerm) {
+			String id = Ids.token(16);
+			if (!StringUtil.isBlank(_workerName)) {
+				id = _workerName + id;
+			}
+			return id;
+		}
+	}
+
+}
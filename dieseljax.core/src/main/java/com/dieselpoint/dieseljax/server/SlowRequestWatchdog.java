@@ -0,0 +1,266 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches requests while they run. When one takes longer than a threshold, its
+ * thread's stack is sampled at intervals until it finishes, and then a report
+ * with the path, the elapsed time and the frames that showed up most often is
+ * written to the "com.dieselpoint.dieseljax.slowrequests" logger. Enable it
+ * with Server.Builder.slowRequests().
+ * <p>
+ * Each request thread gets a slot the first time it runs a request. After that,
+ * tracking a request is a few volatile writes to that slot, with no locks and no
+ * allocation. A single background thread scans the slots.
+ */
+public class SlowRequestWatchdog extends AbstractLifeCycle {
+
+	public static final String LOGGER_NAME = "com.dieselpoint.dieseljax.slowrequests";
+
+	private static final int TOP_FRAMES = 10;
+	private static final int STACK_DEPTH = 40;
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+	private Logger slowLog = LoggerFactory.getLogger(LOGGER_NAME);
+
+	private final long thresholdNanos;
+	private final long sampleIntervalMillis;
+	private final int maxSamples;
+
+	private final ThreadLocal<Slot> slots = new ThreadLocal<>();
+	private final ConcurrentLinkedQueue<Slot> allSlots = new ConcurrentLinkedQueue<>();
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param thresholdMillis      requests running longer than this get sampled
+	 * @param sampleIntervalMillis how often to sample the stack of a slow request
+	 */
+	public SlowRequestWatchdog(long thresholdMillis, long sampleIntervalMillis) {
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.sampleIntervalMillis = sampleIntervalMillis;
+		// a request that never finishes still gets reported about once a minute
+		this.maxSamples = (int) Math.max(10, 60_000 / sampleIntervalMillis);
+	}
+
+	/**
+	 * Returns the filter that tracks requests. Server.Builder installs this on
+	 * every path.
+	 */
+	public Filter getFilter() {
+		return new WatchdogFilter();
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "slow-request-watchdog");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::scan, sampleIntervalMillis, sampleIntervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	private Slot slot() {
+		Slot slot = slots.get();
+		if (slot == null) {
+			slot = new Slot(Thread.currentThread());
+			slots.set(slot);
+			allSlots.add(slot);
+		}
+		return slot;
+	}
+
+	private void scan() {
+		try {
+			long now = System.nanoTime();
+			Iterator<Slot> it = allSlots.iterator();
+			while (it.hasNext()) {
+				Slot slot = it.next();
+				Thread thread = slot.thread.get();
+				if (thread == null || !thread.isAlive()) {
+					it.remove();
+					continue;
+				}
+				scan(slot, thread, now);
+			}
+		} catch (Throwable t) {
+			// don't let an exception kill the scheduled task
+			logger.error(t.toString(), t);
+		}
+	}
+
+	private void scan(Slot slot, Thread thread, long now) {
+		// read the sequence first; if it changes while we sample, the stack may
+		// belong to the next request, so throw the sample away
+		long seq = slot.seq;
+		long start = slot.start;
+
+		if (slot.sampledSeq != 0 && slot.sampledSeq != seq) {
+			// the slow request we were sampling has finished
+			report(slot, false);
+		}
+		if (start == 0 || now - start < thresholdNanos) {
+			return;
+		}
+
+		StackTraceElement[] stack = thread.getStackTrace();
+		if (slot.seq != seq) {
+			return;
+		}
+
+		if (slot.sampledSeq != seq) {
+			slot.sampledSeq = seq;
+			slot.sampledStart = start;
+			slot.sampledMethod = slot.method;
+			slot.sampledPath = slot.path;
+		}
+		slot.lastSeen = now;
+		slot.lastStack = stack;
+		slot.sampleCount++;
+		if (stack.length > 0) {
+			slot.topFrames.merge(stack[0], 1, Integer::sum);
+		}
+		// count each frame once per sample, even if it recurses
+		for (StackTraceElement frame : new HashSet<>(Arrays.asList(stack))) {
+			slot.allFrames.merge(frame, 1, Integer::sum);
+		}
+
+		if (slot.sampleCount >= maxSamples) {
+			report(slot, true);
+			slot.sampledSeq = seq;
+		}
+	}
+
+	private void report(Slot slot, boolean stillRunning) {
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(slot.lastSeen - slot.sampledStart);
+
+		StringBuilder sb = new StringBuilder(2048);
+		sb.append("Slow request: ").append(slot.sampledMethod).append(' ').append(slot.sampledPath);
+		sb.append(stillRunning ? " still running after " : " took at least ").append(elapsedMillis).append(" ms, ");
+		sb.append(slot.sampleCount).append(" samples\n");
+
+		sb.append("  Top of stack:\n");
+		appendTop(sb, slot.topFrames, slot.sampleCount);
+		sb.append("  Most frequent frames:\n");
+		appendTop(sb, slot.allFrames, slot.sampleCount);
+		StackTraceElement[] stack = slot.lastStack;
+		if (stack != null) {
+			sb.append("  Last sample:\n");
+			for (int i = 0; i < stack.length && i < STACK_DEPTH; i++) {
+				sb.append("    at ").append(stack[i]).append('\n');
+			}
+		}
+		slowLog.warn(sb.toString());
+
+		slot.sampledSeq = 0;
+		slot.sampleCount = 0;
+		slot.topFrames.clear();
+		slot.allFrames.clear();
+		slot.lastStack = null;
+	}
+
+	private static void appendTop(StringBuilder sb, Map<StackTraceElement, Integer> counts, int samples) {
+		List<Map.Entry<StackTraceElement, Integer>> entries = new ArrayList<>(counts.entrySet());
+		entries.sort((a, b) -> b.getValue() - a.getValue());
+		for (int i = 0; i < entries.size() && i < TOP_FRAMES; i++) {
+			Map.Entry<StackTraceElement, Integer> entry = entries.get(i);
+			sb.append("    ").append(entry.getValue() * 100 / samples).append("% ").append(entry.getKey()).append('\n');
+		}
+	}
+
+	/**
+	 * The in-flight state of one request thread. The volatile fields are written
+	 * by the request thread; the rest belong to the scanner thread.
+	 */
+	private static class Slot {
+
+		final WeakReference<Thread> thread;
+
+		volatile long seq;
+		volatile long start; // 0 when idle
+		volatile String method;
+		volatile String path;
+
+		long sampledSeq;
+		long sampledStart;
+		String sampledMethod;
+		String sampledPath;
+		long lastSeen;
+		int sampleCount;
+		StackTraceElement[] lastStack;
+		final Map<StackTraceElement, Integer> topFrames = new HashMap<>();
+		final Map<StackTraceElement, Integer> allFrames = new HashMap<>();
+
+		Slot(Thread thread) {
+			this.thread = new WeakReference<>(thread);
+		}
+	}
+
+	private class WatchdogFilter implements Filter {
+
+		@Override
+		public void init(FilterConfig filterConfig) {
+		}
+
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+				throws IOException, ServletException {
+			Slot slot = slot();
+			if (slot.start != 0) {
+				// a forward or include inside a request we are already tracking
+				chain.doFilter(request, response);
+				return;
+			}
+
+			HttpServletRequest req = (HttpServletRequest) request;
+			slot.method = req.getMethod();
+			slot.path = req.getRequestURI();
+			slot.seq++;
+			slot.start = System.nanoTime();
+			try {
+				chain.doFilter(request, response);
+			} finally {
+				slot.start = 0;
+				slot.seq++;
+			}
+		}
+
+		@Override
+		public void destroy() {
+		}
+	}
+
+}
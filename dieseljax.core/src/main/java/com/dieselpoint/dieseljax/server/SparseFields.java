@@ -0,0 +1,335 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response.Status.Family;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import com.dieselpoint.dieseljax.util.Config;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.PropertyName;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.jaxrs.cfg.EndpointConfigBase;
+import com.fasterxml.jackson.jaxrs.cfg.ObjectWriterInjector;
+import com.fasterxml.jackson.jaxrs.cfg.ObjectWriterModifier;
+
+/**
+ * Lets a client ask for only some of the fields of a json response. Enable it
+ * with Server.Builder.sparseFields(), then:
+ *
+ * <pre>
+ * GET /api/orders/12?fields=id,status,customer.name,lines.sku
+ * </pre>
+ *
+ * Paths are json property names separated by dots. Naming a property includes
+ * everything under it; naming a path below it includes only that part.
+ * Collections, arrays and maps are transparent, so lines.sku means the sku of
+ * every line, whether lines is a list or a map. So are Optionals, if the mapper
+ * has Jackson's Jdk8Module. Map keys can't be selected.
+ * <p>
+ * The projection is applied while Jackson serializes, not by building the full
+ * json and cutting it down afterwards, so the fields left out are never read
+ * from the object or written. A field set is parsed and checked against the
+ * entity type once, and the result is cached per type and field set, up to
+ * dieseljax.fields.cacheSize entries, default 1000.
+ * <p>
+ * A path that names a property the declared type doesn't have gets a 400. Below
+ * a property declared as Object, an interface or an abstract class any name is
+ * accepted, since the actual class isn't known until it is written. Only
+ * successful json responses are projected; error bodies are sent whole.
+ */
+public class SparseFields implements ContainerResponseFilter, WriterInterceptor {
+
+	/**
+	 * The query parameter.
+	 */
+	public static final String PARAM = "fields";
+
+	private static final String PROPERTY = "dieseljax.fields";
+
+	private final ObjectMapper objectMapper;
+	private final int cacheSize = Config.getInt("dieseljax.fields.cacheSize", 1000);
+	private final Map<Key, Node> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * @param objectMapper the mapper the json provider uses. It must have the
+	 *                     module() registered.
+	 */
+	public SparseFields(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	/**
+	 * Return the Jackson module that does the projection. It has no effect on
+	 * serialization that isn't projected, other than one attribute lookup per
+	 * property. Register it before the mapper is first used, because Jackson
+	 * caches the serializers it has already built.
+	 */
+	public static SimpleModule module() {
+		SimpleModule module = new SimpleModule("dieseljax-sparse-fields");
+		module.setSerializerModifier(new BeanSerializerModifier() {
+			@Override
+			public List<BeanPropertyWriter> changeProperties(SerializationConfig config, BeanDescription beanDesc,
+					List<BeanPropertyWriter> beanProperties) {
+				for (int i = 0; i < beanProperties.size(); i++) {
+					BeanPropertyWriter writer = beanProperties.get(i);
+					if (writer.getClass() == BeanPropertyWriter.class) {
+						beanProperties.set(i, new ProjectedPropertyWriter(writer));
+					}
+				}
+				return beanProperties;
+			}
+		});
+		return module;
+	}
+
+	/*
+	 * ContainerResponseFilter. Decides whether to project, and with what, while
+	 * the status and the entity type are known and a bad field list can still
+	 * become a 400.
+	 */
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		if (response.getStatusInfo().getFamily() != Family.SUCCESSFUL || !response.hasEntity()) {
+			return;
+		}
+		String fields = request.getUriInfo().getQueryParameters().getFirst(PARAM);
+		if (fields == null || fields.trim().isEmpty()) {
+			return;
+		}
+		MediaType mediaType = response.getMediaType();
+		if (mediaType == null || !(mediaType.getSubtype().equals("json") || mediaType.getSubtype().endsWith("+json"))) {
+			return;
+		}
+		request.setProperty(PROPERTY, compile(response.getEntityType(), fields));
+	}
+
+	/*
+	 * WriterInterceptor. Hands the projection to the json provider for this one
+	 * write. The injector is a thread local, so clear it whether or not the
+	 * provider used it.
+	 */
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+		Node root = (Node) context.getProperty(PROPERTY);
+		if (root == null) {
+			context.proceed();
+			return;
+		}
+		ObjectWriterInjector.set(new Projector(root));
+		try {
+			context.proceed();
+		} finally {
+			ObjectWriterInjector.getAndClear();
+		}
+	}
+
+	/**
+	 * Return the projection for a field list, from the cache if possible.
+	 */
+	Node compile(Type type, String fields) {
+		Key key = new Key(type, fields);
+		Node root = cache.get(key);
+		if (root == null) {
+			root = parse(fields);
+			check(root, objectMapper.getTypeFactory().constructType(type), "");
+			if (cache.size() >= cacheSize) {
+				// field lists come from clients; don't let them grow the cache
+				// without limit
+				cache.clear();
+			}
+			cache.put(key, root);
+		}
+		return root;
+	}
+
+	static Node parse(String fields) {
+		Node root = new Node();
+		for (String path : fields.split(",")) {
+			path = path.trim();
+			if (path.isEmpty()) {
+				continue;
+			}
+			Node node = root;
+			String[] names = path.split("\\.", -1);
+			for (int i = 0; i < names.length && node != Node.ALL; i++) {
+				String name = names[i].trim();
+				if (name.isEmpty()) {
+					throw new BadRequestException("Malformed " + PARAM + " path: " + path);
+				}
+				if (i == names.length - 1) {
+					node.children.put(name, Node.ALL);
+				} else {
+					node = node.children.computeIfAbsent(name, k -> new Node());
+				}
+			}
+		}
+		return root;
+	}
+
+	private void check(Node node, JavaType type, String prefix) {
+		while (type.isContainerType() || type.isReferenceType()) {
+			type = type.getContentType();
+		}
+		Class<?> raw = type.getRawClass();
+		if (raw == Object.class || raw.isInterface() || Modifier.isAbstract(raw.getModifiers())) {
+			return;
+		}
+		if (raw.isPrimitive() || raw.isEnum() || raw.getName().startsWith("java.")) {
+			throw new BadRequestException(
+					prefix.isEmpty() ? "This resource has no " + PARAM : "Field " + trimDot(prefix) + " has no fields");
+		}
+
+		Map<String, JavaType> properties = new HashMap<>();
+		BeanDescription desc = objectMapper.getSerializationConfig().introspect(type);
+		for (BeanPropertyDefinition property : desc.findProperties()) {
+			if (property.couldSerialize()) {
+				properties.put(property.getName(), property.getPrimaryType());
+			}
+		}
+		for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+			JavaType propertyType = properties.get(entry.getKey());
+			if (propertyType == null) {
+				throw new BadRequestException("Unknown field: " + prefix + entry.getKey());
+			}
+			if (entry.getValue() != Node.ALL) {
+				check(entry.getValue(), propertyType, prefix + entry.getKey() + ".");
+			}
+		}
+	}
+
+	private static String trimDot(String prefix) {
+		return prefix.substring(0, prefix.length() - 1);
+	}
+
+	/**
+	 * One level of a projection: the properties to write, and for each, what to
+	 * write below it. ALL writes everything.
+	 */
+	static class Node {
+
+		static final Node ALL = new Node();
+
+		final Map<String, Node> children = new HashMap<>();
+	}
+
+	/**
+	 * The node for the object being written. One per write, moved down and back
+	 * up as properties are written.
+	 */
+	private static class Cursor {
+		Node node;
+
+		Cursor(Node node) {
+			this.node = node;
+		}
+	}
+
+	private static class Projector extends ObjectWriterModifier {
+
+		private final Node root;
+
+		Projector(Node root) {
+			this.root = root;
+		}
+
+		@Override
+		public ObjectWriter modify(EndpointConfigBase<?> endpoint, MultivaluedMap<String, Object> responseHeaders,
+				Object valueToWrite, ObjectWriter w, JsonGenerator g) throws IOException {
+			return w.withAttribute(Cursor.class, new Cursor(root));
+		}
+	}
+
+	/**
+	 * Writes its property only if the projection includes it.
+	 */
+	private static class ProjectedPropertyWriter extends BeanPropertyWriter {
+
+		private static final long serialVersionUID = 1L;
+
+		ProjectedPropertyWriter(BeanPropertyWriter base) {
+			super(base);
+		}
+
+		ProjectedPropertyWriter(BeanPropertyWriter base, PropertyName name) {
+			super(base, name);
+		}
+
+		@Override
+		protected BeanPropertyWriter _new(PropertyName newName) {
+			return new ProjectedPropertyWriter(this, newName);
+		}
+
+		@Override
+		public void serializeAsField(Object bean, JsonGenerator gen, SerializerProvider prov) throws Exception {
+			Cursor cursor = (Cursor) prov.getAttribute(Cursor.class);
+			if (cursor == null || cursor.node == Node.ALL) {
+				super.serializeAsField(bean, gen, prov);
+				return;
+			}
+			Node parent = cursor.node;
+			Node child = parent.children.get(getName());
+			if (child == null) {
+				return;
+			}
+			cursor.node = child;
+			try {
+				super.serializeAsField(bean, gen, prov);
+			} finally {
+				cursor.node = parent;
+			}
+		}
+	}
+
+	private static class Key {
+
+		private final Type type;
+		private final String fields;
+
+		Key(Type type, String fields) {
+			this.type = type;
+			this.fields = fields;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return type.equals(other.type) && fields.equals(other.fields);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(type, fields);
+		}
+	}
+
+}
@@ -0,0 +1,448 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Server-Sent Events hub. Clients subscribe to a named channel with a GET to
+ * /{ssePath}/{channel}, and the app pushes events with publish(). Each event is
+ * serialized once and the same bytes are queued for every subscriber.
+ * <p>
+ * Writes use servlet non-blocking i/o, so an open stream does not hold a
+ * thread. Each subscriber has a bounded queue; a subscriber that falls too far
+ * behind is disconnected and can reconnect with Last-Event-ID to pick up where
+ * it left off, as long as the events are still in the channel's replay buffer
+ * and it is no more than half a buffer behind.
+ */
+public class SseHub extends AbstractLifeCycle {
+
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+	private ObjectMapper objectMapper;
+	private int bufferSize = 256;
+	private int replaySize = 1024;
+	private int heartbeatSeconds = 15;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * The mapper used to serialize event data. If not set, Server.Builder supplies
+	 * the mapper it configured for Jersey.
+	 */
+	public ObjectMapper getObjectMapper() {
+		return objectMapper;
+	}
+
+	public void setObjectMapper(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Max number of events that can be waiting to be written to a single
+	 * subscriber. A subscriber that exceeds this is disconnected. Default 256.
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public int getReplaySize() {
+		return replaySize;
+	}
+
+	/**
+	 * Number of recent events each channel keeps for Last-Event-ID replay. Default
+	 * 1024. Applies to channels created after this is set. A single reconnect
+	 * replays at most half of bufferSize, the most recent ones, so a client that
+	 * is further behind than that misses the rest.
+	 */
+	public void setReplaySize(int replaySize) {
+		this.replaySize = replaySize;
+	}
+
+	public int getHeartbeatSeconds() {
+		return heartbeatSeconds;
+	}
+
+	/**
+	 * Interval at which a comment line is sent to every subscriber to keep proxies
+	 * from closing idle streams. Zero disables it. Default 15.
+	 */
+	public void setHeartbeatSeconds(int heartbeatSeconds) {
+		this.heartbeatSeconds = heartbeatSeconds;
+	}
+
+	/**
+	 * Create a channel if it does not exist. Clients can only subscribe to
+	 * channels that exist.
+	 */
+	public Channel createChannel(String name) {
+		return channels.computeIfAbsent(name, n -> new Channel(n, replaySize));
+	}
+
+	public Channel getChannel(String name) {
+		return channels.get(name);
+	}
+
+	public void removeChannel(String name) {
+		Channel channel = channels.remove(name);
+		if (channel != null) {
+			channel.closeAll();
+		}
+	}
+
+	/**
+	 * Send an event to every subscriber of a channel. The data is serialized to
+	 * json once. Creates the channel if necessary.
+	 *
+	 * @param channelName name of the channel
+	 * @param eventName   the "event:" field, or null for the default "message"
+	 * @param data        object to serialize into the "data:" field
+	 */
+	public void publish(String channelName, String eventName, Object data) {
+		byte[] json;
+		try {
+			json = objectMapper.writeValueAsBytes(data);
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException(e);
+		}
+		createChannel(channelName).publish(eventName, json);
+	}
+
+	/**
+	 * Returns the servlet that accepts subscriptions. Server.Builder mounts this
+	 * at the sse path.
+	 */
+	public HttpServlet getServlet() {
+		return new SseServlet();
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		if (heartbeatSeconds > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "sse-heartbeat");
+				t.setDaemon(true);
+				return t;
+			});
+			scheduler.scheduleAtFixedRate(this::heartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		for (Channel channel : channels.values()) {
+			channel.closeAll();
+		}
+	}
+
+	private void heartbeat() {
+		try {
+			for (Channel channel : channels.values()) {
+				for (Subscriber sub : channel.subscribers) {
+					sub.send(HEARTBEAT);
+				}
+			}
+		} catch (Throwable t) {
+			// don't let an exception kill the scheduled task
+			logger.error(t.toString(), t);
+		}
+	}
+
+	/**
+	 * Builds the wire format of an event. Newlines in the data would end the
+	 * field, so each line gets its own "data:" prefix.
+	 */
+	static byte[] frame(long id, String eventName, byte[] data) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 64);
+		writeAscii(out, "id: " + id + "\n");
+		if (eventName != null) {
+			writeAscii(out, "event: " + eventName + "\n");
+		}
+		writeAscii(out, "data: ");
+		for (byte b : data) {
+			if (b == '\n') {
+				writeAscii(out, "\ndata: ");
+			} else if (b != '\r') {
+				out.write(b);
+			}
+		}
+		writeAscii(out, "\n\n");
+		return out.toByteArray();
+	}
+
+	private static void writeAscii(ByteArrayOutputStream out, String str) {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * A named stream of events with its own id sequence and replay buffer.
+	 */
+	public static class Channel {
+
+		private final String name;
+		private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+		// ring buffer of recent frames, guarded by this
+		private final long[] ids;
+		private final byte[][] frames;
+		private long lastId;
+
+		private Channel(String name, int replaySize) {
+			this.name = name;
+			this.ids = new long[Math.max(replaySize, 1)];
+			this.frames = new byte[ids.length][];
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getSubscriberCount() {
+			return subscribers.size();
+		}
+
+		/**
+		 * Publish pre-serialized json.
+		 */
+		public void publish(String eventName, byte[] json) {
+			synchronized (this) {
+				long id = ++lastId;
+				byte[] frame = frame(id, eventName, json);
+				int slot = (int) (id % frames.length);
+				ids[slot] = id;
+				frames[slot] = frame;
+
+				// enqueue under the lock so every subscriber sees events in id order
+				for (Subscriber sub : subscribers) {
+					sub.enqueue(frame);
+				}
+			}
+			for (Subscriber sub : subscribers) {
+				sub.drain();
+			}
+		}
+
+		private synchronized void subscribe(Subscriber sub, long lastEventId) {
+			if (lastEventId >= 0) {
+				long first = Math.max(lastEventId + 1, lastId - frames.length + 1);
+				// replaying more than the queue holds would disconnect the client
+				// again, on every reconnect. Leave half the queue for live events.
+				first = Math.max(first, lastId - sub.queue.remainingCapacity() / 2 + 1);
+				for (long id = first; id <= lastId; id++) {
+					int slot = (int) (id % frames.length);
+					if (ids[slot] == id) {
+						sub.enqueue(frames[slot]);
+					}
+				}
+			}
+			if (!sub.closed.get()) {
+				subscribers.add(sub);
+			}
+		}
+
+		private void unsubscribe(Subscriber sub) {
+			subscribers.remove(sub);
+		}
+
+		private void closeAll() {
+			for (Subscriber sub : subscribers) {
+				sub.close();
+			}
+		}
+	}
+
+	/**
+	 * One open stream. Frames are queued by publishers and written by whichever
+	 * thread finds the output ready, either the publisher or the container calling
+	 * onWritePossible().
+	 */
+	private static class Subscriber implements WriteListener, AsyncListener {
+
+		private final Channel channel;
+		private final AsyncContext asyncContext;
+		private final ServletOutputStream out;
+		private final ArrayBlockingQueue<byte[]> queue;
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private boolean needsFlush; // guarded by this
+		// guarded by this. true when waiting for onWritePossible. starts true because
+		// nothing may be written until setWriteListener() puts the stream in async mode
+		private boolean waiting = true;
+
+		Subscriber(Channel channel, AsyncContext asyncContext, ServletOutputStream out, int bufferSize) {
+			this.channel = channel;
+			this.asyncContext = asyncContext;
+			this.out = out;
+			this.queue = new ArrayBlockingQueue<>(bufferSize);
+		}
+
+		void enqueue(byte[] frame) {
+			if (!queue.offer(frame)) {
+				// slow consumer. drop the connection, the client can reconnect
+				// with Last-Event-ID
+				close();
+			}
+		}
+
+		void send(byte[] frame) {
+			enqueue(frame);
+			drain();
+		}
+
+		synchronized void drain() {
+			if (waiting || closed.get()) {
+				return;
+			}
+			try {
+				while (out.isReady()) {
+					byte[] frame = queue.poll();
+					if (frame == null) {
+						if (!needsFlush) {
+							return;
+						}
+						needsFlush = false;
+						out.flush();
+					} else {
+						out.write(frame);
+						needsFlush = true;
+					}
+				}
+				waiting = true;
+			} catch (IOException | IllegalStateException e) {
+				close();
+			}
+		}
+
+		@Override
+		public void onWritePossible() {
+			synchronized (this) {
+				waiting = false;
+			}
+			drain();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			close();
+		}
+
+		void close() {
+			if (closed.compareAndSet(false, true)) {
+				channel.unsubscribe(this);
+				queue.clear();
+				try {
+					asyncContext.complete();
+				} catch (IllegalStateException e) {
+					// already completed by the container
+				}
+			}
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+	}
+
+	private class SseServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+			String name = req.getPathInfo();
+			if (name != null && name.startsWith("/")) {
+				name = name.substring(1);
+			}
+			Channel channel = name == null ? null : channels.get(name);
+			if (channel == null) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+
+			long lastEventId = -1;
+			String lastEventIdStr = req.getHeader("Last-Event-ID");
+			if (lastEventIdStr == null) {
+				// EventSource can't set headers on the first connection, so allow a param
+				lastEventIdStr = req.getParameter("lastEventId");
+			}
+			if (lastEventIdStr != null) {
+				try {
+					lastEventId = Long.parseLong(lastEventIdStr.trim());
+				} catch (NumberFormatException e) {
+					resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid Last-Event-ID");
+					return;
+				}
+			}
+
+			resp.setStatus(HttpServletResponse.SC_OK);
+			resp.setContentType("text/event-stream");
+			resp.setCharacterEncoding("UTF-8");
+			resp.setHeader("Cache-Control", "no-cache");
+			resp.setHeader("X-Accel-Buffering", "no");
+
+			AsyncContext asyncContext = req.startAsync();
+			asyncContext.setTimeout(0);
+			ServletOutputStream out = resp.getOutputStream();
+			Subscriber sub = new Subscriber(channel, asyncContext, out, bufferSize);
+			asyncContext.addListener(sub);
+
+			// send something right away so the client sees the stream open
+			sub.enqueue(HEARTBEAT);
+			channel.subscribe(sub, lastEventId);
+
+			// setWriteListener triggers the first onWritePossible()
+			out.setWriteListener(sub);
+		}
+	}
+
+}
@@ -0,0 +1,389 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dieselpoint.dieseljax.util.Config;
+import com.dieselpoint.dieseljax.util.Histogram;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Collects JVM health numbers in-process with Flight Recorder and serves them as
+ * JSON. Enable it with Server.Builder.telemetry(path).
+ * <p>
+ * Each window covers a fixed number of seconds and holds GC pause counts and
+ * percentiles, safepoint pauses, the allocation rate, contended monitor
+ * enters, the depth of Jetty's request queue, and connection counts from
+ * ConnectionControl. The endpoint returns the most
+ * recent windows, newest first.
+ * <p>
+ * We target Java 11, which has no JFR event streaming, so a low-overhead
+ * recording runs continuously and is dumped to a temp file and read back once
+ * per window. Only the events below are enabled, and the contention and
+ * safepoint events have thresholds, so the cost is bounded and mostly paid on
+ * the background thread. Settings come from Config:
+ * <ul>
+ * <li>dieseljax.telemetry.windowSeconds: length of a window, default 10</li>
+ * <li>dieseljax.telemetry.windows: windows kept, default 30</li>
+ * <li>dieseljax.telemetry.monitorThresholdMillis: shortest contended monitor
+ * enter recorded, default 10</li>
+ * <li>dieseljax.telemetry.safepointThresholdMillis: shortest safepoint recorded,
+ * default 1</li>
+ * <li>dieseljax.telemetry.queueSampleMillis: how often the Jetty queue is
+ * sampled, default 250</li>
+ * </ul>
+ */
+public class Telemetry extends AbstractLifeCycle {
+
+	private static final int TOP_MONITORS = 5;
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final int windowSeconds = Config.getInt("dieseljax.telemetry.windowSeconds", 10);
+	private final int maxWindows = Config.getInt("dieseljax.telemetry.windows", 30);
+	private final int monitorThresholdMillis = Config.getInt("dieseljax.telemetry.monitorThresholdMillis", 10);
+	private final int safepointThresholdMillis = Config.getInt("dieseljax.telemetry.safepointThresholdMillis", 1);
+	private final int queueSampleMillis = Config.getInt("dieseljax.telemetry.queueSampleMillis", 250);
+
+	private ThreadPool threadPool;
+	private ConnectionControl connectionControl;
+	private Deadlines deadlines;
+	private PriorityScheduler priorityScheduler;
+	private Sessions sessions;
+	private AccessLog accessLog;
+	private ScheduledExecutorService scheduler;
+	private Recorder recorder;
+	private Instant lastCutoff;
+
+	// queue samples for the current window, touched only by the scheduler thread
+	private long queueSamples;
+	private long queueSum;
+	private int queueMax;
+	private int busyMax;
+
+	// newest first. Replaced, never modified, so readers need no lock.
+	private volatile List<Map<String, Object>> windows = Collections.emptyList();
+
+	/**
+	 * Serve the windows as JSON at the given path, relative to the service
+	 * context path.
+	 */
+	public void register(ResourceConfig app, String path) {
+		Resource.Builder rb = Resource.builder(path);
+		rb.addMethod("GET").produces(MediaType.APPLICATION_JSON_TYPE).handledBy(request -> getWindows());
+		app.registerResources(rb.build());
+	}
+
+	/**
+	 * Jetty's pool, for queue depth. Server.Builder sets it.
+	 */
+	public void setThreadPool(ThreadPool threadPool) {
+		this.threadPool = threadPool;
+	}
+
+	/**
+	 * For connection counts. Server.Builder sets it.
+	 */
+	public void setConnectionControl(ConnectionControl connectionControl) {
+		this.connectionControl = connectionControl;
+	}
+
+	/**
+	 * For deadline counters. Server.Builder sets it if deadlines are on.
+	 */
+	public void setDeadlines(Deadlines deadlines) {
+		this.deadlines = deadlines;
+	}
+
+	/**
+	 * For per-class queue stats. Server.Builder sets it if there is a
+	 * scheduler.
+	 */
+	public void setPriorityScheduler(PriorityScheduler priorityScheduler) {
+		this.priorityScheduler = priorityScheduler;
+	}
+
+	/**
+	 * For session store occupancy. Server.Builder sets it if sessions are on.
+	 */
+	public void setSessions(Sessions sessions) {
+		this.sessions = sessions;
+	}
+
+	/**
+	 * For request log sampling counts. Server.Builder sets it if there is an
+	 * AccessLog.
+	 */
+	public void setAccessLog(AccessLog accessLog) {
+		this.accessLog = accessLog;
+	}
+
+	public Map<String, Object> getWindows() {
+		Map<String, Object> out = new LinkedHashMap<>();
+		out.put("windowSeconds", windowSeconds);
+		out.put("windows", windows);
+		return out;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		if (JfrEvents.AVAILABLE && Recorder.isAvailable()) {
+			recorder = new Recorder(windowSeconds, monitorThresholdMillis, safepointThresholdMillis);
+		} else {
+			logger.warn("Flight Recorder is not available, telemetry will only include the request queue");
+		}
+		lastCutoff = Instant.now();
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "telemetry");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleAtFixedRate(this::sampleQueue, queueSampleMillis, queueSampleMillis, TimeUnit.MILLISECONDS);
+		scheduler.scheduleAtFixedRate(this::closeWindow, windowSeconds, windowSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		if (recorder != null) {
+			recorder.close();
+			recorder = null;
+		}
+	}
+
+	private void sampleQueue() {
+		if (!(threadPool instanceof QueuedThreadPool)) {
+			return;
+		}
+		QueuedThreadPool pool = (QueuedThreadPool) threadPool;
+		int queued = pool.getQueueSize();
+		queueSamples++;
+		queueSum += queued;
+		queueMax = Math.max(queueMax, queued);
+		busyMax = Math.max(busyMax, pool.getBusyThreads());
+	}
+
+	private void closeWindow() {
+		try {
+			Instant cutoff = Instant.now();
+			Map<String, Object> window = new LinkedHashMap<>();
+			window.put("start", lastCutoff.toString());
+			window.put("end", cutoff.toString());
+			if (recorder != null) {
+				recorder.readEvents(window, lastCutoff, cutoff);
+			}
+			window.put("requestQueue", queueStats());
+			if (connectionControl != null) {
+				window.put("connections", connectionControl.getStats());
+			}
+			if (deadlines != null) {
+				window.put("deadlines", deadlines.getStats());
+			}
+			if (priorityScheduler != null) {
+				window.put("scheduler", priorityScheduler.getStats(true));
+			}
+			if (sessions != null) {
+				window.put("sessions", sessions.getStats());
+			}
+			if (accessLog != null) {
+				window.put("accessLog", accessLog.getStats());
+			}
+			lastCutoff = cutoff;
+
+			List<Map<String, Object>> list = new ArrayList<>(maxWindows);
+			list.add(window);
+			for (Map<String, Object> w : windows) {
+				if (list.size() >= maxWindows) {
+					break;
+				}
+				list.add(w);
+			}
+			windows = Collections.unmodifiableList(list);
+		} catch (Throwable t) {
+			// don't let an exception kill the scheduled task
+			logger.error(t.toString(), t);
+		}
+	}
+
+	private Map<String, Object> queueStats() {
+		Map<String, Object> queue = new LinkedHashMap<>();
+		queue.put("mean", queueSamples == 0 ? 0 : (double) queueSum / queueSamples);
+		queue.put("max", queueMax);
+		queue.put("busyThreadsMax", busyMax);
+		if (threadPool instanceof QueuedThreadPool) {
+			queue.put("maxThreads", ((QueuedThreadPool) threadPool).getMaxThreads());
+		}
+		queueSamples = queueSum = 0;
+		queueMax = busyMax = 0;
+		return queue;
+	}
+
+	/**
+	 * The recording and the code that reads it. In a class of its own so that
+	 * nothing from jdk.jfr gets loaded unless JfrEvents.AVAILABLE is true.
+	 */
+	private static class Recorder {
+
+		private final Recording recording = new Recording();
+
+		// last cumulative allocation seen for each thread
+		private final Map<Long, Long> allocatedByThread = new HashMap<>();
+
+		static boolean isAvailable() {
+			return FlightRecorder.isAvailable();
+		}
+
+		Recorder(int windowSeconds, int monitorThresholdMillis, int safepointThresholdMillis) {
+			recording.setName("dieseljax-telemetry");
+			recording.enable("jdk.GarbageCollection");
+			recording.enable("jdk.SafepointBegin").withThreshold(Duration.ofMillis(safepointThresholdMillis));
+			recording.enable("jdk.JavaMonitorEnter").withThreshold(Duration.ofMillis(monitorThresholdMillis))
+					.withoutStackTrace();
+			recording.enable("jdk.ThreadAllocationStatistics").withPeriod(Duration.ofSeconds(windowSeconds));
+			recording.setToDisk(true);
+			recording.setMaxAge(Duration.ofSeconds(windowSeconds * 3));
+			recording.start();
+		}
+
+		void close() {
+			recording.close();
+		}
+
+		void readEvents(Map<String, Object> window, Instant from, Instant to) throws IOException {
+			Histogram gcPauses = new Histogram();
+			long gcTotalNanos = 0;
+			Histogram safepoints = new Histogram();
+			long monitorCount = 0;
+			long monitorNanos = 0;
+			Map<String, long[]> monitors = new HashMap<>();
+			Map<Long, Long> allocated = new HashMap<>();
+
+			Path file = Files.createTempFile("dieseljax-telemetry", ".jfr");
+			try {
+				recording.dump(file);
+				try (RecordingFile events = new RecordingFile(file)) {
+					while (events.hasMoreEvents()) {
+						RecordedEvent event = events.readEvent();
+						Instant end = event.getEndTime();
+						if (!end.isAfter(from) || end.isAfter(to)) {
+							continue;
+						}
+						switch (event.getEventType().getName()) {
+						case "jdk.GarbageCollection":
+							long pause = event.getDuration("sumOfPauses").toNanos();
+							gcPauses.record(pause);
+							gcTotalNanos += pause;
+							break;
+						case "jdk.SafepointBegin":
+							safepoints.record(event.getDuration().toNanos());
+							break;
+						case "jdk.JavaMonitorEnter":
+							long nanos = event.getDuration().toNanos();
+							monitorCount++;
+							monitorNanos += nanos;
+							RecordedClass monitorClass = event.getClass("monitorClass");
+							String name = monitorClass == null ? "unknown" : monitorClass.getName();
+							long[] stats = monitors.computeIfAbsent(name, k -> new long[2]);
+							stats[0]++;
+							stats[1] += nanos;
+							break;
+						case "jdk.ThreadAllocationStatistics":
+							RecordedThread thread = event.getThread("thread");
+							if (thread != null) {
+								allocated.merge(thread.getJavaThreadId(), event.getLong("allocated"), Math::max);
+							}
+							break;
+						default:
+							break;
+						}
+					}
+				}
+			} finally {
+				Files.deleteIfExists(file);
+			}
+
+			Map<String, Object> gc = new LinkedHashMap<>();
+			gc.put("count", gcPauses.getCount());
+			gc.put("pauseTotalMs", gcTotalNanos / 1e6);
+			gc.put("pauseP50Ms", gcPauses.getValueAtPercentile(50) / 1e6);
+			gc.put("pauseP99Ms", gcPauses.getValueAtPercentile(99) / 1e6);
+			gc.put("pauseMaxMs", gcPauses.getMax() / 1e6);
+			window.put("gc", gc);
+
+			Map<String, Object> sp = new LinkedHashMap<>();
+			sp.put("count", safepoints.getCount());
+			sp.put("p99Ms", safepoints.getValueAtPercentile(99) / 1e6);
+			sp.put("maxMs", safepoints.getMax() / 1e6);
+			window.put("safepoints", sp);
+
+			// allocation statistics are cumulative per thread. Threads seen for the
+			// first time count from zero, which overstates the first window a little.
+			// A thread can be missing from a window, so keep every thread's last
+			// total until the thread dies, or it would count from zero again.
+			long allocatedBytes = 0;
+			for (Map.Entry<Long, Long> entry : allocated.entrySet()) {
+				Long previous = allocatedByThread.put(entry.getKey(), entry.getValue());
+				allocatedBytes += Math.max(0, entry.getValue() - (previous == null ? 0 : previous));
+			}
+			Set<Long> live = new HashSet<>();
+			for (long id : ManagementFactory.getThreadMXBean().getAllThreadIds()) {
+				live.add(id);
+			}
+			allocatedByThread.keySet().retainAll(live);
+			double seconds = Duration.between(from, to).toMillis() / 1000.0;
+			window.put("allocationMBPerSec", allocatedBytes / 1e6 / seconds);
+
+			Map<String, Object> contention = new LinkedHashMap<>();
+			contention.put("count", monitorCount);
+			contention.put("totalMs", monitorNanos / 1e6);
+			List<Map.Entry<String, long[]>> top = new ArrayList<>(monitors.entrySet());
+			top.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+			List<Map<String, Object>> topList = new ArrayList<>();
+			for (int i = 0; i < top.size() && i < TOP_MONITORS; i++) {
+				Map<String, Object> m = new LinkedHashMap<>();
+				m.put("class", top.get(i).getKey());
+				m.put("count", top.get(i).getValue()[0]);
+				m.put("totalMs", top.get(i).getValue()[1] / 1e6);
+				topList.add(m);
+			}
+			contention.put("top", topList);
+			window.put("monitorContention", contention);
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+
+import org.glassfish.jersey.server.CloseableService;
+
+import com.dieselpoint.dieseljax.util.Config;
+
+/**
+ * A request body, or one part of a multipart body, read without holding it all
+ * in the heap. Declare a resource method parameter of this type:
+ *
+ * <pre>
+ * &#64;POST
+ * public Message upload(Upload upload) throws IOException {
+ * 	upload.moveTo(target);
+ * 	...
+ * }
+ * </pre>
+ *
+ * Bodies up to dieseljax.upload.memoryThreshold bytes, default 64k, stay in a
+ * byte array. Larger ones are written through a FileChannel to a temp file in
+ * dieseljax.upload.tempDir, default java.io.tmpdir, so memory use per upload
+ * is bounded whatever the size. Either way the body can be read as a stream or
+ * mapped as a ByteBuffer.
+ * <p>
+ * The temp file is deleted when the request completes, unless moveTo() has
+ * taken it. Uploads that come from Multipart parts are deleted when they are
+ * closed, or when the Multipart is.
+ * <p>
+ * Combine with Server.Builder.maxRequestBodySize() to limit how much disk one
+ * request can use.
+ */
+public class Upload implements Closeable {
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private final byte[] bytes;
+	private final Path file;
+	private final long size;
+	private boolean moved;
+
+	private Upload(byte[] bytes, Path file, long size) {
+		this.bytes = bytes;
+		this.file = file;
+		this.size = size;
+	}
+
+	/**
+	 * Read a stream to the end, keeping it in memory if it fits under the
+	 * threshold and spooling it to a file in tempDir if it doesn't.
+	 */
+	static Upload spool(InputStream in, int memoryThreshold, File tempDir) throws IOException {
+		byte[] head = new byte[Math.min(memoryThreshold + 1, COPY_BUFFER_SIZE)];
+		int len = 0;
+		while (len <= memoryThreshold) {
+			if (len == head.length) {
+				head = Arrays.copyOf(head, Math.min(memoryThreshold + 1, head.length * 2));
+			}
+			int n = in.read(head, len, head.length - len);
+			if (n < 0) {
+				return new Upload(head, null, len);
+			}
+			len += n;
+		}
+
+		// over the threshold, so everything goes to disk
+		Path file = Files.createTempFile(tempDir.toPath(), "upload", ".tmp");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			long size = writeFully(channel, ByteBuffer.wrap(head, 0, len));
+			byte[] buf = head.length >= COPY_BUFFER_SIZE ? head : new byte[COPY_BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				size += writeFully(channel, ByteBuffer.wrap(buf, 0, n));
+			}
+			return new Upload(null, file, size);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		int n = buf.remaining();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		return n;
+	}
+
+	/**
+	 * Return the size in bytes.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Return true if the body is held in memory, false if it was spooled to
+	 * disk.
+	 */
+	public boolean isInMemory() {
+		return file == null;
+	}
+
+	/**
+	 * Return the temp file, or null if the body is in memory.
+	 */
+	public Path getPath() {
+		return file;
+	}
+
+	/**
+	 * Return a new stream over the whole body. May be called more than once.
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (file == null) {
+			return new ByteArrayInputStream(bytes, 0, (int) size);
+		}
+		return Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ));
+	}
+
+	/**
+	 * Return the whole body as a read-only buffer, memory-mapped if it is on
+	 * disk. Bodies over 2GB must be mapped a region at a time.
+	 */
+	public ByteBuffer map() throws IOException {
+		return map(0, size);
+	}
+
+	/**
+	 * Return a region of the body as a read-only buffer. The mapping stays
+	 * valid after the temp file is deleted, until the buffer is garbage
+	 * collected.
+	 */
+	public ByteBuffer map(long position, long length) throws IOException {
+		if (position < 0 || length < 0 || position + length > size || length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Region " + position + "+" + length + " is outside 0+" + size
+					+ " or over 2GB");
+		}
+		if (file == null) {
+			return ByteBuffer.wrap(bytes, (int) position, (int) length).slice().asReadOnlyBuffer();
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		}
+	}
+
+	/**
+	 * Return the body as a string.
+	 */
+	public String getString(Charset charset) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Upload is too large for a string: " + size + " bytes");
+		}
+		if (file == null) {
+			return new String(bytes, 0, (int) size, charset);
+		}
+		return new String(Files.readAllBytes(file), charset);
+	}
+
+	public String getString() throws IOException {
+		return getString(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Move the body to a file, replacing it if it exists. A spooled body is
+	 * renamed if the target is on the same file system, and copied otherwise.
+	 * After this the temp file is no longer deleted.
+	 */
+	public void moveTo(Path target) throws IOException {
+		if (file == null) {
+			try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				writeFully(channel, ByteBuffer.wrap(bytes, 0, (int) size));
+			}
+			return;
+		}
+		Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+		moved = true;
+	}
+
+	/**
+	 * Delete the temp file, if there is one.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (file != null && !moved) {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Where Upload settings come from. Shared with Multipart.
+	 */
+	static class Settings {
+		final int memoryThreshold = Config.getInt("dieseljax.upload.memoryThreshold", 64 * 1024);
+		final File tempDir = new File(
+				Config.getString("dieseljax.upload.tempDir", System.getProperty("java.io.tmpdir")));
+	}
+
+	/**
+	 * Reads Upload parameters. Server.Builder always registers it.
+	 */
+	public static class Reader implements MessageBodyReader<Upload> {
+
+		private final Settings settings = new Settings();
+
+		@Inject
+		private Provider<CloseableService> closeableService;
+
+		@Override
+		public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+			return type == Upload.class;
+		}
+
+		@Override
+		public Upload readFrom(Class<Upload> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+				MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+			Upload upload = spool(entityStream, settings.memoryThreshold, settings.tempDir);
+			closeableService.get().add(upload);
+			return upload;
+		}
+	}
+
+}
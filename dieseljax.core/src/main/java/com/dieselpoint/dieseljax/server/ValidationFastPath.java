@@ -0,0 +1,207 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
+import javax.validation.Validation;
+import javax.validation.ValidationException;
+import javax.validation.Validator;
+import javax.validation.metadata.BeanDescriptor;
+import javax.validation.metadata.MethodDescriptor;
+import javax.validation.metadata.ParameterDescriptor;
+
+import org.glassfish.jersey.server.model.Invocable;
+import org.glassfish.jersey.server.model.Resource;
+import org.glassfish.jersey.server.model.ResourceMethod;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+import org.glassfish.jersey.server.spi.ValidationInterceptor;
+import org.glassfish.jersey.server.spi.ValidationInterceptorContext;
+
+/**
+ * Skips bean validation for resource methods that have nothing to validate.
+ * Always registered by Server.Builder; see Builder.failFastValidation() for
+ * the one setting.
+ * <p>
+ * Jersey runs every resource method call through the validator, which looks up
+ * the resource's constraint metadata and then walks each argument, including
+ * every element of a &#64;Valid collection, even when none of the types
+ * involved declare a single constraint. Here the metadata is worked out once
+ * per resource method when the application starts, and a method whose
+ * resource class, parameters and &#64;Valid parameter types have no
+ * constraints costs one map lookup.
+ * <p>
+ * A &#64;Valid parameter whose declared type has no constraints is skipped only
+ * if the argument is of exactly that type. A subclass, or a collection, might
+ * bring constraints of its own, so those go to the validator as usual.
+ * <p>
+ * In fail-fast mode, methods that do need validation are validated here,
+ * stopping at the first violation rather than collecting all of them. That
+ * bounds the cost of rejecting a large batch payload with many bad items.
+ * Fail-fast validation bypasses Jersey's validator, so it does not see
+ * &#64;ValidateOnExecution or custom constraint validators that rely on
+ * &#64;Context injection. Return values are validated by Jersey either way.
+ */
+public class ValidationFastPath implements ValidationInterceptor, ApplicationEventListener {
+
+	private static final String FAIL_FAST_PROPERTY = "hibernate.validator.fail_fast";
+
+	private final boolean failFast;
+	private final Validator validator;
+	private final Map<Invocable, Plan> plans = new ConcurrentHashMap<>();
+
+	/**
+	 * What to do for one resource method.
+	 */
+	private static class Plan {
+
+		final Class<?> resourceClass;
+		final boolean validateResource;
+		final boolean validateParameters;
+
+		// @Valid parameters skipped because their declared type has no
+		// constraints, and that type, to check the runtime type against
+		final int[] uncheckedIndexes;
+		final Class<?>[] uncheckedTypes;
+
+		Plan(Class<?> resourceClass, boolean validateResource, boolean validateParameters,
+				List<Integer> uncheckedIndexes, List<Class<?>> uncheckedTypes) {
+			this.resourceClass = resourceClass;
+			this.validateResource = validateResource;
+			this.validateParameters = validateParameters;
+			this.uncheckedIndexes = uncheckedIndexes.stream().mapToInt(Integer::intValue).toArray();
+			this.uncheckedTypes = uncheckedTypes.toArray(new Class<?>[0]);
+		}
+
+		boolean canSkip(Object[] args) {
+			if (validateResource || validateParameters) {
+				return false;
+			}
+			for (int i = 0; i < uncheckedIndexes.length; i++) {
+				Object arg = args[uncheckedIndexes[i]];
+				if (arg != null && arg.getClass() != uncheckedTypes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	public ValidationFastPath(boolean failFast) {
+		this.failFast = failFast;
+		this.validator = Validation.byDefaultProvider().configure()
+				.addProperty(FAIL_FAST_PROPERTY, Boolean.toString(failFast)).buildValidatorFactory().getValidator();
+	}
+
+	@Override
+	public void onEvent(ApplicationEvent event) {
+		if (event.getType() == ApplicationEvent.Type.INITIALIZATION_FINISHED) {
+			for (Resource resource : event.getResourceModel().getResources()) {
+				precompute(resource);
+			}
+		}
+	}
+
+	private void precompute(Resource resource) {
+		for (ResourceMethod method : resource.getAllMethods()) {
+			Invocable invocable = method.getInvocable();
+			Class<?> resourceClass = invocable.getHandler().getHandlerClass();
+			if (resourceClass != null && !invocable.isInflector()) {
+				plans.put(invocable, plan(resourceClass, invocable.getHandlingMethod()));
+			}
+		}
+		for (Resource child : resource.getChildResources()) {
+			precompute(child);
+		}
+	}
+
+	@Override
+	public RequestEventListener onRequest(RequestEvent requestEvent) {
+		return null;
+	}
+
+	@Override
+	public void onValidate(ValidationInterceptorContext ctx) throws ValidationException {
+		Object resource = ctx.getResource();
+		Object[] args = ctx.getArgs();
+		Plan plan = plans.get(ctx.getInvocable());
+		if (plan == null || plan.resourceClass != resource.getClass()) {
+			// sub-resources and programmatic resources turn up here on first use
+			plan = plan(resource.getClass(), ctx.getInvocable().getHandlingMethod());
+			plans.put(ctx.getInvocable(), plan);
+		}
+
+		if (plan.canSkip(args)) {
+			return;
+		}
+		if (!failFast) {
+			ctx.proceed();
+			return;
+		}
+
+		Set<ConstraintViolation<Object>> violations = new HashSet<>();
+		if (plan.validateResource) {
+			violations.addAll(validator.validate(resource));
+		}
+		if (violations.isEmpty()) {
+			violations.addAll(
+					validator.forExecutables().validateParameters(resource, ctx.getInvocable().getHandlingMethod(), args));
+		}
+		if (!violations.isEmpty()) {
+			throw new ConstraintViolationException(violations);
+		}
+	}
+
+	private Plan plan(Class<?> resourceClass, Method method) {
+		BeanDescriptor bean = validator.getConstraintsForClass(resourceClass);
+		boolean validateResource = bean.isBeanConstrained();
+		boolean validateParameters = false;
+		List<Integer> uncheckedIndexes = new ArrayList<>();
+		List<Class<?>> uncheckedTypes = new ArrayList<>();
+
+		MethodDescriptor md = bean.getConstraintsForMethod(method.getName(), method.getParameterTypes());
+		if (md != null) {
+			validateParameters = md.getCrossParameterDescriptor().hasConstraints();
+			for (ParameterDescriptor pd : md.getParameterDescriptors()) {
+				if (pd.hasConstraints() || !pd.getConstrainedContainerElementTypes().isEmpty()) {
+					validateParameters = true;
+				} else if (pd.isCascaded()) {
+					Class<?> type = method.getParameterTypes()[pd.getIndex()];
+					if (mightHaveConstraints(type)) {
+						validateParameters = true;
+					} else {
+						uncheckedIndexes.add(pd.getIndex());
+						uncheckedTypes.add(type);
+					}
+				}
+			}
+		}
+		return new Plan(resourceClass, validateResource, validateParameters, uncheckedIndexes, uncheckedTypes);
+	}
+
+	/**
+	 * Whether a value declared as this type could have constraints. Containers
+	 * and abstract types can't be answered until we see the value.
+	 */
+	private boolean mightHaveConstraints(Class<?> type) {
+		if (type.isArray() || type.isInterface() || Modifier.isAbstract(type.getModifiers())
+				|| type == Object.class || Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type)
+				|| type == Optional.class) {
+			return true;
+		}
+		return validator.getConstraintsForClass(type).isBeanConstrained();
+	}
+
+}
@@ -0,0 +1,234 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Extend this class to handle WebSocket connections, and register it with
+ * Server.Builder.websocket(path, endpoint). A single instance handles every
+ * session at that path, so it must be thread-safe.
+ * <p>
+ * The broadcast methods encode a message once and send the same bytes to every
+ * open session.
+ */
+public abstract class WebSocketEndpoint {
+
+	protected Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Set<WebSocketSession> sessions = ConcurrentHashMap.newKeySet();
+	private ObjectMapper objectMapper;
+	private int maxQueuedMessages = 1024;
+	private long maxQueuedBytes = 4 * 1024 * 1024;
+	private long idleTimeoutMillis = 5 * 60 * 1000;
+	private int maxMessageSize = 64 * 1024;
+
+	/**
+	 * Called when a session opens.
+	 */
+	protected void onOpen(WebSocketSession session) {
+	}
+
+	/**
+	 * Called when a text message arrives.
+	 */
+	protected void onText(WebSocketSession session, String message) {
+	}
+
+	/**
+	 * Called when a binary message arrives.
+	 */
+	protected void onBinary(WebSocketSession session, byte[] payload, int offset, int len) {
+	}
+
+	/**
+	 * Called when a session closes, for any reason.
+	 */
+	protected void onClose(WebSocketSession session, int statusCode, String reason) {
+	}
+
+	protected void onError(WebSocketSession session, Throwable cause) {
+		logger.error(cause.toString(), cause);
+	}
+
+	/**
+	 * Returns the sessions that are currently open.
+	 */
+	public Set<WebSocketSession> getSessions() {
+		return Collections.unmodifiableSet(sessions);
+	}
+
+	/**
+	 * Serialize an object to json once and send it to every session as a text
+	 * message. Returns the number of sessions it was queued to.
+	 */
+	public int broadcast(Object obj) {
+		try {
+			return broadcastText(ByteBuffer.wrap(objectMapper.writeValueAsBytes(obj)));
+		} catch (JsonProcessingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public int broadcastText(String text) {
+		return broadcastText(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Send UTF-8 text to every session. Returns the number of sessions it was
+	 * queued to.
+	 */
+	public int broadcastText(ByteBuffer utf8) {
+		int count = 0;
+		for (WebSocketSession session : sessions) {
+			if (session.sendText(utf8)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Send binary data to every session. Returns the number of sessions it was
+	 * queued to.
+	 */
+	public int broadcastBinary(ByteBuffer data) {
+		int count = 0;
+		for (WebSocketSession session : sessions) {
+			if (session.sendBinary(data)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public ObjectMapper getObjectMapper() {
+		return objectMapper;
+	}
+
+	/**
+	 * The mapper used by broadcast(). If not set, Server.Builder supplies the
+	 * mapper it configured for Jersey.
+	 */
+	public void setObjectMapper(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	public int getMaxQueuedMessages() {
+		return maxQueuedMessages;
+	}
+
+	/**
+	 * Max number of messages waiting to be written to a session before it is
+	 * closed as a slow consumer. Default 1024.
+	 */
+	public void setMaxQueuedMessages(int maxQueuedMessages) {
+		this.maxQueuedMessages = maxQueuedMessages;
+	}
+
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	/**
+	 * Max number of bytes waiting to be written to a session before it is closed
+	 * as a slow consumer. Default 4mb.
+	 */
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	/**
+	 * Close sessions that have had no traffic for this long. Default 5 minutes.
+	 */
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Max size of an incoming message. Default 64k.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Returns the servlet that performs the upgrade. Server.Builder mounts this at
+	 * the websocket path.
+	 */
+	public WebSocketServlet getServlet() {
+		return new EndpointServlet();
+	}
+
+	private class EndpointServlet extends WebSocketServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void configure(WebSocketServletFactory factory) {
+			factory.getPolicy().setIdleTimeout(idleTimeoutMillis);
+			factory.getPolicy().setMaxTextMessageSize(maxMessageSize);
+			factory.getPolicy().setMaxBinaryMessageSize(maxMessageSize);
+			factory.setCreator((req, resp) -> new Listener());
+		}
+	}
+
+	/**
+	 * Jetty creates one of these per connection and calls it on a container
+	 * thread.
+	 */
+	private class Listener implements WebSocketListener {
+
+		private WebSocketSession session;
+
+		@Override
+		public void onWebSocketConnect(Session jettySession) {
+			session = new WebSocketSession(jettySession, maxQueuedMessages, maxQueuedBytes);
+			sessions.add(session);
+			onOpen(session);
+		}
+
+		@Override
+		public void onWebSocketText(String message) {
+			onText(session, message);
+		}
+
+		@Override
+		public void onWebSocketBinary(byte[] payload, int offset, int len) {
+			onBinary(session, payload, offset, len);
+		}
+
+		@Override
+		public void onWebSocketClose(int statusCode, String reason) {
+			if (session != null && sessions.remove(session)) {
+				onClose(session, statusCode, reason);
+			}
+		}
+
+		@Override
+		public void onWebSocketError(Throwable cause) {
+			onError(session, cause);
+		}
+	}
+
+}
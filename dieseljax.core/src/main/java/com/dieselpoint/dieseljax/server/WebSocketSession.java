@@ -0,0 +1,151 @@
+package com.dieselpoint.dieseljax.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.common.WebSocketFrame;
+import org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint;
+import org.eclipse.jetty.websocket.common.frames.BinaryFrame;
+import org.eclipse.jetty.websocket.common.frames.TextFrame;
+
+/**
+ * One open WebSocket connection. All sends are non-blocking. Messages are
+ * handed to Jetty's frame flusher, which batches frames that queue up behind
+ * one another into a single write.
+ * <p>
+ * The number of messages and bytes that are waiting to be written is capped.
+ * A session that exceeds either limit is closed with status 1008 (policy
+ * violation) rather than allowed to accumulate memory.
+ */
+public class WebSocketSession {
+
+	private final Session session;
+	private final WebSocketRemoteEndpoint remote;
+	private final int maxQueuedMessages;
+	private final long maxQueuedBytes;
+
+	private final AtomicInteger queuedMessages = new AtomicInteger();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private volatile Object attachment;
+
+	WebSocketSession(Session session, int maxQueuedMessages, long maxQueuedBytes) {
+		this.session = session;
+		this.remote = (WebSocketRemoteEndpoint) session.getRemote();
+		this.remote.setBatchMode(BatchMode.AUTO);
+		this.maxQueuedMessages = maxQueuedMessages;
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/**
+	 * Send a text message. Returns false if the session is closed or its outbound
+	 * queue was full.
+	 */
+	public boolean sendText(String text) {
+		return sendText(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Send a text message that is already encoded as UTF-8. The buffer is not
+	 * modified, so the same buffer can be sent to many sessions.
+	 */
+	public boolean sendText(ByteBuffer utf8) {
+		return send(new TextFrame(), utf8);
+	}
+
+	/**
+	 * Send a binary message. The buffer is not modified, so the same buffer can be
+	 * sent to many sessions.
+	 */
+	public boolean sendBinary(ByteBuffer data) {
+		return send(new BinaryFrame(), data);
+	}
+
+	private boolean send(WebSocketFrame frame, ByteBuffer payload) {
+		if (!session.isOpen()) {
+			return false;
+		}
+
+		int size = payload.remaining();
+		int msgs = queuedMessages.incrementAndGet();
+		long bytes = queuedBytes.addAndGet(size);
+		if (msgs > maxQueuedMessages || bytes > maxQueuedBytes) {
+			release(size);
+			session.close(StatusCode.POLICY_VIOLATION, "Slow consumer");
+			return false;
+		}
+
+		// duplicate() so each session gets its own position on a shared buffer
+		frame.setPayload(payload.duplicate());
+		frame.setFin(true);
+		remote.uncheckedSendFrame(frame, new WriteCallback() {
+			@Override
+			public void writeSuccess() {
+				release(size);
+			}
+
+			@Override
+			public void writeFailed(Throwable x) {
+				release(size);
+			}
+		});
+		return true;
+	}
+
+	private void release(int size) {
+		queuedMessages.decrementAndGet();
+		queuedBytes.addAndGet(-size);
+	}
+
+	/**
+	 * Number of messages sent but not yet written to the network.
+	 */
+	public int getQueuedMessages() {
+		return queuedMessages.get();
+	}
+
+	/**
+	 * Number of bytes sent but not yet written to the network.
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	public boolean isOpen() {
+		return session.isOpen();
+	}
+
+	public void close(int statusCode, String reason) {
+		session.close(statusCode, reason);
+	}
+
+	public InetSocketAddress getRemoteAddress() {
+		return session.getRemoteAddress();
+	}
+
+	/**
+	 * Returns the underlying Jetty session, for anything not covered here.
+	 */
+	public Session getSession() {
+		return session;
+	}
+
+	/**
+	 * An arbitrary object the app can associate with this session, for example a
+	 * user id.
+	 */
+	public Object getAttachment() {
+		return attachment;
+	}
+
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+
+}
@@ -5,7 +5,6 @@ import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.security.SecureRandom;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.Map;
@@ -25,8 +24,6 @@ public class CommonUtil {
 	public static final boolean IS_MAC = osMatch("Mac");
 	public static final boolean IS_UNIX = !IS_WINDOWS;
 
-	private static final SecureRandom random = new SecureRandom();
-
 	
 	private static boolean osMatch(String prefix) {
 		String os = System.getProperty("os.name");
@@ -185,15 +182,11 @@ public class CommonUtil {
 	
 
 	/**
-	 * Return randomized CharSequence consisting of lower case letters.
+	 * Return randomized CharSequence consisting of lower case letters. See Ids
+	 * for other kinds of ids and tokens.
 	 */
 	public static CharSequence getRandomString(int numChars) {
-		StringBuilder sb = new StringBuilder(numChars);
-		for (int i = 0; i < numChars; i++) {
-			char ch = (char)('a' + random.nextInt(26));
-			sb.append(ch);
-		}
-		return sb;
+		return Ids.lowercase(numChars);
 	}
 	
 	/**
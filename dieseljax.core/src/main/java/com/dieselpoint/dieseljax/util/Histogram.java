@@ -0,0 +1,121 @@
+package com.dieselpoint.dieseljax.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of non-negative long values, typically
+ * latencies in nanos. Values are kept to within 1/64 (about 1.5%) of their true
+ * value. Recording is lock-free and safe from many threads at once, and two
+ * histograms can be merged, so per-thread or per-interval histograms can be
+ * combined into one.
+ * <p>
+ * This is the same idea as HdrHistogram, cut down to what we need.
+ */
+public class Histogram {
+
+	// values below 2^SUB_BITS are recorded exactly
+	private static final int SUB_BITS = 7;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_SUB_COUNT = SUB_COUNT / 2;
+	private static final int NUM_BUCKETS = SUB_COUNT + (63 - SUB_BITS) * HALF_SUB_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(indexOf(value));
+		totalCount.incrementAndGet();
+		sum.addAndGet(value);
+		if (value > max.get()) {
+			max.accumulateAndGet(value, Math::max);
+		}
+	}
+
+	/**
+	 * Add the contents of another histogram to this one.
+	 */
+	public void merge(Histogram other) {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+		totalCount.addAndGet(other.totalCount.get());
+		sum.addAndGet(other.sum.get());
+		max.accumulateAndGet(other.max.get(), Math::max);
+	}
+
+	/**
+	 * Clear all values. Values recorded concurrently with a reset may be partly
+	 * lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = totalCount.get();
+		return count == 0 ? 0 : (double) sum.get() / count;
+	}
+
+	/**
+	 * Returns the value at or below which the given percentage of values fall.
+	 *
+	 * @param percentile between 0 and 100
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = totalCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long cumulative = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			cumulative += counts.get(i);
+			if (cumulative >= target) {
+				return Math.min(highestValueAt(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BITS + 1;
+		int sub = (int) (value >>> shift); // between HALF_SUB_COUNT and SUB_COUNT - 1
+		return SUB_COUNT + (shift - 1) * HALF_SUB_COUNT + (sub - HALF_SUB_COUNT);
+	}
+
+	static long highestValueAt(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_COUNT) / HALF_SUB_COUNT + 1;
+		long sub = (index - SUB_COUNT) % HALF_SUB_COUNT + HALF_SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+}
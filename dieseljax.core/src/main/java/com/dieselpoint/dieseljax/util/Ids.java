@@ -0,0 +1,211 @@
+package com.dieselpoint.dieseljax.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Generates random IDs and tokens: time-ordered ULIDs and version 7 UUIDs,
+ * URL-safe tokens, and strings of lowercase letters.
+ * <p>
+ * A single shared SecureRandom serializes every caller on its lock. Here each
+ * thread has its own DRBG instance, seeded independently, and draws from a
+ * buffer of random bytes that is refilled in bulk, so the common case is an
+ * array read with no locking at all.
+ * <p>
+ * The char[] variants write into a caller's array, so a hot path can generate
+ * IDs without allocating.
+ */
+public class Ids {
+
+	public static final int ULID_LENGTH = 26;
+
+	private static final char[] CROCKFORD = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+	private static final char[] URL_SAFE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+			.toCharArray();
+
+	private static final int BUFFER_SIZE = 512;
+
+	private static final ThreadLocal<Source> sources = ThreadLocal.withInitial(Source::new);
+
+	/**
+	 * A per-thread buffer of random bytes.
+	 */
+	private static class Source {
+
+		private final SecureRandom random;
+		private final byte[] buf = new byte[BUFFER_SIZE];
+		private int pos = BUFFER_SIZE;
+
+		// for monotonic ULIDs within a millisecond
+		private long lastMillis;
+		private long lastHigh; // top 16 of the 80 random bits
+		private long lastLow; // bottom 64
+
+		Source() {
+			SecureRandom r;
+			try {
+				// DRBG instances don't share state, unlike the default NativePRNG,
+				// which funnels every instance through one lock
+				r = SecureRandom.getInstance("DRBG");
+			} catch (NoSuchAlgorithmException e) {
+				r = new SecureRandom();
+			}
+			random = r;
+		}
+
+		int nextByte() {
+			if (pos == BUFFER_SIZE) {
+				random.nextBytes(buf);
+				pos = 0;
+			}
+			return buf[pos++] & 0xFF;
+		}
+
+		long nextLong(int numBytes) {
+			long v = 0;
+			for (int i = 0; i < numBytes; i++) {
+				v = (v << 8) | nextByte();
+			}
+			return v;
+		}
+
+		void nextBytes(byte[] dst, int off, int len) {
+			while (len > 0) {
+				if (pos == BUFFER_SIZE) {
+					random.nextBytes(buf);
+					pos = 0;
+				}
+				int n = Math.min(len, BUFFER_SIZE - pos);
+				System.arraycopy(buf, pos, dst, off, n);
+				pos += n;
+				off += n;
+				len -= n;
+			}
+		}
+	}
+
+	/**
+	 * Return a ULID: 26 Crockford base32 characters, 48 bits of millisecond
+	 * timestamp followed by 80 random bits. ULIDs sort by creation time, and
+	 * ULIDs created by the same thread in the same millisecond sort in creation
+	 * order.
+	 */
+	public static String ulid() {
+		char[] chars = new char[ULID_LENGTH];
+		ulid(chars, 0);
+		return new String(chars);
+	}
+
+	/**
+	 * Write a ULID into dst at off, without allocating.
+	 */
+	public static void ulid(char[] dst, int off) {
+		Source source = sources.get();
+		long millis = System.currentTimeMillis();
+		long high;
+		long low;
+		if (millis == source.lastMillis) {
+			// same millisecond: increment the random part so order is preserved
+			low = source.lastLow + 1;
+			high = source.lastHigh + (low == 0 ? 1 : 0);
+			if (high > 0xFFFF) {
+				// 80 bits exhausted, astronomically unlikely. Borrow the next millisecond.
+				millis++;
+				high = source.nextLong(2);
+				low = source.nextLong(8);
+			}
+		} else {
+			high = source.nextLong(2);
+			low = source.nextLong(8);
+		}
+		source.lastMillis = millis;
+		source.lastHigh = high;
+		source.lastLow = low;
+
+		// the 128 bits are time(48) high(16) low(64), right-aligned in 130 bits
+		// of base32, five bits per char from the end
+		long hi = (millis << 16) | high;
+		long lo = low;
+		for (int i = ULID_LENGTH - 1; i >= 0; i--) {
+			dst[off + i] = CROCKFORD[(int) (lo & 31)];
+			lo = (lo >>> 5) | (hi << 59);
+			hi >>>= 5;
+		}
+	}
+
+	/**
+	 * Return a version 7 UUID: 48 bits of millisecond timestamp, then random bits.
+	 * Sorts by creation time to the millisecond.
+	 */
+	public static UUID uuid7() {
+		Source source = sources.get();
+		long millis = System.currentTimeMillis();
+		long randA = source.nextLong(2) & 0x0FFF;
+		long randB = source.nextLong(8) & 0x3FFFFFFFFFFFFFFFL;
+		long msb = (millis << 16) | 0x7000L | randA;
+		long lsb = 0x8000000000000000L | randB;
+		return new UUID(msb, lsb);
+	}
+
+	/**
+	 * Return a URL-safe token of base64url characters carrying at least numBytes
+	 * of randomness. 16 bytes is plenty for a session id.
+	 */
+	public static String token(int numBytes) {
+		char[] chars = new char[(numBytes * 8 + 5) / 6];
+		token(chars);
+		return new String(chars);
+	}
+
+	/**
+	 * Fill dst with random base64url characters, six bits of randomness each.
+	 */
+	public static void token(char[] dst) {
+		Source source = sources.get();
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = URL_SAFE[source.nextByte() & 63];
+		}
+	}
+
+	/**
+	 * Return a string of random lowercase letters.
+	 */
+	public static String lowercase(int numChars) {
+		char[] chars = new char[numChars];
+		lowercase(chars);
+		return new String(chars);
+	}
+
+	/**
+	 * Fill dst with random lowercase letters.
+	 */
+	public static void lowercase(char[] dst) {
+		Source source = sources.get();
+		for (int i = 0; i < dst.length; i++) {
+			int b;
+			// 234 = 26 * 9. Rejecting the rest keeps every letter equally likely.
+			do {
+				b = source.nextByte();
+			} while (b >= 234);
+			dst[i] = (char) ('a' + b % 26);
+		}
+	}
+
+	/**
+	 * Return numBytes random bytes.
+	 */
+	public static byte[] bytes(int numBytes) {
+		byte[] bytes = new byte[numBytes];
+		bytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Fill dst with random bytes.
+	 */
+	public static void bytes(byte[] dst) {
+		sources.get().nextBytes(dst, 0, dst.length);
+	}
+
+}
@@ -0,0 +1,249 @@
+package com.dieselpoint.dieseljax.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.core.encoder.EncoderBase;
+
+/**
+ * A logback encoder that writes one JSON object per line:
+ *
+ * <pre>
+ * {"ts":"2019-06-01T12:00:00.000Z","level":"INFO","logger":"...","thread":"...","msg":"...","host":"..."}
+ * </pre>
+ *
+ * plus "mdc" when the MDC has entries and "exception" when there is one.
+ * <p>
+ * Built to make as little garbage as the Encoder interface allows. Each thread
+ * reuses one StringBuilder and one byte buffer, timestamps are formatted by
+ * arithmetic from a cached date prefix, and the only per-event allocation is
+ * the exact-size byte[] that the interface requires us to return. Used by
+ * etc/logback-production.xml.
+ */
+public class JsonLogEncoder extends EncoderBase<ILoggingEvent> {
+
+	private static final byte[] EMPTY = new byte[0];
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+	private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+	private String host;
+	private boolean includeHost = true;
+
+	private static class Buffers {
+		final StringBuilder sb = new StringBuilder(512);
+		final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ByteBuffer bytes = ByteBuffer.allocate(1024);
+
+		long dayStart = -1;
+		String dayPrefix;
+	}
+
+	/**
+	 * Whether to add a "host" field to every line. Default true.
+	 */
+	public void setIncludeHost(boolean includeHost) {
+		this.includeHost = includeHost;
+	}
+
+	@Override
+	public void start() {
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			host = "unknown";
+		}
+		super.start();
+	}
+
+	@Override
+	public byte[] headerBytes() {
+		return null;
+	}
+
+	@Override
+	public byte[] footerBytes() {
+		return null;
+	}
+
+	@Override
+	public byte[] encode(ILoggingEvent event) {
+		Buffers b = buffers.get();
+		StringBuilder sb = b.sb;
+		sb.setLength(0);
+
+		sb.append("{\"ts\":\"");
+		appendTimestamp(b, event.getTimeStamp());
+		sb.append("\",\"level\":\"").append(event.getLevel().toString());
+		sb.append("\",\"logger\":");
+		appendString(sb, event.getLoggerName());
+		sb.append(",\"thread\":");
+		appendString(sb, event.getThreadName());
+		sb.append(",\"msg\":");
+		appendString(sb, event.getFormattedMessage());
+		if (includeHost) {
+			sb.append(",\"host\":");
+			appendString(sb, host);
+		}
+
+		Map<String, String> mdc = event.getMDCPropertyMap();
+		if (mdc != null && !mdc.isEmpty()) {
+			sb.append(",\"mdc\":{");
+			boolean first = true;
+			for (Map.Entry<String, String> entry : mdc.entrySet()) {
+				if (!first) {
+					sb.append(',');
+				}
+				first = false;
+				appendString(sb, entry.getKey());
+				sb.append(':');
+				appendString(sb, entry.getValue());
+			}
+			sb.append('}');
+		}
+
+		IThrowableProxy tp = event.getThrowableProxy();
+		if (tp != null) {
+			sb.append(",\"exception\":\"");
+			appendThrowable(sb, tp, "");
+			sb.append('"');
+		}
+		sb.append("}\n");
+
+		return toBytes(b, sb);
+	}
+
+	private static byte[] toBytes(Buffers b, StringBuilder sb) {
+		CharBuffer chars = CharBuffer.wrap(sb);
+		ByteBuffer bytes = b.bytes;
+		while (true) {
+			bytes.clear();
+			b.encoder.reset();
+			CoderResult result = b.encoder.encode(chars, bytes, true);
+			if (!result.isOverflow()) {
+				result = b.encoder.flush(bytes);
+			}
+			if (!result.isOverflow()) {
+				break;
+			}
+			// grow and start over; happens only until the buffer fits the biggest line
+			b.bytes = bytes = ByteBuffer.allocate(bytes.capacity() * 2);
+			chars.rewind();
+		}
+		if (bytes.position() == 0) {
+			return EMPTY;
+		}
+		return Arrays.copyOf(bytes.array(), bytes.position());
+	}
+
+	/**
+	 * ISO-8601 in UTC, to the millisecond. The date part is formatted once a day.
+	 */
+	private static void appendTimestamp(Buffers b, long millis) {
+		long dayStart = millis - Math.floorMod(millis, MILLIS_PER_DAY);
+		if (dayStart != b.dayStart) {
+			b.dayStart = dayStart;
+			b.dayPrefix = Instant.ofEpochMilli(dayStart).toString().substring(0, 11);
+		}
+		int ms = (int) (millis - dayStart);
+		StringBuilder sb = b.sb;
+		sb.append(b.dayPrefix);
+		append2(sb, ms / 3_600_000);
+		sb.append(':');
+		append2(sb, ms / 60_000 % 60);
+		sb.append(':');
+		append2(sb, ms / 1000 % 60);
+		sb.append('.');
+		int frac = ms % 1000;
+		sb.append((char) ('0' + frac / 100)).append((char) ('0' + frac / 10 % 10)).append((char) ('0' + frac % 10));
+		sb.append('Z');
+	}
+
+	private static void append2(StringBuilder sb, int v) {
+		sb.append((char) ('0' + v / 10)).append((char) ('0' + v % 10));
+	}
+
+	private static void appendString(StringBuilder sb, String s) {
+		if (s == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		appendEscaped(sb, s);
+		sb.append('"');
+	}
+
+	private static void appendEscaped(StringBuilder sb, String s) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append("\\u00");
+					sb.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The usual stack trace text, escaped in place, causes included.
+	 */
+	private static void appendThrowable(StringBuilder sb, IThrowableProxy tp, String prefix) {
+		appendEscaped(sb, prefix);
+		appendEscaped(sb, tp.getClassName());
+		if (tp.getMessage() != null) {
+			sb.append(": ");
+			appendEscaped(sb, tp.getMessage());
+		}
+		StackTraceElementProxy[] frames = tp.getStackTraceElementProxyArray();
+		int frameCount = frames.length - tp.getCommonFrames();
+		for (int i = 0; i < frameCount; i++) {
+			sb.append("\\n\\tat ");
+			appendEscaped(sb, frames[i].getStackTraceElement().toString());
+		}
+		if (tp.getCommonFrames() > 0) {
+			sb.append("\\n\\t... ").append(tp.getCommonFrames()).append(" more");
+		}
+		for (IThrowableProxy suppressed : tp.getSuppressed()) {
+			sb.append("\\n");
+			appendThrowable(sb, suppressed, "Suppressed: ");
+		}
+		if (tp.getCause() != null) {
+			sb.append("\\n");
+			appendThrowable(sb, tp.getCause(), "Caused by: ");
+		}
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.dieselpoint.dieseljax.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * The xxHash64 hash function. Fast, with good distribution, but not
+ * cryptographic: use it for checksums and ETags, not for anything an attacker
+ * could benefit from colliding.
+ * <p>
+ * Reads eight bytes at a time, so on a modern CPU it runs at several GB/s.
+ */
+public class XXHash64 {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	public static long hash(byte[] buf) {
+		return hash(buf, 0, buf.length, 0);
+	}
+
+	public static long hash(byte[] buf, int off, int len, long seed) {
+		int end = off + len;
+		long h;
+
+		if (len >= 32) {
+			long v1 = seed + PRIME1 + PRIME2;
+			long v2 = seed + PRIME2;
+			long v3 = seed;
+			long v4 = seed - PRIME1;
+			int limit = end - 32;
+			do {
+				v1 = round(v1, (long) LONG.get(buf, off));
+				v2 = round(v2, (long) LONG.get(buf, off + 8));
+				v3 = round(v3, (long) LONG.get(buf, off + 16));
+				v4 = round(v4, (long) LONG.get(buf, off + 24));
+				off += 32;
+			} while (off <= limit);
+
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+		} else {
+			h = seed + PRIME5;
+		}
+
+		h += len;
+
+		while (off + 8 <= end) {
+			h ^= round(0, (long) LONG.get(buf, off));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+			off += 8;
+		}
+		if (off + 4 <= end) {
+			h ^= ((int) INT.get(buf, off) & 0xFFFFFFFFL) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			off += 4;
+		}
+		while (off < end) {
+			h ^= (buf[off] & 0xFF) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+			off++;
+		}
+
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long mergeRound(long acc, long val) {
+		acc ^= round(0, val);
+		return acc * PRIME1 + PRIME4;
+	}
+
+}
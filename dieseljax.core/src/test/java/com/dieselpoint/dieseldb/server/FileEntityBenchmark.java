@@ -0,0 +1,114 @@
+package com.dieselpoint.dieseldb.server;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.dieselpoint.dieseljax.server.FileEntity;
+import com.dieselpoint.dieseljax.server.Server;
+
+/**
+ * Downloads a large file, first as a FileEntity and then copied through a
+ * StreamingOutput, and prints the throughput of each. Also prints the responses
+ * to a few Range requests. Run from the command line:
+ * FileEntityBenchmark [gigabytes=2] [rounds=3]
+ * <p>
+ * The file is sparse, so it takes no disk space, and after the first round it
+ * comes from the page cache. That isolates the cost of moving bytes through the
+ * server.
+ */
+public class FileEntityBenchmark {
+
+	static File file;
+
+	public static void main(String[] args) throws Exception {
+		long gigabytes = args.length > 0 ? Long.parseLong(args[0]) : 2;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		file = File.createTempFile("dieseljax-bench", ".bin");
+		file.deleteOnExit();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(gigabytes * 1024 * 1024 * 1024);
+			raf.seek(0);
+			raf.write("0123456789".getBytes());
+		}
+
+		Server server = Server.builder().host("127.0.0.1").port(0).serviceContextPath("/api")
+				.register(FileService.class).build();
+		server.start();
+		String base = "http://127.0.0.1:" + server.getPort() + "/api";
+		HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+		printRange(client, base + "/file", "bytes=0-3", null);
+		printRange(client, base + "/file", "bytes=0-0,5-6", null);
+		printRange(client, base + "/file", "bytes=-2", "\"nomatch\"");
+		printRange(client, base + "/file", "bytes=" + file.length() + "-", null);
+
+		for (int i = 0; i < rounds; i++) {
+			download(client, base + "/file", "file-entity");
+			download(client, base + "/stream", "streaming");
+		}
+
+		server.stopNow();
+	}
+
+	private static void printRange(HttpClient client, String url, String range, String ifRange) throws Exception {
+		HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(url)).header("Range", range)
+				.header("Accept-Encoding", "gzip");
+		if (ifRange != null) {
+			b.header("If-Range", ifRange);
+		}
+		HttpResponse<InputStream> response = client.send(b.build(), HttpResponse.BodyHandlers.ofInputStream());
+		byte[] head = new byte[200];
+		int n;
+		try (InputStream in = response.body()) {
+			n = Math.max(0, in.readNBytes(head, 0, head.length));
+		}
+		System.out.println(range + (ifRange == null ? "" : " If-Range " + ifRange) + " -> "
+				+ response.statusCode() + " " + response.headers().map() + "\n  "
+				+ new String(head, 0, n).replace("\r\n", "|").replace('\0', '.'));
+	}
+
+	private static void download(HttpClient client, String url, String name) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(url)).build();
+		long start = System.nanoTime();
+		HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+		long total = 0;
+		byte[] buf = new byte[256 * 1024];
+		try (InputStream in = response.body()) {
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				total += n;
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-12s status=%d bytes=%d  %.0f MB/s%n", name, response.statusCode(), total,
+				total / 1e6 / seconds);
+	}
+
+	@Path("/")
+	public static class FileService {
+
+		@GET
+		@Path("file")
+		public FileEntity file() {
+			return new FileEntity(file);
+		}
+
+		@GET
+		@Path("stream")
+		public StreamingOutput stream() {
+			return out -> Files.copy(file.toPath(), out);
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.dieselpoint.dieseldb.server;
+
+import java.security.SecureRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dieselpoint.dieseljax.util.Ids;
+
+/**
+ * Generates ids on many threads at once and prints the total rate for each
+ * kind, including the old approach of drawing each character from one shared
+ * SecureRandom. Run from the command line: IdBenchmark [threads=64]
+ * [opsPerThread=20000]
+ * <p>
+ * Also checks that ULIDs from one thread come out in sorted order.
+ */
+public class IdBenchmark {
+
+	private static final SecureRandom shared = new SecureRandom();
+
+	static volatile Object sink;
+
+	interface Op {
+		void run(char[] buf);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int ops = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		System.out.println("sample ulid=" + Ids.ulid() + " uuid7=" + Ids.uuid7() + " token=" + Ids.token(16)
+				+ " lowercase=" + Ids.lowercase(20));
+		checkUlidOrder();
+
+		for (int round = 0; round < 2; round++) {
+			// first round warms up the JIT
+			run("shared-securerandom", threads, ops, buf -> {
+				for (int i = 0; i < buf.length; i++) {
+					buf[i] = (char) ('a' + shared.nextInt(26));
+				}
+			});
+			run("lowercase", threads, ops, Ids::lowercase);
+			run("lowercase-string", threads, ops, buf -> sink = Ids.lowercase(buf.length));
+			run("token", threads, ops, Ids::token);
+			run("ulid", threads, ops, buf -> Ids.ulid(buf, 0));
+			run("uuid7", threads, ops, buf -> sink = Ids.uuid7());
+		}
+	}
+
+	private static void run(String name, int threads, int ops, Op op) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		AtomicLong checksum = new AtomicLong();
+		for (int t = 0; t < threads; t++) {
+			new Thread(() -> {
+				char[] buf = new char[26];
+				try {
+					start.await();
+					for (int i = 0; i < ops; i++) {
+						op.run(buf);
+					}
+					checksum.addAndGet(buf[0]);
+				} catch (InterruptedException e) {
+					// exit
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		System.out.printf("%-20s threads=%d  %.2f M ids/s%n", name, threads, (double) threads * ops / seconds / 1e6);
+	}
+
+	private static void checkUlidOrder() {
+		String previous = "";
+		for (int i = 0; i < 100000; i++) {
+			String ulid = Ids.ulid();
+			if (ulid.compareTo(previous) <= 0) {
+				throw new IllegalStateException("ULIDs out of order: " + previous + " " + ulid);
+			}
+			previous = ulid;
+		}
+	}
+
+}
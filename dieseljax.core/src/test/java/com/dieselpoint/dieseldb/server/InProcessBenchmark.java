@@ -0,0 +1,117 @@
+package com.dieselpoint.dieseldb.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import com.dieselpoint.dieseljax.server.InProcessClient;
+import com.dieselpoint.dieseljax.server.Server;
+
+/**
+ * Compares calls through Server.inProcessClient() with the same calls over
+ * loopback HTTP, for a small GET and a small JSON POST. Each thread sends
+ * requests back to back. Run from the command line: InProcessBenchmark
+ * [threads=4] [callsPerThread=20000]
+ */
+public class InProcessBenchmark {
+
+	interface Call {
+		int run(int i) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		Server server = Server.builder().host("127.0.0.1").port(0).serviceContextPath("/api")
+				.register(ItemService.class).build();
+		server.start();
+
+		InProcessClient client = server.inProcessClient();
+		HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+		String base = "http://127.0.0.1:" + server.getPort() + "/api";
+		Item item = new Item();
+		item.name = "widget";
+		item.quantity = 3;
+		String json = "{\"name\":\"widget\",\"quantity\":3}";
+
+		for (int round = 0; round < 2; round++) {
+			// first round warms up the JIT
+			run("inprocess-get", threads, calls, i -> client.get("/items/" + i).getStatus());
+			run("http-get", threads, calls, i -> http.send(HttpRequest.newBuilder(URI.create(base + "/items/" + i))
+					.build(), HttpResponse.BodyHandlers.ofByteArray()).statusCode());
+			run("inprocess-post", threads, calls, i -> client.post("/items", item).getStatus());
+			run("http-post", threads, calls,
+					i -> http.send(HttpRequest.newBuilder(URI.create(base + "/items"))
+							.header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(json))
+							.build(), HttpResponse.BodyHandlers.ofByteArray()).statusCode());
+		}
+		server.stopNow();
+	}
+
+	private static void run(String name, int threads, int calls, Call call) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		AtomicLong errors = new AtomicLong();
+		for (int t = 0; t < threads; t++) {
+			new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < calls; i++) {
+						if (call.run(i) != 200) {
+							errors.incrementAndGet();
+						}
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		long total = (long) threads * calls;
+		System.out.printf("%-16s threads=%d  %8.0f calls/s  %7.1f us/call  errors=%d%n", name, threads,
+				total / seconds, seconds * 1e6 * threads / total, errors.get());
+	}
+
+	public static class Item {
+		public String name;
+		public int quantity;
+	}
+
+	@Path("items")
+	@Produces(MediaType.APPLICATION_JSON)
+	public static class ItemService {
+
+		@GET
+		@Path("{id}")
+		public Item get(@PathParam("id") int id) {
+			Item item = new Item();
+			item.name = "item" + id;
+			item.quantity = id % 10;
+			return item;
+		}
+
+		@POST
+		@Consumes(MediaType.APPLICATION_JSON)
+		public Item post(Item item) {
+			return item;
+		}
+	}
+
+}
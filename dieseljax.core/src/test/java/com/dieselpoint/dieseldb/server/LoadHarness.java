@@ -0,0 +1,266 @@
+package com.dieselpoint.dieseldb.server;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.dieselpoint.dieseljax.server.Server;
+import com.dieselpoint.dieseljax.util.Histogram;
+
+/**
+ * Boots a Server from a Builder on a free local port and drives it with an
+ * open-loop load generator.
+ * <p>
+ * Requests are sent on a fixed schedule whether or not earlier requests have
+ * completed, and latency is measured from the time a request was scheduled to
+ * go out, not from when it actually went out. That way a stall on the server
+ * shows up as latency for every request that should have been sent during the
+ * stall, instead of silently lowering the request rate (coordinated omission).
+ * <p>
+ * Reports also include GC activity and the bytes allocated by Jetty's request
+ * threads, so different buffer settings can be compared.
+ */
+public class LoadHarness {
+
+	private final Server server;
+	private HttpClient client;
+	private String baseUrl;
+
+	public LoadHarness(Server.Builder builder) {
+		this.server = builder.host("127.0.0.1").port(0).build();
+	}
+
+	public void start() throws Exception {
+		server.start();
+		baseUrl = "http://127.0.0.1:" + server.getPort();
+		client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(5))
+				.build();
+	}
+
+	public void stop() throws Exception {
+		server.stopNow();
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * Send requests at a fixed rate for a number of seconds and return the
+	 * results. Waits up to 30 seconds for the last requests to finish. Any still
+	 * outstanding after that are counted as timeouts, and as errors, and
+	 * responses that arrive later are ignored.
+	 */
+	public Report run(Scenario scenario, int requestsPerSecond, int seconds) throws InterruptedException {
+		Report report = new Report(scenario.name);
+		AtomicLong outstanding = new AtomicLong();
+
+		long gcCount = gcCount();
+		long gcMillis = gcMillis();
+		long allocated = serverAllocatedBytes();
+
+		long interval = 1_000_000_000L / requestsPerSecond;
+		long total = (long) requestsPerSecond * seconds;
+		long start = System.nanoTime();
+
+		for (long i = 0; i < total; i++) {
+			long intended = start + i * interval;
+			long wait;
+			while ((wait = intended - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+
+			outstanding.incrementAndGet();
+			report.sent.incrementAndGet();
+			client.sendAsync(scenario.newRequest(baseUrl), HttpResponse.BodyHandlers.ofByteArray())
+					.whenComplete((response, error) -> {
+						long latency = System.nanoTime() - intended;
+						synchronized (report) {
+							if (report.closed) {
+								return;
+							}
+							if (error != null || response.statusCode() != scenario.expectedStatus) {
+								report.errors.incrementAndGet();
+							} else {
+								report.bytes.addAndGet(response.body().length);
+							}
+							report.latency.record(latency);
+							outstanding.decrementAndGet();
+						}
+					});
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		synchronized (report) {
+			// the slowest requests; leaving them out would make the tail look
+			// better than it is
+			report.closed = true;
+			report.timeouts = outstanding.get();
+			report.errors.addAndGet(report.timeouts);
+		}
+		report.elapsedNanos = System.nanoTime() - start;
+		report.gcCount = gcCount() - gcCount;
+		report.gcMillis = gcMillis() - gcMillis;
+		report.allocatedBytes = serverAllocatedBytes() - allocated;
+		return report;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += gc.getCollectionCount();
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += gc.getCollectionTime();
+		}
+		return millis;
+	}
+
+	/**
+	 * Bytes allocated so far by the server's request threads, which Jetty names
+	 * "qtp...". The load generator runs in the same JVM, so this leaves its
+	 * allocations out.
+	 */
+	private static long serverAllocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long total = 0;
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info != null && info.getThreadName().startsWith("qtp")) {
+				total += threads.getThreadAllocatedBytes(info.getThreadId());
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * A request to send over and over, and the status it should return.
+	 */
+	public static class Scenario {
+
+		private final String name;
+		private final String method;
+		private final String path;
+		private final String contentType;
+		private final byte[] body;
+		private final int expectedStatus;
+
+		public Scenario(String name, String method, String path, String contentType, byte[] body,
+				int expectedStatus) {
+			this.name = name;
+			this.method = method;
+			this.path = path;
+			this.contentType = contentType;
+			this.body = body;
+			this.expectedStatus = expectedStatus;
+		}
+
+		public static Scenario get(String name, String path) {
+			return new Scenario(name, "GET", path, null, null, 200);
+		}
+
+		public static Scenario post(String name, String path, String contentType, byte[] body) {
+			return new Scenario(name, "POST", path, contentType, body, 200);
+		}
+
+		/**
+		 * A request that is supposed to fail with the given status.
+		 */
+		public static Scenario error(String name, String path, int expectedStatus) {
+			return new Scenario(name, "GET", path, null, null, expectedStatus);
+		}
+
+		HttpRequest newRequest(String baseUrl) {
+			HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(baseUrl + path));
+			if (body == null) {
+				b.method(method, HttpRequest.BodyPublishers.noBody());
+			} else {
+				b.method(method, HttpRequest.BodyPublishers.ofByteArray(body));
+				b.header("Content-Type", contentType);
+			}
+			return b.build();
+		}
+	}
+
+	public static class Report {
+
+		private final String name;
+		private final AtomicLong sent = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final Histogram latency = new Histogram();
+		private boolean closed;
+		private long timeouts;
+		private long elapsedNanos;
+		private long gcCount;
+		private long gcMillis;
+		private long allocatedBytes;
+
+		Report(String name) {
+			this.name = name;
+		}
+
+		public Histogram getLatency() {
+			return latency;
+		}
+
+		public long getErrors() {
+			return errors.get();
+		}
+
+		/**
+		 * Requests that hadn't completed when run() gave up waiting. Also included
+		 * in getErrors(), but not in the latency histogram.
+		 */
+		public long getTimeouts() {
+			return timeouts;
+		}
+
+		public double getThroughput() {
+			return latency.getCount() * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * Bytes allocated by the server's request threads per request. Threads that
+		 * exited during the run are not counted.
+		 */
+		public long getAllocatedBytesPerRequest() {
+			return allocatedBytes / Math.max(1, latency.getCount());
+		}
+
+		public double getAllocationRateMBPerSec() {
+			return allocatedBytes / 1e6 / (elapsedNanos / 1e9);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%-14s sent=%d errors=%d timeouts=%d rps=%.0f bytes=%d  latency ms: mean=%.2f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f"
+							+ "  alloc: %d bytes/req %.1f MB/s  gc: %d (%d ms)",
+					name, sent.get(), errors.get(), timeouts, getThroughput(), bytes.get(), latency.getMean() / 1e6,
+					ms(50), ms(90), ms(99), ms(99.9), latency.getMax() / 1e6, getAllocatedBytesPerRequest(),
+					getAllocationRateMBPerSec(), gcCount, gcMillis);
+		}
+
+		private double ms(double percentile) {
+			return latency.getValueAtPercentile(percentile) / 1e6;
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.dieselpoint.dieseldb.server;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import com.dieselpoint.dieseldb.server.LoadHarness.Report;
+import com.dieselpoint.dieseldb.server.LoadHarness.Scenario;
+import com.dieselpoint.dieseljax.server.Server;
+
+/**
+ * Runs the standard scenarios against a server and prints a latency report.
+ * Change the builder in newBuilder() to compare options. Run from the command
+ * line: LoadTest [requestsPerSecond] [seconds] [pooled]
+ * <p>
+ * Passing "pooled" runs with a shared buffer pool, a smaller output buffer and
+ * no Jersey content-length copy, to compare allocation rates with the defaults.
+ */
+public class LoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int rate = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		Server.Builder builder = newBuilder();
+		if (args.length > 2 && args[2].equals("pooled")) {
+			builder.byteBufferPool(64 * 1024, 16 * 1024 * 1024, 64 * 1024 * 1024)
+					.outputBufferSize(16 * 1024)
+					.contentLengthBufferSize(0);
+		}
+
+		LoadHarness harness = new LoadHarness(builder);
+		harness.start();
+
+		List<Scenario> scenarios = new ArrayList<>();
+		scenarios.add(Scenario.get("get-json", "/api/items"));
+		scenarios.add(Scenario.post("post-body", "/api/items", MediaType.APPLICATION_JSON,
+				"{\"id\":1,\"name\":\"widget\",\"price\":9.95}".getBytes(StandardCharsets.UTF_8)));
+		scenarios.add(Scenario.error("error-path", "/api/fail", 500));
+		scenarios.add(Scenario.get("static-file", "/index.html"));
+
+		for (Scenario scenario : scenarios) {
+			// warm up the JIT and the connection pool, then measure
+			harness.run(scenario, rate, Math.max(1, seconds / 5));
+			Report report = harness.run(scenario, rate, seconds);
+			System.out.println(report);
+		}
+
+		harness.stop();
+	}
+
+	public static Server.Builder newBuilder() throws Exception {
+		File staticDir = Files.createTempDirectory("dieseljax-static").toFile();
+		staticDir.deleteOnExit();
+		File index = new File(staticDir, "index.html");
+		index.deleteOnExit();
+		Files.write(index.toPath(), "<html><body>Hello</body></html>".getBytes(StandardCharsets.UTF_8));
+
+		return Server.builder()
+				.serviceContextPath("/api")
+				.staticFiles(staticDir.getAbsolutePath(), "/")
+				.register(ItemService.class);
+	}
+
+	@Path("/")
+	@Produces(MediaType.APPLICATION_JSON)
+	public static class ItemService {
+
+		@GET
+		@Path("items")
+		public List<Item> list() {
+			List<Item> items = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				Item item = new Item();
+				item.id = i;
+				item.name = "item" + i;
+				item.price = i * 1.5;
+				items.add(item);
+			}
+			return items;
+		}
+
+		@POST
+		@Path("items")
+		@Consumes(MediaType.APPLICATION_JSON)
+		public Item create(Item item) {
+			return item;
+		}
+
+		@GET
+		@Path("fail")
+		public Item fail() {
+			throw new IllegalStateException("Intentional failure");
+		}
+	}
+
+	public static class Item {
+		public int id;
+		public String name;
+		public double price;
+	}
+
+}
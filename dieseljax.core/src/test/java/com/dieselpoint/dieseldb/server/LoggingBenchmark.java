@@ -0,0 +1,87 @@
+package com.dieselpoint.dieseldb.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dieselpoint.dieseldb.server.LoadHarness.Report;
+import com.dieselpoint.dieseldb.server.LoadHarness.Scenario;
+import com.dieselpoint.dieseljax.server.Server;
+
+/**
+ * Compares request throughput and latency under the default logging config and
+ * the production profile, with a resource that logs several lines per request.
+ * Run from the dieseljax.core directory so etc/ is found:
+ * LoggingBenchmark [requestsPerSecond=300] [seconds=10]
+ * <p>
+ * Logback can only be configured once per JVM, so each profile runs in its own
+ * child JVM. Pass "default" or "production" as a third argument to run just one
+ * in this JVM.
+ */
+public class LoggingBenchmark {
+
+	private static final int LINES_PER_REQUEST = 10;
+
+	public static void main(String[] args) throws Exception {
+		String rate = args.length > 0 ? args[0] : "300";
+		String seconds = args.length > 1 ? args[1] : "10";
+
+		if (args.length > 2) {
+			run(args[2], Integer.parseInt(rate), Integer.parseInt(seconds));
+			return;
+		}
+
+		for (String profile : new String[] { "default", "production" }) {
+			List<String> command = new ArrayList<>();
+			command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(LoggingBenchmark.class.getName());
+			command.add(rate);
+			command.add(seconds);
+			command.add(profile);
+			Process process = new ProcessBuilder(command).inheritIO().start();
+			process.waitFor();
+		}
+	}
+
+	private static void run(String profile, int rate, int seconds) throws Exception {
+		Server.Builder builder = Server.builder().serviceContextPath("/api")
+				.productionLogging(profile.equals("production")).register(LogService.class);
+		LoadHarness harness = new LoadHarness(builder);
+		harness.start();
+
+		Scenario scenario = Scenario.get(profile, "/api/log/42");
+		harness.run(scenario, rate, Math.max(1, seconds / 5));
+		Report report = harness.run(scenario, rate, seconds);
+		System.out.println(report);
+
+		harness.stop();
+	}
+
+	@Path("/")
+	@Produces(MediaType.APPLICATION_JSON)
+	public static class LogService {
+
+		private static final Logger logger = LoggerFactory.getLogger(LogService.class);
+
+		@GET
+		@Path("log/{id}")
+		public String log(@PathParam("id") int id) {
+			for (int i = 0; i < LINES_PER_REQUEST; i++) {
+				logger.info("Handling item {} step {} for a request that logs a lot", id, i);
+			}
+			return "{\"id\":" + id + "}";
+		}
+	}
+
+}
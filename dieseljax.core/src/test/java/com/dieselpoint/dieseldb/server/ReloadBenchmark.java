@@ -0,0 +1,129 @@
+package com.dieselpoint.dieseldb.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.glassfish.jersey.server.ResourceConfig;
+
+import com.dieselpoint.dieseljax.server.Server;
+import com.dieselpoint.dieseljax.util.Histogram;
+
+/**
+ * Measures Server.reload(). Client threads send GETs back to back while the
+ * main thread swaps between two versions of a resource. Prints how long each
+ * reload took to build and to drain the old application, and compares the
+ * latency of requests that were in flight while a reload was building with
+ * the latency of the rest. Run from the command line: ReloadBenchmark
+ * [threads=4] [reloads=20]
+ */
+public class ReloadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int reloads = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		Server server = Server.builder().host("127.0.0.1").port(0).serviceContextPath("/api")
+				.register(VersionOne.class).build();
+		server.start();
+		String url = "http://127.0.0.1:" + server.getPort() + "/api/version";
+		HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+		Histogram steady = new Histogram();
+		Histogram duringReload = new Histogram();
+		AtomicBoolean reloading = new AtomicBoolean();
+		AtomicBoolean stop = new AtomicBoolean();
+		AtomicLong errors = new AtomicLong();
+		AtomicLong switches = new AtomicLong();
+
+		Thread[] clients = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			clients[t] = new Thread(() -> {
+				String last = null;
+				HttpRequest request = HttpRequest.newBuilder(URI.create(url)).build();
+				while (!stop.get()) {
+					boolean overlapped = reloading.get();
+					long start = System.nanoTime();
+					try {
+						HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+						long micros = (System.nanoTime() - start) / 1000;
+						overlapped |= reloading.get();
+						Histogram h = overlapped ? duringReload : steady;
+						synchronized (h) {
+							h.record(micros);
+						}
+						if (response.statusCode() != 200) {
+							errors.incrementAndGet();
+						} else if (last != null && !last.equals(response.body())) {
+							switches.incrementAndGet();
+						}
+						last = response.body();
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					}
+				}
+			});
+			clients[t].start();
+		}
+
+		// warm up
+		Thread.sleep(3000);
+		synchronized (steady) {
+			steady.reset();
+		}
+
+		for (int i = 0; i < reloads; i++) {
+			ResourceConfig services = new ResourceConfig(i % 2 == 0 ? VersionTwo.class : VersionOne.class);
+			reloading.set(true);
+			long start = System.nanoTime();
+			server.reload(services);
+			long millis = (System.nanoTime() - start) / 1_000_000;
+			reloading.set(false);
+			Thread.sleep(500);
+			System.out.printf("reload %2d  build %4d ms  %s%n", i + 1, millis, server.getReloadStats());
+		}
+
+		stop.set(true);
+		for (Thread t : clients) {
+			t.join();
+		}
+		print("steady", steady);
+		print("during reload", duringReload);
+		System.out.println("errors=" + errors.get() + "  version switches seen=" + switches.get());
+		server.stopNow();
+	}
+
+	private static void print(String name, Histogram h) {
+		System.out.printf("%-14s n=%7d  p50=%6d us  p99=%6d us  p99.9=%6d us  max=%6d us%n", name, h.getCount(),
+				h.getValueAtPercentile(50), h.getValueAtPercentile(99), h.getValueAtPercentile(99.9), h.getMax());
+	}
+
+	@Path("version")
+	@Produces(MediaType.TEXT_PLAIN)
+	public static class VersionOne {
+
+		@GET
+		public String get() {
+			return "one";
+		}
+	}
+
+	@Path("version")
+	@Produces(MediaType.TEXT_PLAIN)
+	public static class VersionTwo {
+
+		@GET
+		public String get() {
+			return "two";
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.dieselpoint.dieseldb.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import com.dieselpoint.dieseljax.server.Server;
+import com.dieselpoint.dieseljax.server.Tls;
+
+/**
+ * Compares full TLS handshakes with resumed ones. Each call opens a new
+ * connection, does a small GET and closes. For full handshakes the client
+ * throws its session away every time; for resumed ones it keeps its session
+ * cache, so the server skips the certificate signature. Generates a
+ * self-signed RSA 2048 certificate with keytool in a temp directory. Run from
+ * the command line: TlsBenchmark [calls=2000]
+ */
+public class TlsBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		File keyStoreFile = new File(Files.createTempDirectory("tlsbench").toFile(), "keystore.p12");
+		Process keytool = new ProcessBuilder("keytool", "-genkeypair", "-alias", "server", "-keyalg", "RSA",
+				"-keysize", "2048", "-validity", "30", "-dname", "CN=localhost", "-storetype", "PKCS12", "-keystore",
+				keyStoreFile.getPath(), "-storepass", "changeit", "-keypass", "changeit").inheritIO().start();
+		if (keytool.waitFor() != 0) {
+			throw new IllegalStateException("keytool failed");
+		}
+
+		Server server = Server.builder().host("127.0.0.1").port(0).serviceContextPath("/api")
+				.tls(Tls.keyStore(keyStoreFile.getAbsolutePath(), "changeit").port(0))
+				.register(HelloService.class).build();
+		server.start();
+		int port = server.getTlsPort();
+
+		KeyStore trust = KeyStore.getInstance("PKCS12");
+		try (InputStream in = new FileInputStream(keyStoreFile)) {
+			trust.load(in, "changeit".toCharArray());
+		}
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(trust);
+
+		for (int round = 0; round < 2; round++) {
+			// first round warms up the JIT
+			run("full", port, tmf, calls, false);
+			run("resumed", port, tmf, calls, true);
+		}
+		server.stopNow();
+	}
+
+	private static void run(String name, int port, TrustManagerFactory tmf, int calls, boolean resume)
+			throws Exception {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, tmf.getTrustManagers(), null);
+		SSLSocketFactory factory = context.getSocketFactory();
+		byte[] request = "GET /api/hello HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+				.getBytes(StandardCharsets.US_ASCII);
+
+		int resumed = 0;
+		long firstCreated = 0;
+		String protocol = null;
+		long begin = System.nanoTime();
+		for (int i = 0; i < calls; i++) {
+			try (SSLSocket socket = (SSLSocket) factory.createSocket("127.0.0.1", port)) {
+				socket.setTcpNoDelay(true);
+				socket.startHandshake();
+				// a resumed session keeps the creation time of the one it resumes
+				long created = socket.getSession().getCreationTime();
+				if (firstCreated == 0) {
+					firstCreated = created;
+					protocol = socket.getSession().getProtocol() + " " + socket.getSession().getCipherSuite();
+				} else if (created == firstCreated) {
+					resumed++;
+				}
+				OutputStream out = socket.getOutputStream();
+				out.write(request);
+				out.flush();
+				InputStream in = socket.getInputStream();
+				byte[] buf = new byte[4096];
+				while (in.read(buf) >= 0) {
+				}
+				if (!resume) {
+					socket.getSession().invalidate();
+				}
+			}
+		}
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		System.out.printf("%-8s %7.0f handshakes/s  %7.0f us each  resumed=%d  %s%n", name, calls / seconds,
+				seconds * 1e6 / calls, resumed, protocol);
+	}
+
+	@Path("hello")
+	public static class HelloService {
+
+		@GET
+		@Produces(MediaType.TEXT_PLAIN)
+		public String hello() {
+			return "hello";
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.dieselpoint.dieseldb.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import com.dieselpoint.dieseldb.server.LoadHarness.Report;
+import com.dieselpoint.dieseldb.server.LoadHarness.Scenario;
+import com.dieselpoint.dieseljax.server.Server;
+
+/**
+ * Compares POST latency and allocation for an entity with no validation, a
+ * &#64;Valid entity whose type has no constraints (which ValidationFastPath
+ * skips), and a &#64;Valid entity with constraints. Then times the rejection
+ * of a large batch of bad items with and without fail-fast validation. Run
+ * from the command line: ValidationBenchmark [requestsPerSecond=500]
+ * [seconds=10] [batchSize=5000]
+ */
+public class ValidationBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int rate = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+
+		LoadHarness harness = new LoadHarness(
+				Server.builder().serviceContextPath("/api").register(ItemService.class));
+		harness.start();
+
+		byte[] item = "{\"name\":\"widget\",\"quantity\":3}".getBytes(StandardCharsets.UTF_8);
+		Scenario[] scenarios = { Scenario.post("unvalidated", "/api/items/unvalidated", "application/json", item),
+				Scenario.post("unconstrained", "/api/items/unconstrained", "application/json", item),
+				Scenario.post("validated", "/api/items/validated", "application/json", item) };
+
+		for (Scenario scenario : scenarios) {
+			harness.run(scenario, rate, Math.max(1, seconds / 5)); // warm up
+		}
+		for (Scenario scenario : scenarios) {
+			Report report = harness.run(scenario, rate, seconds);
+			System.out.println(report);
+		}
+		harness.stop();
+
+		String batch = badBatch(batchSize);
+		for (boolean failFast : new boolean[] { false, true }) {
+			Server server = Server.builder().host("127.0.0.1").port(0).serviceContextPath("/api")
+					.failFastValidation(failFast).register(ItemService.class).build();
+			server.start();
+			timeBatch("http://127.0.0.1:" + server.getPort() + "/api/items/batch", batch, failFast);
+			server.stopNow();
+		}
+	}
+
+	private static String badBatch(int size) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"name\":\"\",\"quantity\":-1}");
+		}
+		return sb.append(']').toString();
+	}
+
+	private static void timeBatch(String url, String batch, boolean failFast) throws Exception {
+		HttpClient client = HttpClient.newHttpClient();
+		HttpRequest request = HttpRequest.newBuilder(URI.create(url)).header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(batch)).build();
+		int iterations = 20;
+		HttpResponse<String> response = null;
+		long total = 0;
+		for (int i = 0; i < iterations * 2; i++) {
+			long start = System.nanoTime();
+			response = client.send(request, HttpResponse.BodyHandlers.ofString());
+			if (i >= iterations) { // first half is warm-up
+				total += System.nanoTime() - start;
+			}
+		}
+		String body = response.body();
+		System.out.printf("batch failFast=%-5s status=%d  mean %.2f ms  response %d bytes%n", failFast,
+				response.statusCode(), total / 1e6 / iterations, body.length());
+	}
+
+	public static class PlainItem {
+		public String name;
+		public int quantity;
+	}
+
+	public static class Item {
+		@NotNull
+		@Size(min = 1, max = 100, message = "name must be 1 to 100 characters")
+		public String name;
+
+		@Min(value = 0, message = "quantity must not be negative")
+		public int quantity;
+	}
+
+	@Path("items")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public static class ItemService {
+
+		@POST
+		@Path("unvalidated")
+		public String unvalidated(PlainItem item) {
+			return "{\"quantity\":" + item.quantity + "}";
+		}
+
+		@POST
+		@Path("unconstrained")
+		public String unconstrained(@Valid PlainItem item) {
+			return "{\"quantity\":" + item.quantity + "}";
+		}
+
+		@POST
+		@Path("validated")
+		public String validated(@Valid Item item) {
+			return "{\"quantity\":" + item.quantity + "}";
+		}
+
+		@POST
+		@Path("batch")
+		public String batch(@Valid List<Item> items) {
+			return "{\"count\":" + items.size() + "}";
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package com.dieselpoint.dieseldb.server;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import com.dieselpoint.dieseljax.server.Server;
+import com.dieselpoint.dieseljax.server.WebSocketEndpoint;
+
+/**
+ * Opens thousands of WebSocket sessions against a local server, broadcasts to
+ * all of them, and reports delivery throughput and latency. Run from the
+ * command line: WebSocketLoadTest [sessions] [messages]
+ */
+public class WebSocketLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int numSessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int numMessages = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int port = 18090;
+
+		BroadcastEndpoint endpoint = new BroadcastEndpoint();
+		Server server = Server.builder()
+				.host("127.0.0.1")
+				.port(port)
+				.websocket("/ws", endpoint)
+				.build();
+		server.start();
+
+		WebSocketClient client = new WebSocketClient();
+		client.setMaxIdleTimeout(60000);
+		client.start();
+
+		CountDownLatch done = new CountDownLatch(numSessions * numMessages);
+		AtomicLong totalLatency = new AtomicLong();
+		AtomicLong maxLatency = new AtomicLong();
+
+		URI uri = URI.create("ws://127.0.0.1:" + port + "/ws");
+		List<Session> sessions = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int i = 0; i < numSessions; i++) {
+			Receiver receiver = new Receiver(done, totalLatency, maxLatency);
+			sessions.add(client.connect(receiver, uri).get(10, TimeUnit.SECONDS));
+		}
+		long connectMillis = (System.nanoTime() - start) / 1_000_000;
+		System.out.println(numSessions + " sessions connected in " + connectMillis + " ms, server sees "
+				+ endpoint.getSessions().size());
+
+		start = System.nanoTime();
+		for (int i = 0; i < numMessages; i++) {
+			endpoint.broadcastText(Long.toString(System.nanoTime()));
+		}
+		boolean finished = done.await(60, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+
+		long delivered = (long) numSessions * numMessages - done.getCount();
+		System.out.println("delivered " + delivered + " messages in " + (elapsed / 1_000_000) + " ms"
+				+ (finished ? "" : " (timed out)"));
+		System.out.println("throughput: " + (delivered * 1_000_000_000L / elapsed) + " msgs/sec");
+		System.out.println("mean latency: " + (totalLatency.get() / Math.max(delivered, 1) / 1000) + " us, max: "
+				+ (maxLatency.get() / 1000) + " us");
+
+		for (Session session : sessions) {
+			session.close();
+		}
+		client.stop();
+		server.stopNow();
+	}
+
+	public static class BroadcastEndpoint extends WebSocketEndpoint {
+	}
+
+	public static class Receiver extends WebSocketAdapter {
+
+		private final CountDownLatch done;
+		private final AtomicLong totalLatency;
+		private final AtomicLong maxLatency;
+
+		Receiver(CountDownLatch done, AtomicLong totalLatency, AtomicLong maxLatency) {
+			this.done = done;
+			this.totalLatency = totalLatency;
+			this.maxLatency = maxLatency;
+		}
+
+		@Override
+		public void onWebSocketText(String message) {
+			long latency = System.nanoTime() - Long.parseLong(message);
+			totalLatency.addAndGet(latency);
+			maxLatency.accumulateAndGet(latency, Math::max);
+			done.countDown();
+		}
+	}
+
+}
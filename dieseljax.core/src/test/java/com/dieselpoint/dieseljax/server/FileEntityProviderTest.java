@@ -0,0 +1,226 @@
+package com.dieselpoint.dieseljax.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ws.rs.GET;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileEntityProviderTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static volatile FileEntity shared;
+
+	/**
+	 * Returns the same FileEntity to every request.
+	 */
+	@javax.ws.rs.Path("file")
+	public static class SharedFile {
+
+		@GET
+		public FileEntity get() {
+			return shared;
+		}
+	}
+
+	private static void assertRanges(String header, long length, long... expected) {
+		assertArrayEquals(header, expected, FileEntityProvider.parseRanges(header, length));
+	}
+
+	private static void assertIgnored(String header, long length) {
+		assertNull(header, FileEntityProvider.parseRanges(header, length));
+	}
+
+	private static void assertUnsatisfiable(String header, long length) {
+		long[] ranges = FileEntityProvider.parseRanges(header, length);
+		assertEquals(header, 0, ranges == null ? -1 : ranges.length);
+	}
+
+	@Test
+	public void singleRanges() {
+		assertRanges("bytes=0-0", 100, 0, 0);
+		assertRanges("bytes=0-99", 100, 0, 99);
+		assertRanges("bytes=10-19", 100, 10, 19);
+		assertRanges("bytes=10-", 100, 10, 99);
+		assertRanges("bytes=99-", 100, 99, 99);
+	}
+
+	@Test
+	public void endPastFileIsClamped() {
+		assertRanges("bytes=90-1000", 100, 90, 99);
+		assertRanges("bytes=0-" + Long.MAX_VALUE, 100, 0, 99);
+	}
+
+	@Test
+	public void suffixRanges() {
+		assertRanges("bytes=-1", 100, 99, 99);
+		assertRanges("bytes=-10", 100, 90, 99);
+		assertRanges("bytes=-100", 100, 0, 99);
+		assertRanges("bytes=-1000", 100, 0, 99);
+	}
+
+	@Test
+	public void multipleRanges() {
+		assertRanges("bytes=0-9,20-29", 100, 0, 9, 20, 29);
+		assertRanges("bytes=0-9, 20-29 ,-5", 100, 0, 9, 20, 29, 95, 99);
+		// unsatisfiable ones are dropped as long as one is left
+		assertRanges("bytes=0-9,200-300", 100, 0, 9);
+		assertRanges("bytes=-0,5-6", 100, 5, 6);
+		// an empty last element is allowed in an http list
+		assertRanges("bytes=0-9,", 100, 0, 9);
+	}
+
+	@Test
+	public void unsatisfiable() {
+		assertUnsatisfiable("bytes=100-", 100);
+		assertUnsatisfiable("bytes=100-200", 100);
+		assertUnsatisfiable("bytes=-0", 100);
+		assertUnsatisfiable("bytes=200-300,100-", 100);
+		assertUnsatisfiable("bytes=0-", 0);
+		assertUnsatisfiable("bytes=-5", 0);
+	}
+
+	@Test
+	public void malformedIsIgnored() {
+		assertIgnored("items=0-9", 100);
+		assertIgnored("bytes 0-9", 100);
+		assertIgnored("bytes=", 100);
+		assertIgnored("bytes=5", 100);
+		assertIgnored("bytes=-", 100);
+		assertIgnored("bytes=a-b", 100);
+		assertIgnored("bytes=-5-", 100);
+		assertIgnored("bytes=20-10", 100);
+		assertIgnored("bytes=0-99999999999999999999", 100);
+	}
+
+	@Test
+	public void tooManyRangesIsIgnored() {
+		StringBuilder sb = new StringBuilder("bytes=0-0");
+		for (int i = 1; i < 16; i++) {
+			sb.append(',').append(i * 2).append('-').append(i * 2);
+		}
+		assertEquals(32, FileEntityProvider.parseRanges(sb.toString(), 100).length);
+		sb.append(",40-40");
+		assertIgnored(sb.toString(), 100);
+	}
+
+	@Test
+	public void overlappingRangesAreIgnored() {
+		// more bytes in total than the file has
+		assertIgnored("bytes=0-99,0-99", 100);
+		assertIgnored("bytes=-60,0-59", 100);
+		// overlapping but not more than the file is allowed
+		assertRanges("bytes=0-9,5-14", 100, 0, 9, 5, 14);
+	}
+
+	@Test
+	public void sharedEntityServesEachRequestItsOwnRanges() throws Exception {
+		byte[] content = new byte[100_000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) (i * 7 + i / 256);
+		}
+		Path path = tmp.newFile("data").toPath();
+		Files.write(path, content);
+		shared = new FileEntity(path);
+
+		Server server = Server.builder().host("127.0.0.1").port(0).serviceContextPath("/api")
+				.register(SharedFile.class).build();
+		server.start();
+		try {
+			URI uri = URI.create("http://127.0.0.1:" + server.getPort() + "/api/file");
+			HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+			String[] ranges = { "bytes=0-9", "bytes=50000-", "bytes=-20000", "bytes=100-199,1000-1099" };
+			Map<String, String> failures = new ConcurrentHashMap<>();
+			Thread[] clients = new Thread[ranges.length];
+			for (int t = 0; t < clients.length; t++) {
+				String range = ranges[t];
+				clients[t] = new Thread(() -> {
+					HttpRequest request = HttpRequest.newBuilder(uri).header("Range", range).build();
+					for (int i = 0; i < 100 && failures.isEmpty(); i++) {
+						try {
+							HttpResponse<byte[]> response = http.send(request,
+									HttpResponse.BodyHandlers.ofByteArray());
+							String problem = check(range, response, content);
+							if (problem != null) {
+								failures.put(range, problem);
+							}
+						} catch (Exception e) {
+							failures.put(range, e.toString());
+						}
+					}
+				});
+				clients[t].start();
+			}
+			for (Thread t : clients) {
+				t.join();
+			}
+			assertEquals(Map.of(), failures);
+
+			// in-process requests go through the message body writer instead
+			InProcessClient.Response response = server.inProcessClient().request("GET", "/file",
+					Map.of("Range", "bytes=10-19"), null);
+			assertEquals(206, response.getStatus());
+			assertArrayEquals(Arrays.copyOfRange(content, 10, 20), response.getBody());
+		} finally {
+			server.stopNow();
+		}
+	}
+
+	private static String check(String range, HttpResponse<byte[]> response, byte[] content) {
+		if (response.statusCode() != 206) {
+			return "status " + response.statusCode();
+		}
+		byte[] body = response.body();
+		long[] r = FileEntityProvider.parseRanges(range, content.length);
+		if (r.length == 2) {
+			byte[] expected = Arrays.copyOfRange(content, (int) r[0], (int) r[1] + 1);
+			return Arrays.equals(expected, body) ? null : "wrong bytes, " + body.length + " long";
+		}
+		// multipart: each range's bytes, in order, after its part headers
+		String contentType = response.headers().firstValue("Content-Type").orElse("");
+		if (!contentType.startsWith("multipart/byteranges")) {
+			return "content type " + contentType;
+		}
+		int from = 0;
+		for (int i = 0; i < r.length; i += 2) {
+			byte[] expected = Arrays.copyOfRange(content, (int) r[i], (int) r[i + 1] + 1);
+			int at = indexOf(body, expected, from);
+			if (at < 0) {
+				return "range " + r[i] + "-" + r[i + 1] + " missing";
+			}
+			from = at + expected.length;
+		}
+		assertTrue(body.length > from);
+		return null;
+	}
+
+	private static int indexOf(byte[] haystack, byte[] needle, int from) {
+		outer: for (int i = from; i <= haystack.length - needle.length; i++) {
+			for (int j = 0; j < needle.length; j++) {
+				if (haystack[i + j] != needle[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+}
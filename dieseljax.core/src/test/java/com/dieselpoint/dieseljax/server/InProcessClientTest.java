@@ -0,0 +1,49 @@
+package com.dieselpoint.dieseljax.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+
+import org.junit.Test;
+
+public class InProcessClientTest {
+
+	private static final URI BASE = URI.create("http://127.0.0.1:8080/api/");
+
+	@Test
+	public void resolvesUnderBase() {
+		assertEquals("http://127.0.0.1:8080/api/items/3", InProcessClient.resolve(BASE, "/items/3").toString());
+		assertEquals("http://127.0.0.1:8080/api/items/3", InProcessClient.resolve(BASE, "items/3").toString());
+		assertEquals("http://127.0.0.1:8080/api/items?q=a%20b",
+				InProcessClient.resolve(BASE, "/items?q=a%20b").toString());
+		assertEquals("http://127.0.0.1:8080/api/items/3",
+				InProcessClient.resolve(BASE, "/other/../items/./3").toString());
+	}
+
+	@Test
+	public void baseWithoutTrailingSlash() {
+		URI base = URI.create("http://127.0.0.1:8080/api");
+		assertEquals("http://127.0.0.1:8080/api/items", InProcessClient.resolve(base, "/items").toString());
+		rejects(base, "/../apix");
+	}
+
+	@Test
+	public void rejectsEscapes() {
+		rejects(BASE, "/../admin");
+		rejects(BASE, "items/../../admin");
+		rejects(BASE, "//evil.example.com/x");
+		rejects(BASE, "///x");
+		rejects(BASE, "http://evil.example.com/api/items");
+		rejects(BASE, "/http://evil.example.com/api/items");
+	}
+
+	private static void rejects(URI base, String path) {
+		try {
+			URI uri = InProcessClient.resolve(base, path);
+			fail(path + " resolved to " + uri);
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+}
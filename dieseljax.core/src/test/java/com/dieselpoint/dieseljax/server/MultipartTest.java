@@ -0,0 +1,235 @@
+package com.dieselpoint.dieseljax.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.core.MediaType;
+
+import org.junit.Test;
+
+public class MultipartTest {
+
+	private static final String BOUNDARY = "----b0undary";
+
+	private static Multipart multipart(String body) {
+		return multipart(body.getBytes(StandardCharsets.UTF_8), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Return a Multipart whose stream hands out at most chunk bytes per read, so
+	 * delimiters land across reads.
+	 */
+	private static Multipart multipart(byte[] body, int chunk) {
+		InputStream in = new FilterInputStream(new ByteArrayInputStream(body)) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, chunk));
+			}
+		};
+		return new Multipart(in, BOUNDARY, new Upload.Settings());
+	}
+
+	private static String form(String... nameValues) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < nameValues.length; i += 2) {
+			sb.append("--").append(BOUNDARY).append("\r\n");
+			sb.append("Content-Disposition: form-data; name=\"").append(nameValues[i]).append("\"\r\n\r\n");
+			sb.append(nameValues[i + 1]).append("\r\n");
+		}
+		sb.append("--").append(BOUNDARY).append("--\r\n");
+		return sb.toString();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[1000];
+		int n;
+		while ((n = in.read(b)) >= 0) {
+			out.write(b, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void readsFields() throws IOException {
+		try (Multipart multipart = multipart(form("a", "one", "b", "", "c", "line1\r\nline2"))) {
+			Multipart.Part part = multipart.next();
+			assertEquals("a", part.getName());
+			assertNull(part.getFileName());
+			assertEquals(MediaType.TEXT_PLAIN_TYPE, part.getMediaType());
+			assertEquals("one", part.getString());
+
+			part = multipart.next();
+			assertEquals("b", part.getName());
+			assertEquals("", part.getString());
+
+			part = multipart.next();
+			assertEquals("line1\r\nline2", part.getString());
+
+			assertNull(multipart.next());
+			assertNull(multipart.next());
+		}
+	}
+
+	@Test
+	public void readsHeadersAndFileName() throws IOException {
+		String body = "--" + BOUNDARY + "\r\n" //
+				+ "Content-Disposition: form-data; name=\"file\"; filename=\"a b.txt\"\r\n" //
+				+ "Content-Type: text/csv; charset=ISO-8859-1\r\n" //
+				+ "X-Extra:  x \r\n" //
+				+ "\r\n" //
+				+ "café\r\n" //
+				+ "--" + BOUNDARY + "--";
+		try (Multipart multipart = new Multipart(
+				new ByteArrayInputStream(body.getBytes(StandardCharsets.ISO_8859_1)), BOUNDARY,
+				new Upload.Settings())) {
+			Multipart.Part part = multipart.next();
+			assertEquals("file", part.getName());
+			assertEquals("a b.txt", part.getFileName());
+			assertEquals("text", part.getMediaType().getType());
+			assertEquals("csv", part.getMediaType().getSubtype());
+			assertEquals("x", part.getHeaders().get("x-extra"));
+			assertEquals("café", part.getString());
+			assertNull(multipart.next());
+		}
+	}
+
+	@Test
+	public void skipsPreambleAndUnreadParts() throws IOException {
+		String body = "preamble, ignored\r\n" + form("a", "skipped", "b", "kept");
+		try (Multipart multipart = multipart(body)) {
+			assertEquals("a", multipart.next().getName());
+			Multipart.Part part = multipart.next();
+			assertEquals("b", part.getName());
+			assertEquals("kept", part.getString());
+			assertNull(multipart.next());
+		}
+	}
+
+	@Test
+	public void findsDelimitersSplitAcrossReads() throws IOException {
+		// content that looks like the start of a delimiter but isn't
+		String tricky = "x\r\n--" + BOUNDARY.substring(0, 5) + "y\r\n-\r";
+		byte[] body = form("a", tricky, "b", "two").getBytes(StandardCharsets.UTF_8);
+		for (int chunk = 1; chunk <= body.length; chunk++) {
+			try (Multipart multipart = multipart(body, chunk)) {
+				assertEquals(tricky, multipart.next().getString());
+				assertEquals("two", multipart.next().getString());
+				assertNull(multipart.next());
+			}
+		}
+	}
+
+	@Test
+	public void streamsBinaryParts() throws IOException {
+		byte[] content = new byte[100_000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) (i * 31);
+		}
+		byte[] body = concat(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"f\"\r\n\r\n").getBytes(),
+				content, ("\r\n--" + BOUNDARY + "--\r\n").getBytes());
+		try (Multipart multipart = multipart(body, 4096)) {
+			assertTrue(Arrays.equals(content, readAll(multipart.next().getInputStream())));
+			assertNull(multipart.next());
+		}
+	}
+
+	@Test
+	public void spoolsLargePartsToDisk() throws IOException {
+		Upload.Settings settings = new Upload.Settings();
+		byte[] content = new byte[settings.memoryThreshold + 1];
+		Arrays.fill(content, (byte) 'z');
+		byte[] body = concat(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"small\"\r\n\r\n"
+				+ "tiny\r\n--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"big\"; filename=\"big\"\r\n\r\n")
+						.getBytes(),
+				content, ("\r\n--" + BOUNDARY + "--\r\n").getBytes());
+
+		Path spooled;
+		try (Multipart multipart = multipart(body, 5000)) {
+			Upload small = multipart.next().spool();
+			assertTrue(small.isInMemory());
+			assertEquals("tiny", small.getString());
+
+			Upload big = multipart.next().spool();
+			assertFalse(big.isInMemory());
+			assertEquals(content.length, big.size());
+			spooled = big.getPath();
+			assertTrue(Arrays.equals(content, Files.readAllBytes(spooled)));
+			assertNull(multipart.next());
+		}
+		assertFalse("close() deletes spooled parts", Files.exists(spooled));
+	}
+
+	@Test
+	public void rejectsOversizedField() throws IOException {
+		char[] big = new char[new Upload.Settings().memoryThreshold * 2];
+		Arrays.fill(big, 'q');
+		try (Multipart multipart = multipart(form("big", new String(big)))) {
+			multipart.next().getString();
+			fail();
+		} catch (BadRequestException expected) {
+		}
+	}
+
+	@Test
+	public void rejectsTruncatedBody() throws IOException {
+		String body = form("a", "one", "b", "two");
+		String truncated = body.substring(0, body.indexOf("two") + 2);
+
+		try (Multipart multipart = multipart(truncated)) {
+			assertEquals("one", multipart.next().getString());
+			multipart.next().getString();
+			fail();
+		} catch (BadRequestException expected) {
+		}
+
+		try (Multipart multipart = multipart(truncated)) {
+			multipart.next();
+			multipart.next();
+			multipart.next();
+			fail();
+		} catch (BadRequestException expected) {
+		}
+
+		try (Multipart multipart = multipart("no delimiter at all")) {
+			multipart.next();
+			fail();
+		} catch (BadRequestException expected) {
+		}
+	}
+
+	@Test
+	public void rejectsOversizedHeaders() throws IOException {
+		char[] big = new char[20 * 1024];
+		Arrays.fill(big, 'h');
+		String body = "--" + BOUNDARY + "\r\nX-Big: " + new String(big) + "\r\n\r\nx\r\n--" + BOUNDARY + "--";
+		try (Multipart multipart = multipart(body)) {
+			multipart.next();
+			fail();
+		} catch (BadRequestException expected) {
+		}
+	}
+
+	private static byte[] concat(byte[]... arrays) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] a : arrays) {
+			out.write(a, 0, a.length);
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,439 @@
+package com.dieselpoint.dieseljax.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.ServiceUnavailableException;
+
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.internal.routing.RoutingContext;
+import org.glassfish.jersey.server.model.Resource;
+import org.glassfish.jersey.server.model.ResourceMethod;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import com.dieselpoint.dieseljax.server.PriorityScheduler.PriorityClass;
+
+public class PrioritySchedulerTest {
+
+	private static final URI BASE = URI.create("http://localhost/api/");
+
+	@Path("paid")
+	@PriorityClass("paid")
+	public static class PaidResource {
+
+		@GET
+		@Path("critical")
+		@PriorityClass("critical")
+		public void critical() {
+		}
+
+		@GET
+		public void plain() {
+		}
+	}
+
+	@Path("typo")
+	@PriorityClass("critcal")
+	public static class TypoResource {
+
+		@GET
+		public void plain() {
+		}
+	}
+
+	@Path("plain")
+	public static class PlainResource {
+
+		@GET
+		public void plain() {
+		}
+	}
+	private final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+	private final List<Thread> threads = new ArrayList<>();
+
+	@After
+	public void tearDown() throws Exception {
+		System.clearProperty("dieseljax.scheduler.maxWaitMillis");
+		System.clearProperty("dieseljax.scheduler.queueSize");
+		for (Thread thread : threads) {
+			thread.interrupt();
+			thread.join(5000);
+		}
+	}
+
+	private PriorityScheduler scheduler(int maxConcurrent) {
+		return new PriorityScheduler(maxConcurrent) //
+				.priorityClass("standard", 1) //
+				.priorityClass("critical", 8) //
+				.priorityClass("paid", 3) //
+				.priorityClass("background", 1) //
+				.path("/health", "critical") //
+				.path("reports/", "background") //
+				.header("X-Tier", "paid", "paid") //
+				.header("X-Batch", null, "background");
+	}
+
+	private static ContainerRequest request(String path, String... headers) {
+		ContainerRequest request = new ContainerRequest(BASE, BASE.resolve(path), "GET", null,
+				new MapPropertiesDelegate());
+		for (int i = 0; i < headers.length; i += 2) {
+			request.header(headers[i], headers[i + 1]);
+		}
+		return request;
+	}
+
+	/**
+	 * Mark the request as matched to a resource method, as Jersey's routing
+	 * does before the filter runs.
+	 */
+	private static ContainerRequest matched(ContainerRequest request, Class<?> resourceClass, String methodName) {
+		Resource resource = Resource.from(resourceClass);
+		List<ResourceMethod> methods = new ArrayList<>(resource.getResourceMethods());
+		for (Resource child : resource.getChildResources()) {
+			methods.addAll(child.getResourceMethods());
+		}
+		for (ResourceMethod method : methods) {
+			if (method.getInvocable().getHandlingMethod().getName().equals(methodName)) {
+				((RoutingContext) request.getUriInfo()).setMatchedResourceMethod(method);
+				return request;
+			}
+		}
+		throw new IllegalArgumentException(methodName);
+	}
+
+	private static void finish(PriorityScheduler scheduler, ContainerRequest request) {
+		RequestEvent event = (RequestEvent) Proxy.newProxyInstance(RequestEvent.class.getClassLoader(),
+				new Class<?>[] { RequestEvent.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getType":
+						return RequestEvent.Type.FINISHED;
+					case "getContainerRequest":
+						return request;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		scheduler.onEvent(event);
+	}
+
+	/**
+	 * Run the filter on another thread. The request goes to results once it is
+	 * admitted, or the exception if it isn't.
+	 */
+	private void submit(PriorityScheduler scheduler, ContainerRequest request) {
+		Thread thread = new Thread(() -> {
+			try {
+				scheduler.filter(request);
+				results.add(request);
+			} catch (Throwable t) {
+				results.add(t);
+			}
+		});
+		threads.add(thread);
+		thread.start();
+	}
+
+	private static Map<?, ?> stats(PriorityScheduler scheduler, String className) {
+		return (Map<?, ?>) scheduler.getStats(false).get(className);
+	}
+
+	private static void awaitQueued(PriorityScheduler scheduler, int n) throws InterruptedException {
+		long until = System.currentTimeMillis() + 5000;
+		while (true) {
+			int queued = 0;
+			for (Object value : scheduler.getStats(false).values()) {
+				if (value instanceof Map) {
+					queued += (Integer) ((Map<?, ?>) value).get("queued");
+				}
+			}
+			if (queued == n) {
+				return;
+			}
+			assertTrue("expected " + n + " queued, have " + queued, System.currentTimeMillis() < until);
+			Thread.sleep(1);
+		}
+	}
+
+	private ContainerRequest nextAdmitted() throws InterruptedException {
+		Object result = results.poll(5, TimeUnit.SECONDS);
+		assertTrue("expected an admitted request, got " + result, result instanceof ContainerRequest);
+		return (ContainerRequest) result;
+	}
+
+	private String classify(PriorityScheduler scheduler, ContainerRequest request) throws Exception {
+		scheduler.filter(request);
+		finish(scheduler, request);
+		for (Map.Entry<String, Object> entry : scheduler.getStats(false).entrySet()) {
+			if (entry.getValue() instanceof Map && ((Map<?, ?>) entry.getValue()).get("completed").equals(1L)) {
+				return entry.getKey();
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void classifies() throws Exception {
+		assertEquals("critical",
+				classify(scheduler(4), matched(request("items", "X-Batch", "1"), PaidResource.class, "critical")));
+		assertEquals("paid", classify(scheduler(4), matched(request("health"), PaidResource.class, "plain")));
+
+		assertEquals("critical", classify(scheduler(4),
+				matched(request("health/db", "X-Tier", "paid"), PlainResource.class, "plain")));
+		assertEquals("background",
+				classify(scheduler(4), matched(request("reports/daily"), PlainResource.class, "plain")));
+		assertEquals("paid", classify(scheduler(4), request("items", "X-Tier", "PAID", "X-Batch", "1")));
+		assertEquals("background", classify(scheduler(4), request("items", "X-Tier", "free", "X-Batch", "1")));
+		assertEquals("standard", classify(scheduler(4), request("items")));
+
+		PriorityScheduler scheduler = scheduler(4).defaultClass("background");
+		assertEquals("background", classify(scheduler, request("items")));
+	}
+
+	@Test
+	public void unknownAnnotatedClassFallsThrough() throws Exception {
+		PriorityScheduler scheduler = scheduler(4);
+		assertEquals("critical", classify(scheduler, matched(request("health"), TypoResource.class, "plain")));
+		scheduler = scheduler(4);
+		assertEquals("standard", classify(scheduler, matched(request("items"), TypoResource.class, "plain")));
+	}
+
+	@Test
+	public void needsAClass() {
+		try {
+			new PriorityScheduler(4).validate();
+			fail();
+		} catch (IllegalStateException expected) {
+		}
+		scheduler(4).validate();
+	}
+
+	@Test
+	public void rejectsUnknownClasses() throws Exception {
+		PriorityScheduler scheduler = new PriorityScheduler(1).priorityClass("a", 1);
+		try {
+			scheduler.path("/x", "b");
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			scheduler.priorityClass("c", 0);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void admitsUpToMaxConcurrent() throws Exception {
+		PriorityScheduler scheduler = scheduler(2);
+		ContainerRequest a = request("items");
+		ContainerRequest b = request("items");
+		scheduler.filter(a);
+		scheduler.filter(b);
+		assertEquals(2, scheduler.getStats(false).get("running"));
+
+		ContainerRequest c = request("items");
+		submit(scheduler, c);
+		awaitQueued(scheduler, 1);
+		assertNull(results.poll(50, TimeUnit.MILLISECONDS));
+
+		// finishing a hands its slot straight to c
+		finish(scheduler, a);
+		assertSame(c, nextAdmitted());
+		assertEquals(2, scheduler.getStats(false).get("running"));
+
+		finish(scheduler, b);
+		finish(scheduler, c);
+		// finishing twice doesn't free a slot twice
+		finish(scheduler, c);
+		assertEquals(0, scheduler.getStats(false).get("running"));
+		assertEquals(3L, stats(scheduler, "standard").get("completed"));
+	}
+
+	@Test
+	public void sharesSlotsByWeight() throws Exception {
+		PriorityScheduler scheduler = scheduler(1);
+		ContainerRequest running = request("items");
+		scheduler.filter(running);
+
+		for (int i = 0; i < 12; i++) {
+			submit(scheduler, request("items", "X-Tier", "paid"));
+			submit(scheduler, request("items"));
+		}
+		awaitQueued(scheduler, 24);
+
+		StringBuilder order = new StringBuilder();
+		for (int i = 0; i < 16; i++) {
+			finish(scheduler, running);
+			running = nextAdmitted();
+			order.append(running.getHeaderString("X-Tier") == null ? 's' : 'p');
+		}
+		// weights 3 and 1, both starting level. Ties go to the class added first.
+		assertEquals('s', order.charAt(0));
+		assertEquals(12, order.chars().filter(c -> c == 'p').count());
+		assertTrue(order.toString(), order.indexOf("ss") < 0);
+	}
+
+	@Test
+	public void idleClassDoesNotBankCredit() throws Exception {
+		PriorityScheduler scheduler = scheduler(1);
+		ContainerRequest running = request("items");
+		scheduler.filter(running);
+
+		// paid runs alone for long enough that standard, at weight 1, would be
+		// three turns behind
+		for (int i = 0; i < 15; i++) {
+			submit(scheduler, request("items", "X-Tier", "paid"));
+		}
+		awaitQueued(scheduler, 15);
+		for (int i = 0; i < 9; i++) {
+			finish(scheduler, running);
+			running = nextAdmitted();
+		}
+
+		// standard arriving now gets its share from here on, not a burst to make
+		// up for the time it was idle
+		for (int i = 0; i < 3; i++) {
+			submit(scheduler, request("items"));
+		}
+		awaitQueued(scheduler, 9);
+		StringBuilder order = new StringBuilder();
+		for (int i = 0; i < 6; i++) {
+			finish(scheduler, running);
+			running = nextAdmitted();
+			order.append(running.getHeaderString("X-Tier") == null ? 's' : 'p');
+		}
+		assertTrue(order.toString(), order.indexOf("ss") < 0);
+	}
+
+	@Test
+	public void starvedRequestsGoFirst() throws Exception {
+		System.setProperty("dieseljax.scheduler.maxWaitMillis", "50");
+		PriorityScheduler scheduler = scheduler(1);
+		ContainerRequest running = request("items");
+		scheduler.filter(running);
+
+		// one background request runs, which puts background a full stride
+		// behind critical
+		submit(scheduler, request("reports/1"));
+		awaitQueued(scheduler, 1);
+		finish(scheduler, running);
+		running = nextAdmitted();
+
+		ContainerRequest old = request("reports/2");
+		submit(scheduler, old);
+		awaitQueued(scheduler, 1);
+		Thread.sleep(100);
+		for (int i = 0; i < 4; i++) {
+			submit(scheduler, request("health"));
+		}
+		awaitQueued(scheduler, 5);
+
+		// by pass, all four critical requests would go first
+		finish(scheduler, running);
+		assertSame(old, nextAdmitted());
+	}
+
+	@Test
+	public void rejectsWhenQueueIsFull() throws Exception {
+		System.setProperty("dieseljax.scheduler.queueSize", "2");
+		PriorityScheduler scheduler = scheduler(1);
+		scheduler.filter(request("items"));
+		submit(scheduler, request("items"));
+		submit(scheduler, request("items"));
+		awaitQueued(scheduler, 2);
+
+		try {
+			scheduler.filter(request("items"));
+			fail();
+		} catch (PriorityScheduler.QueueFullException e) {
+			assertEquals(503, e.getResponse().getStatus());
+		}
+		// other classes have their own queues
+		submit(scheduler, request("health"));
+		awaitQueued(scheduler, 3);
+		assertEquals(1L, stats(scheduler, "standard").get("rejected"));
+	}
+
+	@Test
+	public void givesUpAtDeadline() throws Exception {
+		PriorityScheduler scheduler = scheduler(1);
+		ContainerRequest running = request("items");
+		scheduler.filter(running);
+
+		ContainerRequest late = request("items");
+		late.setProperty(Deadline.PROPERTY, new Deadline(System.nanoTime() + 50_000_000L, true));
+		submit(scheduler, late);
+		Object result = results.poll(5, TimeUnit.SECONDS);
+		assertTrue(String.valueOf(result), result instanceof Deadline.ExceededException);
+		assertEquals(503, ((Deadline.ExceededException) result).getResponse().getStatus());
+		awaitQueued(scheduler, 0);
+		assertEquals(1L, stats(scheduler, "standard").get("rejected"));
+
+		// the slot is still held, and goes to the next one waiting
+		ContainerRequest next = request("items");
+		submit(scheduler, next);
+		awaitQueued(scheduler, 1);
+		finish(scheduler, running);
+		assertSame(next, nextAdmitted());
+	}
+
+	@Test
+	public void interruptIsNotADeadline() throws Exception {
+		PriorityScheduler scheduler = scheduler(1);
+		ContainerRequest running = request("items");
+		scheduler.filter(running);
+
+		ContainerRequest waiting = request("items");
+		waiting.setProperty(Deadline.PROPERTY, new Deadline(System.nanoTime() + 60_000_000_000L, true));
+		Thread thread = new Thread(() -> {
+			try {
+				scheduler.filter(waiting);
+				results.add(waiting);
+			} catch (Throwable t) {
+				results.add(Thread.currentThread().isInterrupted() ? t : new AssertionError("flag cleared", t));
+			}
+		});
+		threads.add(thread);
+		thread.start();
+		awaitQueued(scheduler, 1);
+		thread.interrupt();
+
+		Object result = results.poll(5, TimeUnit.SECONDS);
+		assertTrue(String.valueOf(result), result instanceof ServiceUnavailableException);
+		assertFalse(result instanceof Deadline.ExceededException);
+		assertEquals("Interrupted while waiting to be scheduled", ((Exception) result).getMessage());
+		awaitQueued(scheduler, 0);
+		assertEquals(0L, stats(scheduler, "standard").get("rejected"));
+	}
+
+	@Test
+	public void skipsInProcessRequests() throws Exception {
+		PriorityScheduler scheduler = scheduler(1);
+		scheduler.filter(request("items"));
+		ContainerRequest inner = request("items");
+		inner.setProperty(InProcessClient.IN_PROCESS_PROPERTY, Boolean.TRUE);
+		scheduler.filter(inner);
+		finish(scheduler, inner);
+		assertEquals(1, scheduler.getStats(false).get("running"));
+		assertEquals(1L, stats(scheduler, "standard").get("admitted"));
+	}
+
+}
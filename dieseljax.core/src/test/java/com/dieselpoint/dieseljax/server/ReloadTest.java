@@ -0,0 +1,148 @@
+package com.dieselpoint.dieseljax.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.After;
+import org.junit.Test;
+
+public class ReloadTest {
+
+	private Server server;
+
+	@After
+	public void tearDown() throws Exception {
+		if (server != null) {
+			server.stopNow();
+		}
+	}
+
+	@Path("version")
+	@Produces(MediaType.TEXT_PLAIN)
+	public static class VersionOne {
+
+		@GET
+		@Deadline.Timeout(10000)
+		@PriorityScheduler.PriorityClass("fast")
+		public String get() {
+			return "one";
+		}
+	}
+
+	@Path("version")
+	@Produces(MediaType.TEXT_PLAIN)
+	public static class VersionTwo {
+
+		@GET
+		public String get() {
+			return "two";
+		}
+	}
+
+	@Path("deadline")
+	@Produces(MediaType.TEXT_PLAIN)
+	public static class DeadlineResource {
+
+		@GET
+		@Deadline.Timeout(60000)
+		public String get(@Context Deadline deadline) {
+			return Long.toString(deadline.remainingMillis());
+		}
+	}
+
+	/**
+	 * The shared filters find the matched method's annotations and the
+	 * request's arrival time without injected fields, before and after a
+	 * reload.
+	 */
+	@Test
+	public void deadlinesSurviveReload() throws Exception {
+		server = Server.builder().host("127.0.0.1").port(0).serviceContextPath("/api").deadlines(5000)
+				.register(DeadlineResource.class).build();
+		server.start();
+		HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+		HttpRequest request = HttpRequest
+				.newBuilder(URI.create("http://127.0.0.1:" + server.getPort() + "/api/deadline")).build();
+
+		for (int i = 0; i < 2; i++) {
+			HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, response.statusCode());
+			long remaining = Long.parseLong(response.body());
+			// the annotation, not the 5000 default
+			assertTrue(String.valueOf(remaining), remaining > 50000 && remaining <= 60000);
+			server.reload(new ResourceConfig(DeadlineResource.class));
+		}
+	}
+
+	/**
+	 * Requests in flight on the old application must finish there, even with
+	 * the builder's filters shared between generations.
+	 */
+	@Test
+	public void reloadUnderLoad() throws Exception {
+		server = Server.builder().host("127.0.0.1").port(0).serviceContextPath("/api").deadlines(5000)
+				.scheduler(new PriorityScheduler(8).priorityClass("standard", 1).priorityClass("fast", 4))
+				.register(VersionOne.class).build();
+		server.start();
+		URI uri = URI.create("http://127.0.0.1:" + server.getPort() + "/api/version");
+		HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+		AtomicBoolean stop = new AtomicBoolean();
+		AtomicLong requests = new AtomicLong();
+		Map<String, Long> failures = new ConcurrentHashMap<>();
+		Set<String> bodies = ConcurrentHashMap.newKeySet();
+		Thread[] clients = new Thread[4];
+		for (int t = 0; t < clients.length; t++) {
+			clients[t] = new Thread(() -> {
+				HttpRequest request = HttpRequest.newBuilder(uri).build();
+				while (!stop.get()) {
+					String failure;
+					try {
+						HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+						failure = response.statusCode() == 200 ? null : response.statusCode() + " " + response.body();
+						bodies.add(response.body());
+					} catch (Exception e) {
+						failure = e.toString();
+					}
+					requests.incrementAndGet();
+					if (failure != null) {
+						failures.merge(failure, 1L, Long::sum);
+					}
+				}
+			});
+			clients[t].start();
+		}
+
+		for (int i = 0; i < 20; i++) {
+			server.reload(new ResourceConfig(i % 2 == 0 ? VersionTwo.class : VersionOne.class));
+			Thread.sleep(50);
+		}
+		stop.set(true);
+		for (Thread t : clients) {
+			t.join();
+		}
+
+		assertTrue(requests.get() > 100);
+		assertEquals(Map.of(), failures);
+		assertEquals(Set.of("one", "two"), bodies);
+		assertEquals(20L, server.getReloadStats().get("reloads"));
+	}
+
+}
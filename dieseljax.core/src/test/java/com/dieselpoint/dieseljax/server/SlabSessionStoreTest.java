@@ -0,0 +1,369 @@
+package com.dieselpoint.dieseljax.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.session.SessionContext;
+import org.eclipse.jetty.server.session.SessionData;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SlabSessionStoreTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private SlabSessionStore store;
+
+	@After
+	public void tearDown() throws Exception {
+		if (store != null) {
+			store.stop();
+		}
+	}
+
+	private SlabSessionStore start(long maxMemory, int slabSize, File file) throws Exception {
+		store = new SlabSessionStore(maxMemory, slabSize, file);
+		store.initialize(new SessionContext("node0", new ContextHandler().getServletContext()));
+		store.start();
+		return store;
+	}
+
+	private SessionData session(String id, String value) {
+		long now = System.currentTimeMillis();
+		SessionData data = store.newSessionData(id, now, now, now, 60000);
+		data.setContextPath("/");
+		data.setVhost("0.0.0.0");
+		data.setExpiry(now + 60000);
+		if (value != null) {
+			data.setAttribute("value", value);
+		}
+		return data;
+	}
+
+	private static String repeat(char c, int n) {
+		return new String(new char[n]).replace('\0', c);
+	}
+
+	@Test
+	public void classMigrationUnderFullMemory() throws Exception {
+		// two slabs, both filled with small sessions
+		start(2048, 1024, null);
+		for (int i = 0; i < 16; i++) {
+			store.doStore("s" + i, session("s" + i, null), 0);
+		}
+		assertEquals(16, store.getStats().get("sessions"));
+		store.verify();
+
+		// s0 grows into a class with no slab, and the slab taken for it is the
+		// one s0 was in
+		store.doStore("s0", session("s0", repeat('x', 300)), 0);
+		store.verify();
+
+		Map<String, Object> stats = store.getStats();
+		assertEquals(1L, stats.get("slabsReassigned"));
+		assertEquals(7L, stats.get("evicted"));
+		assertEquals(9, stats.get("sessions"));
+		assertEquals(repeat('x', 300), store.doLoad("s0").getAttribute("value"));
+		for (int i = 1; i < 8; i++) {
+			assertNull(store.doLoad("s" + i));
+		}
+		for (int i = 8; i < 16; i++) {
+			assertNotNull(store.doLoad("s" + i));
+		}
+
+		// and back down again
+		store.doStore("s0", session("s0", null), 0);
+		store.verify();
+		assertNull(store.doLoad("s0").getAttribute("value"));
+	}
+
+	@Test
+	public void storeLoadAndDelete() throws Exception {
+		start(1024 * 1024, 64 * 1024, null);
+		SessionData data = session("a", "hello");
+		data.setAttribute("list", new ArrayList<>(Arrays.asList(1, 2, 3)));
+		data.setLastNode("node7");
+		store.doStore("a", data, 0);
+		assertTrue(store.exists("a"));
+
+		SessionData loaded = store.doLoad("a");
+		assertEquals("a", loaded.getId());
+		assertEquals("/", loaded.getContextPath());
+		assertEquals("0.0.0.0", loaded.getVhost());
+		assertEquals("node7", loaded.getLastNode());
+		assertEquals(data.getCreated(), loaded.getCreated());
+		assertEquals(data.getExpiry(), loaded.getExpiry());
+		assertEquals(data.getMaxInactiveMs(), loaded.getMaxInactiveMs());
+		assertEquals("hello", loaded.getAttribute("value"));
+		assertEquals(Arrays.asList(1, 2, 3), loaded.getAttribute("list"));
+
+		// rewritten in place while it stays in the same class
+		store.doStore("a", session("a", "bye"), 0);
+		assertEquals("bye", store.doLoad("a").getAttribute("value"));
+		store.verify();
+
+		assertTrue(store.delete("a"));
+		assertFalse(store.delete("a"));
+		assertFalse(store.exists("a"));
+		assertNull(store.doLoad("a"));
+		store.verify();
+
+		Map<String, Object> stats = store.getStats();
+		assertEquals(0, stats.get("sessions"));
+		assertEquals(0L, stats.get("usedBytes"));
+		assertEquals(0L, stats.get("chunkBytes"));
+		assertEquals(2L, stats.get("stores"));
+		assertEquals(1L, stats.get("deletes"));
+	}
+
+	@Test
+	public void evictsLeastRecentlyStored() throws Exception {
+		// one slab of eight small chunks
+		start(1024, 1024, null);
+		for (int i = 0; i < 8; i++) {
+			store.doStore("s" + i, session("s" + i, null), 0);
+		}
+		// storing s0 again makes s1 the least recent
+		store.doStore("s0", session("s0", null), 0);
+		store.doStore("s8", session("s8", null), 0);
+		store.verify();
+
+		assertEquals(1L, store.getStats().get("evicted"));
+		assertNull(store.doLoad("s1"));
+		assertNotNull(store.doLoad("s0"));
+		assertNotNull(store.doLoad("s8"));
+		assertEquals(8, store.getStats().get("sessions"));
+	}
+
+	@Test
+	public void rejectsSessionsLargerThanASlab() throws Exception {
+		start(4096, 1024, null);
+		try {
+			store.doStore("big", session("big", repeat('x', 2000)), 0);
+			fail();
+		} catch (IOException expected) {
+		}
+		assertFalse(store.exists("big"));
+		assertEquals(1L, store.getStats().get("rejected"));
+		store.verify();
+	}
+
+	@Test
+	public void reportsExpiredCandidates() throws Exception {
+		start(1024 * 1024, 64 * 1024, null);
+		SessionData old = session("old", null);
+		old.setExpiry(System.currentTimeMillis() - 1000);
+		store.doStore("old", old, 0);
+		store.doStore("live", session("live", null), 0);
+		SessionData forever = session("forever", null);
+		forever.setExpiry(0);
+		store.doStore("forever", forever, 0);
+
+		assertFalse(store.exists("old"));
+		assertTrue(store.exists("live"));
+		assertTrue(store.exists("forever"));
+
+		Set<String> candidates = new HashSet<>(Arrays.asList("old", "live", "forever", "gone"));
+		assertEquals(new HashSet<>(Arrays.asList("old", "gone")), store.doGetExpired(candidates));
+	}
+
+	@Test
+	public void recoversFromFile() throws Exception {
+		File file = new File(tmp.getRoot(), "sessions/slabs");
+		start(64 * 1024, 4096, file);
+		for (int i = 0; i < 50; i++) {
+			store.doStore("s" + i, session("s" + i, repeat('v', i * 20)), 0);
+		}
+		store.delete("s3");
+		Map<String, Object> before = store.getStats();
+		SessionData old = session("old", null);
+		old.setExpiry(System.currentTimeMillis() - 1000);
+		store.doStore("old", old, 0);
+		store.stop();
+
+		start(64 * 1024, 4096, file);
+		store.verify();
+		Map<String, Object> after = store.getStats();
+		assertEquals(49L, after.get("recovered"));
+		assertEquals(49, after.get("sessions"));
+		assertEquals(before.get("usedBytes"), after.get("usedBytes"));
+		assertEquals(before.get("chunkBytes"), after.get("chunkBytes"));
+		assertNull(store.doLoad("s3"));
+		assertNull(store.doLoad("old"));
+		for (int i = 0; i < 50; i++) {
+			if (i != 3) {
+				assertEquals(repeat('v', i * 20), store.doLoad("s" + i).getAttribute("value"));
+			}
+		}
+
+		// recovered free chunks are reused
+		store.doStore("s3", session("s3", "again"), 0);
+		store.verify();
+		assertEquals("again", store.doLoad("s3").getAttribute("value"));
+	}
+
+	@Test
+	public void ignoresFileWithOtherSettings() throws Exception {
+		File file = tmp.newFile("slabs");
+		start(64 * 1024, 4096, file);
+		store.doStore("a", session("a", null), 0);
+		store.stop();
+
+		start(64 * 1024, 8192, file);
+		assertEquals(0, store.getStats().get("sessions"));
+		assertNull(store.doLoad("a"));
+		store.verify();
+		store.stop();
+
+		// a file of garbage is ignored too
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0);
+			raf.write(new byte[100]);
+		}
+		start(64 * 1024, 4096, file);
+		assertEquals(0, store.getStats().get("sessions"));
+		store.doStore("b", session("b", null), 0);
+		store.verify();
+		assertTrue(Files.size(file.toPath()) > 4096);
+	}
+
+	/*
+	 * Timer wheel
+	 */
+
+	private static SlabSessionStore.Entry entry(String id, long expiry) {
+		SlabSessionStore.Entry e = new SlabSessionStore.Entry(id);
+		e.expiry = expiry;
+		return e;
+	}
+
+	private static Set<String> advance(SlabSessionStore.Wheel wheel, long millis) {
+		List<SlabSessionStore.Entry> fired = new ArrayList<>();
+		wheel.advance(millis, fired);
+		Set<String> ids = new HashSet<>();
+		for (SlabSessionStore.Entry e : fired) {
+			assertTrue("fired twice: " + e.id, ids.add(e.id));
+		}
+		return ids;
+	}
+
+	@Test
+	public void wheelFiresAfterExpiry() {
+		long start = 1_000_000_000L;
+		SlabSessionStore.Wheel wheel = new SlabSessionStore.Wheel(start);
+		wheel.schedule(entry("a", start + 1500));
+		wheel.schedule(entry("never", 0));
+
+		assertEquals(Set.of(), advance(wheel, start + 1999));
+		assertEquals(Set.of("a"), advance(wheel, start + 2000));
+		assertEquals(Set.of(), advance(wheel, start + 100_000_000));
+	}
+
+	@Test
+	public void wheelSchedulesThePastForTheNextTick() {
+		long start = 1_000_000_000L;
+		SlabSessionStore.Wheel wheel = new SlabSessionStore.Wheel(start);
+		wheel.schedule(entry("past", start - 10_000));
+		assertEquals(Set.of(), advance(wheel, start + 999));
+		assertEquals(Set.of("past"), advance(wheel, start + 1000));
+	}
+
+	@Test
+	public void wheelCancel() {
+		long start = 1_000_000_000L;
+		SlabSessionStore.Wheel wheel = new SlabSessionStore.Wheel(start);
+		SlabSessionStore.Entry a = entry("a", start + 5000);
+		SlabSessionStore.Entry b = entry("b", start + 5000);
+		SlabSessionStore.Entry c = entry("c", start + 500_000);
+		wheel.schedule(a);
+		wheel.schedule(b);
+		wheel.schedule(c);
+		wheel.cancel(a);
+		wheel.cancel(a);
+		wheel.cancel(c);
+		assertEquals(Set.of("b"), advance(wheel, start + 1_000_000));
+
+		// an entry can be scheduled again after firing or being cancelled
+		a.expiry = start + 2_000_000;
+		wheel.schedule(a);
+		wheel.schedule(c);
+		assertEquals(Set.of("c"), advance(wheel, start + 1_500_000));
+		assertEquals(Set.of("a"), advance(wheel, start + 3_000_000));
+	}
+
+	@Test
+	public void wheelCascadesFromEveryLevel() {
+		// start just before tick boundaries so cascades happen early
+		long start = (1L << 20) * 1000 - 3000;
+		SlabSessionStore.Wheel wheel = new SlabSessionStore.Wheel(start);
+		long[] offsets = { 1, 2, 3, 4, 255, 256, 257, 511, 512, 65_535, 65_536, 65_537, 200_000, 65_536L * 63,
+				65_536L * 64, 65_536L * 100, 10_000_000 };
+		for (long offset : offsets) {
+			wheel.schedule(entry("t" + offset, start + offset * 1000 - 1));
+		}
+
+		long now = start;
+		Set<String> seen = new HashSet<>();
+		for (long offset : offsets) {
+			long due = start + offset * 1000;
+			// one tick short of due: nothing of this one yet
+			Set<String> fired = advance(wheel, due - 1000);
+			assertFalse("t" + offset + " fired early", fired.contains("t" + offset));
+			seen.addAll(fired);
+			assertEquals(Set.of("t" + offset), advance(wheel, due));
+			seen.add("t" + offset);
+			now = due;
+		}
+		assertEquals(offsets.length, seen.size());
+		assertEquals(Set.of(), advance(wheel, now + 100_000_000));
+	}
+
+	@Test
+	public void wheelMatchesSimpleModel() {
+		Random random = new Random(42);
+		long start = 1_600_000_000_000L;
+		SlabSessionStore.Wheel wheel = new SlabSessionStore.Wheel(start);
+		Map<String, Long> due = new HashMap<>();
+		for (int i = 0; i < 2000; i++) {
+			long range = i % 3 == 0 ? 300_000 : i % 3 == 1 ? 30_000_000 : 5_000_000_000L;
+			long expiry = start + (long) (random.nextDouble() * range);
+			wheel.schedule(entry("e" + i, expiry));
+			due.put("e" + i, (expiry / 1000 + 1) * 1000);
+		}
+
+		long now = start;
+		while (!due.isEmpty()) {
+			now += 1 + (long) (random.nextDouble() * 20_000_000);
+			Set<String> expected = new HashSet<>();
+			for (Map.Entry<String, Long> d : due.entrySet()) {
+				if (d.getValue() <= now) {
+					expected.add(d.getKey());
+				}
+			}
+			assertEquals(expected, advance(wheel, now));
+			due.keySet().removeAll(expected);
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.dieselpoint.dieseljax.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.BadRequestException;
+
+import org.junit.Test;
+
+import com.dieselpoint.dieseljax.server.SparseFields.Node;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class SparseFieldsTest {
+
+	public static class Order {
+		public int id;
+		public String status;
+		public Customer customer;
+		public List<Line> lines;
+		public Map<String, Line> bySku;
+		public Object extra;
+
+		public String getTotal() {
+			return "0";
+		}
+	}
+
+	public static class Customer {
+		public String name;
+		public String email;
+	}
+
+	public static class Line {
+		public String sku;
+		public int quantity;
+	}
+
+	private final SparseFields sparseFields = new SparseFields(new ObjectMapper().registerModule(SparseFields.module()));
+
+	@Test
+	public void parsesPaths() {
+		Node root = SparseFields.parse("id, status ,customer.name,lines.sku,lines.quantity");
+		assertEquals(Set.of("id", "status", "customer", "lines"), root.children.keySet());
+		assertSame(Node.ALL, root.children.get("id"));
+		assertSame(Node.ALL, root.children.get("status"));
+		assertEquals(Set.of("name"), root.children.get("customer").children.keySet());
+		assertSame(Node.ALL, root.children.get("customer").children.get("name"));
+		assertEquals(Set.of("sku", "quantity"), root.children.get("lines").children.keySet());
+	}
+
+	@Test
+	public void wholePropertyWins() {
+		// in either order, naming a property includes everything under it
+		assertSame(Node.ALL, SparseFields.parse("customer,customer.name").children.get("customer"));
+		assertSame(Node.ALL, SparseFields.parse("customer.name,customer").children.get("customer"));
+		assertSame(Node.ALL, SparseFields.parse("a.b.c,a.b").children.get("a").children.get("b"));
+		assertSame(Node.ALL, SparseFields.parse("a.b,a.b.c").children.get("a").children.get("b"));
+		// and ALL itself is never changed
+		assertTrue(Node.ALL.children.isEmpty());
+	}
+
+	@Test
+	public void skipsEmptyPaths() {
+		assertEquals(Set.of("id"), SparseFields.parse(",id,, ,").children.keySet());
+		assertTrue(SparseFields.parse(" , ").children.isEmpty());
+	}
+
+	@Test
+	public void rejectsMalformedPaths() {
+		for (String fields : new String[] { "a..b", ".a", "a.", "a. .b", "id,customer." }) {
+			try {
+				SparseFields.parse(fields);
+				fail(fields);
+			} catch (BadRequestException expected) {
+			}
+		}
+	}
+
+	@Test
+	public void checksAgainstType() {
+		Node root = sparseFields.compile(Order.class,
+				"id,total,customer.name,lines.sku,bySku.quantity,extra.anything.at.all");
+		assertEquals(Set.of("id", "total", "customer", "lines", "bySku", "extra"),
+				root.children.keySet());
+
+		// collections of beans are transparent at the top too
+		sparseFields.compile(new TypeReference<List<Order>>() {
+		}.getType(), "lines.sku");
+	}
+
+	@Test
+	public void rejectsUnknownFields() {
+		rejects(Order.class, "nope");
+		rejects(Order.class, "customer.nope");
+		rejects(Order.class, "lines.nope");
+		rejects(Order.class, "bySku.nope");
+		// below a scalar there is nothing to select
+		rejects(Order.class, "status.length");
+		rejects(Order.class, "lines.sku.x");
+		rejects(String.class, "x");
+		rejects(new TypeReference<List<Integer>>() {
+		}.getType(), "x");
+	}
+
+	@Test
+	public void cachesPerTypeAndFields() {
+		Node a = sparseFields.compile(Order.class, "id");
+		assertSame(a, sparseFields.compile(Order.class, "id"));
+		assertTrue(a != sparseFields.compile(Line.class, "sku"));
+		assertTrue(a != sparseFields.compile(Order.class, "id,status"));
+	}
+
+	private void rejects(java.lang.reflect.Type type, String fields) {
+		try {
+			sparseFields.compile(type, fields);
+			fail(fields);
+		} catch (BadRequestException expected) {
+		}
+	}
+
+}
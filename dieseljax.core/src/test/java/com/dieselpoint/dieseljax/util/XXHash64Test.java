@@ -0,0 +1,70 @@
+package com.dieselpoint.dieseljax.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Known-answer tests against the reference implementation's vectors: the
+ * sanity checks from xxhsum, which hash a generated buffer at lengths that hit
+ * each tail path and the 32-byte stripe loop, with and without a seed, plus a
+ * few strings.
+ */
+public class XXHash64Test {
+
+	private static final long PRIME = 2654435761L;
+	private static final int SANITY_BUFFER_SIZE = 101;
+
+	private static byte[] sanityBuffer() {
+		byte[] buffer = new byte[SANITY_BUFFER_SIZE];
+		int byteGen = (int) PRIME;
+		for (int i = 0; i < buffer.length; i++) {
+			buffer[i] = (byte) (byteGen >>> 24);
+			byteGen *= byteGen;
+		}
+		return buffer;
+	}
+
+	@Test
+	public void sanityVectors() {
+		byte[] buf = sanityBuffer();
+		assertEquals(0xEF46DB3751D8E999L, XXHash64.hash(buf, 0, 0, 0));
+		assertEquals(0xAC75FDA2929B17EFL, XXHash64.hash(buf, 0, 0, PRIME));
+		assertEquals(0x4FCE394CC88952D8L, XXHash64.hash(buf, 0, 1, 0));
+		assertEquals(0xCFFA8DB881BC3A3DL, XXHash64.hash(buf, 0, 14, 0));
+		assertEquals(0x0EAB543384F878ADL, XXHash64.hash(buf, 0, SANITY_BUFFER_SIZE, 0));
+		assertEquals(0xCAA65939306F1E21L, XXHash64.hash(buf, 0, SANITY_BUFFER_SIZE, PRIME));
+	}
+
+	@Test
+	public void strings() {
+		assertEquals(0xEF46DB3751D8E999L, hash("", 0));
+		assertEquals(0xD24EC4F1A98C6E5BL, hash("a", 0));
+		assertEquals(0x44BC2CF5AD770999L, hash("abc", 0));
+		assertEquals(0xFBCEA83C8A378BF1L, hash("Nobody inspects the spammish repetition", 0));
+		assertEquals(0xD4CB0A70A2B8C7C1L, hash("I want an unsigned 64-bit seed!", 0));
+		assertEquals(0xCE5087F12470D961L, hash("I want an unsigned 64-bit seed!", 1));
+	}
+
+	@Test
+	public void offsetIsHonored() {
+		byte[] buf = sanityBuffer();
+		byte[] shifted = new byte[buf.length + 3];
+		System.arraycopy(buf, 0, shifted, 3, buf.length);
+		assertEquals(XXHash64.hash(buf, 0, buf.length, 0), XXHash64.hash(shifted, 3, buf.length, 0));
+	}
+
+	@Test
+	public void hashUsesSeedZero() {
+		byte[] buf = sanityBuffer();
+		assertEquals(XXHash64.hash(buf, 0, buf.length, 0), XXHash64.hash(buf));
+	}
+
+	private static long hash(String s, long seed) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		return XXHash64.hash(bytes, 0, bytes.length, seed);
+	}
+
+}